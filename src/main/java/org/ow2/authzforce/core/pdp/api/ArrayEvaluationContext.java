@@ -0,0 +1,509 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Bag;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.core.pdp.api.value.Value;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+
+import com.google.common.base.Preconditions;
+
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * {@link SlotIndexedEvaluationContext} implementation storing the values of attributes and variables that have a slot in arrays (sized from the slot counts at creation), and the others - e.g.
+ * request attributes not used in policies - in hash maps. Listeners are notified of named attributes and AttributeSelector results produced and consumed.
+ * <p>
+ * Instances are reusable for successive requests, to save the allocation of a new context (arrays and maps) per request: {@link #reset(Map, Map, boolean)} clears the arrays and maps in place and
+ * makes the context equivalent to a new instance created with the same arguments, with no state left from the previous request (attributes, AttributeSelector results, variables, other properties
+ * and listeners).
+ * <p>
+ * Typed custom properties ({@link ContextKey}s) are stored in an array indexed by {@link ContextKey#getIndex()}, separately from the properties put with a string key (therefore not visible with
+ * {@link #getOther(String)}, as with the default implementation). See also {@link EvaluationContextPool}.
+ * <p>
+ * Not thread-safe, like any evaluation context.
+ */
+public final class ArrayEvaluationContext implements SlotIndexedEvaluationContext
+{
+	private final ContextSlots slots;
+	private AttributeFqn[] attributeKeys;
+	private AttributeBag<?>[] attributeValues;
+	private Value[] variableValues;
+	// values of typed custom properties by ContextKey index
+	private Object[] extensionValues;
+	// attributes and variables without slot
+	private final Map<AttributeFqn, AttributeBag<?>> otherAttributes = HashCollections.newUpdatableMap();
+	private final Map<String, Value> otherVariables = HashCollections.newUpdatableMap();
+
+	private Map<String, XdmNode> extraContentsByCategory;
+	private boolean returnApplicablePolicyIdList;
+	private final Map<AttributeSelectorExpression<?>, Bag<?>> attributeSelectorResults = HashCollections.newUpdatableMap();
+	private final Map<String, Object> otherProperties = HashCollections.newUpdatableMap();
+	private final Map<Class<?>, Listener> listeners = HashCollections.newUpdatableMap();
+
+	// true iff idle in a shared (bounded) EvaluationContextPool
+	private final AtomicBoolean pooled = new AtomicBoolean(false);
+
+	private ArrayEvaluationContext(final ContextSlots slots, final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> extraContentsByCategory,
+			final boolean returnApplicablePolicyIdList)
+	{
+		this.slots = slots;
+		final int attributeSlotCount = slots.getAttributeSlotCount();
+		this.attributeKeys = new AttributeFqn[attributeSlotCount];
+		this.attributeValues = new AttributeBag<?>[attributeSlotCount];
+		this.variableValues = new Value[slots.getVariableSlotCount()];
+		this.extensionValues = new Object[ContextKey.getKeyCount()];
+		init(namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+	}
+
+	private void init(final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> extraContentsByCategory, final boolean returnApplicablePolicyIdList)
+	{
+		if (namedAttributes != null)
+		{
+			for (final Entry<AttributeFqn, AttributeBag<?>> namedAttribute : namedAttributes.entrySet())
+			{
+				putAttribute(slots.getAttributeSlot(namedAttribute.getKey()), namedAttribute.getKey(), namedAttribute.getValue());
+			}
+		}
+
+		this.extraContentsByCategory = extraContentsByCategory == null ? Collections.emptyMap() : extraContentsByCategory;
+		this.returnApplicablePolicyIdList = returnApplicablePolicyIdList;
+	}
+
+	/**
+	 * Flags this context as idle in a shared pool
+	 * 
+	 * @return false iff already flagged, i.e. released twice to the pool
+	 */
+	boolean markPooled()
+	{
+		return pooled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Flags this context as not idle in a shared pool anymore (acquired or dropped)
+	 */
+	void unmarkPooled()
+	{
+		pooled.set(false);
+	}
+
+	/**
+	 * Removes all state of the current request, so that no reference to it is kept while the context is not used (e.g. in a pool)
+	 */
+	void clear()
+	{
+		/*
+		 * Slots registered since the creation (or last reset) of this context are stored in the maps, not in the arrays, until the arrays are resized here
+		 */
+		final int attributeSlotCount = slots.getAttributeSlotCount();
+		if (attributeValues.length == attributeSlotCount)
+		{
+			Arrays.fill(attributeKeys, null);
+			Arrays.fill(attributeValues, null);
+		}
+		else
+		{
+			this.attributeKeys = new AttributeFqn[attributeSlotCount];
+			this.attributeValues = new AttributeBag<?>[attributeSlotCount];
+		}
+
+		final int variableSlotCount = slots.getVariableSlotCount();
+		if (variableValues.length == variableSlotCount)
+		{
+			Arrays.fill(variableValues, null);
+		}
+		else
+		{
+			this.variableValues = new Value[variableSlotCount];
+		}
+
+		Arrays.fill(extensionValues, null);
+		otherAttributes.clear();
+		otherVariables.clear();
+		attributeSelectorResults.clear();
+		otherProperties.clear();
+		listeners.clear();
+		this.extraContentsByCategory = Collections.emptyMap();
+		this.returnApplicablePolicyIdList = false;
+	}
+
+	/**
+	 * Resets this context for a new decision request: all state of the previous request is removed (clearing the arrays and maps in place), and the context becomes equivalent to a new instance
+	 * created by {@link #newInstance(ContextSlots, Map, Map, boolean)} with the same slot registry and the given arguments.
+	 * <p>
+	 * This must not be called while the context is still used for the previous request, and the previous request's caller must not use the context anymore.
+	 * 
+	 * @param namedAttributes
+	 *            named attributes of the new request (null if none)
+	 * @param extraContentsByCategory
+	 *            extra XML Content elements by attribute Category (null if none)
+	 * @param returnApplicablePolicyIdList
+	 *            equivalent of XACML Request's ReturnPolicyIdList flag
+	 */
+	public void reset(final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> extraContentsByCategory, final boolean returnApplicablePolicyIdList)
+	{
+		clear();
+		init(namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+	}
+
+	/**
+	 * Creates an evaluation context for a decision request
+	 * 
+	 * @param slots
+	 *            slot registry, with the attributes and variables of the policies registered (those registered afterwards are supported but stored without slot in this context)
+	 * @param namedAttributes
+	 *            named attributes of the request (null if none)
+	 * @param extraContentsByCategory
+	 *            extra XML Content elements by attribute Category (null if none)
+	 * @param returnApplicablePolicyIdList
+	 *            equivalent of XACML Request's ReturnPolicyIdList flag
+	 * @return new evaluation context
+	 * @throws IllegalArgumentException
+	 *             if {@code slots == null}
+	 */
+	public static ArrayEvaluationContext newInstance(final ContextSlots slots, final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> extraContentsByCategory,
+			final boolean returnApplicablePolicyIdList) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(slots != null, "Undefined context slots");
+		return new ArrayEvaluationContext(slots, namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+	}
+
+	/*
+	 * Returns the previous value if any, else null (and puts the value)
+	 */
+	private AttributeBag<?> putAttribute(final int slot, final AttributeFqn attributeFQN, final AttributeBag<?> value)
+	{
+		if (slot < 0 || slot >= attributeValues.length)
+		{
+			return otherAttributes.putIfAbsent(attributeFQN, value);
+		}
+
+		final AttributeBag<?> previousValue = attributeValues[slot];
+		if (previousValue == null)
+		{
+			attributeKeys[slot] = attributeFQN;
+			attributeValues[slot] = value;
+		}
+
+		return previousValue;
+	}
+
+	@Override
+	public ContextSlots getSlots()
+	{
+		return slots;
+	}
+
+	private <AV extends AttributeValue> AttributeBag<AV> getNamedAttributeValue(final int slot, final AttributeFqn attributeFQN, final Datatype<AV> datatype, final boolean notifyIfMissing)
+			throws IndeterminateEvaluationException
+	{
+		final AttributeBag<?> bag = slot < 0 || slot >= attributeValues.length ? otherAttributes.get(attributeFQN) : attributeValues[slot];
+		if (bag == null)
+		{
+			if (notifyIfMissing)
+			{
+				notifyNamedAttributeValueConsumed(attributeFQN, null);
+			}
+
+			return null;
+		}
+
+		if (!bag.getElementDatatype().equals(datatype))
+		{
+			throw new IndeterminateEvaluationException("Datatype (" + bag.getElementDatatype() + ") of attribute " + attributeFQN + " in context does not match expected datatype: " + datatype,
+					XacmlStatusCode.PROCESSING_ERROR.value());
+		}
+
+		/*
+		 * Datatype checked above
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> result = (AttributeBag<AV>) bag;
+		notifyNamedAttributeValueConsumed(attributeFQN, result);
+		return result;
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> getNamedAttributeValue(final int slot, final AttributeFqn attributeFQN, final Datatype<AV> datatype) throws IndeterminateEvaluationException
+	{
+		return getNamedAttributeValue(slot, attributeFQN, datatype, false);
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> getNamedAttributeValue(final AttributeFqn attributeFQN, final Datatype<AV> datatype) throws IndeterminateEvaluationException
+	{
+		return getNamedAttributeValue(slots.getAttributeSlot(attributeFQN), attributeFQN, datatype, true);
+	}
+
+	@Override
+	public Iterator<Entry<AttributeFqn, AttributeBag<?>>> getNamedAttributes()
+	{
+		final Map<AttributeFqn, AttributeBag<?>> allAttributes = HashCollections.newUpdatableMap(otherAttributes);
+		for (int i = 0; i < attributeValues.length; i++)
+		{
+			if (attributeValues[i] != null)
+			{
+				allAttributes.put(attributeKeys[i], attributeValues[i]);
+			}
+		}
+
+		return Collections.unmodifiableMap(allAttributes).entrySet().iterator();
+	}
+
+	@Override
+	public boolean putNamedAttributeValueIfAbsent(final int slot, final AttributeFqn attributeFQN, final AttributeBag<?> result)
+	{
+		if (putAttribute(slot, attributeFQN, result) != null)
+		{
+			return false;
+		}
+
+		if (!listeners.isEmpty())
+		{
+			for (final Listener listener : listeners.values())
+			{
+				listener.namedAttributeValueProduced(attributeFQN, result);
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean putNamedAttributeValueIfAbsent(final AttributeFqn attributeFQN, final AttributeBag<?> result)
+	{
+		return putNamedAttributeValueIfAbsent(slots.getAttributeSlot(attributeFQN), attributeFQN, result);
+	}
+
+	private void notifyNamedAttributeValueConsumed(final AttributeFqn attributeFQN, final AttributeBag<?> value)
+	{
+		if (!listeners.isEmpty())
+		{
+			for (final Listener listener : listeners.values())
+			{
+				listener.namedAttributeValueConsumed(attributeFQN, value);
+			}
+		}
+	}
+
+	@Override
+	public <AV extends AttributeValue> Bag<AV> getAttributeSelectorResult(final AttributeSelectorExpression<AV> attributeSelector) throws IndeterminateEvaluationException
+	{
+		/*
+		 * Result put with the same AttributeSelector, therefore same datatype
+		 */
+		@SuppressWarnings("unchecked")
+		final Bag<AV> result = (Bag<AV>) attributeSelectorResults.get(attributeSelector);
+		if (!listeners.isEmpty())
+		{
+			for (final Listener listener : listeners.values())
+			{
+				listener.attributeSelectorResultConsumed(attributeSelector, result);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public <AV extends AttributeValue> boolean putAttributeSelectorResultIfAbsent(final AttributeSelectorExpression<AV> attributeSelector, final Bag<AV> result)
+			throws IndeterminateEvaluationException
+	{
+		if (attributeSelectorResults.putIfAbsent(attributeSelector, result) != null)
+		{
+			return false;
+		}
+
+		if (!listeners.isEmpty())
+		{
+			for (final Listener listener : listeners.values())
+			{
+				listener.attributeSelectorResultProduced(attributeSelector, Optional.empty(), result);
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public XdmNode getAttributesContent(final String category)
+	{
+		return extraContentsByCategory.get(category);
+	}
+
+	@Override
+	public <V extends Value> V getVariableValue(final int slot, final String variableId, final Datatype<V> datatype) throws IndeterminateEvaluationException
+	{
+		final Value value = slot < 0 || slot >= variableValues.length ? otherVariables.get(variableId) : variableValues[slot];
+		if (value == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return datatype.cast(value);
+		}
+		catch (final ClassCastException e)
+		{
+			throw new IndeterminateEvaluationException("Datatype of variable '" + variableId + "' in context does not match expected datatype: " + datatype, XacmlStatusCode.PROCESSING_ERROR.value(),
+					e);
+		}
+	}
+
+	@Override
+	public <V extends Value> V getVariableValue(final String variableId, final Datatype<V> datatype) throws IndeterminateEvaluationException
+	{
+		return getVariableValue(slots.getVariableSlot(variableId), variableId, datatype);
+	}
+
+	@Override
+	public boolean putVariableIfAbsent(final int slot, final String variableId, final Value value)
+	{
+		if (slot < 0 || slot >= variableValues.length)
+		{
+			return otherVariables.putIfAbsent(variableId, value) == null;
+		}
+
+		if (variableValues[slot] != null)
+		{
+			return false;
+		}
+
+		variableValues[slot] = value;
+		return true;
+	}
+
+	@Override
+	public boolean putVariableIfAbsent(final String variableId, final Value value)
+	{
+		return putVariableIfAbsent(slots.getVariableSlot(variableId), variableId, value);
+	}
+
+	@Override
+	public Value removeVariable(final String variableId)
+	{
+		final int slot = slots.getVariableSlot(variableId);
+		if (slot < 0 || slot >= variableValues.length)
+		{
+			return otherVariables.remove(variableId);
+		}
+
+		final Value previousValue = variableValues[slot];
+		variableValues[slot] = null;
+		return previousValue;
+	}
+
+	@Override
+	public Object getOther(final String key)
+	{
+		return otherProperties.get(key);
+	}
+
+	@Override
+	public boolean containsKey(final String key)
+	{
+		return otherProperties.containsKey(key);
+	}
+
+	@Override
+	public void putOther(final String key, final Object val)
+	{
+		otherProperties.put(key, val);
+	}
+
+	@Override
+	public Object remove(final String key)
+	{
+		return otherProperties.remove(key);
+	}
+
+	@Override
+	public <T> T getOther(final ContextKey<T> key)
+	{
+		final int index = key.getIndex();
+		if (index >= extensionValues.length)
+		{
+			return null;
+		}
+
+		/*
+		 * Value put with the same key, therefore same type
+		 */
+		@SuppressWarnings("unchecked")
+		final T value = (T) extensionValues[index];
+		return value;
+	}
+
+	@Override
+	public <T> void putOther(final ContextKey<T> key, final T value)
+	{
+		final int index = key.getIndex();
+		if (index >= extensionValues.length)
+		{
+			// key created after this context
+			extensionValues = Arrays.copyOf(extensionValues, Math.max(index + 1, ContextKey.getKeyCount()));
+		}
+
+		extensionValues[index] = value;
+	}
+
+	@Override
+	public <T> T remove(final ContextKey<T> key)
+	{
+		final T previousValue = getOther(key);
+		if (previousValue != null)
+		{
+			extensionValues[key.getIndex()] = null;
+		}
+
+		return previousValue;
+	}
+
+	@Override
+	public boolean isApplicablePolicyIdListRequested()
+	{
+		return returnApplicablePolicyIdList;
+	}
+
+	@Override
+	public <L extends Listener> L putListener(final Class<L> listenerType, final L listener)
+	{
+		return listenerType.cast(listeners.put(listenerType, listener));
+	}
+
+	@Override
+	public <L extends Listener> L getListener(final Class<L> listenerType)
+	{
+		return listenerType.cast(listeners.get(listenerType));
+	}
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
+/**
+ * Asynchronous variant of {@link AttributeProvider}, for attribute sources accessed with non-blocking I/O (e.g. asynchronous HTTP client), so that the PDP may request several attributes at once and
+ * overlap the I/O instead of waiting for each attribute in turn.
+ * <p>
+ * See {@link AsyncAttributeProviders} to adapt existing (synchronous) {@link AttributeProvider}s to this interface, and conversely.
+ */
+public interface AsyncAttributeProvider
+{
+
+	/**
+	 * Provides values of the attribute matching the given designator data, asynchronously. If no value found, but no other error occurred, the result is an empty bag.
+	 * <p>
+	 * The evaluation context is not thread-safe: implementations must only access it in the calling thread, e.g. to get the attributes they need before switching to another thread (see
+	 * {@link AsyncAttributeProviders#fromSync(AttributeProvider, java.util.Set, org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry, AttributeProvider, java.util.concurrent.Executor)}).
+	 * 
+	 * @param attributeFQN
+	 *            the global identifier (Category,Issuer,AttributeId) of the attribute to find
+	 * @param datatype
+	 *            attribute datatype
+	 * @param context
+	 *            the request context
+	 * @return future result of retrieving the attribute, completed with a bag of values of type defined by {@code datatype} (empty bag iff no value found and no error occurred); or completed
+	 *         exceptionally with an {@link IndeterminateEvaluationException} if {@code attributeFQN} and {@code datatype} are supported but some error occurred while trying to resolve the attribute
+	 *         value(s), or with an {@link UnsupportedOperationException} if they are not supported.
+	 */
+	<AV extends AttributeValue> CompletableFuture<AttributeBag<AV>> getAsync(AttributeFqn attributeFQN, Datatype<AV> datatype, EvaluationContext context);
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * Static utility methods pertaining to {@link AsyncAttributeProvider} instances, in particular adapters from/to {@link AttributeProvider}
+ */
+public final class AsyncAttributeProviders
+{
+	private static final IllegalArgumentException NULL_PROVIDER_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined Attribute Provider");
+	private static final IllegalArgumentException NULL_EXECUTOR_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined executor");
+	private static final IllegalArgumentException NULL_DEPENDENCY_RESOLUTION_ARGUMENT_EXCEPTION = new IllegalArgumentException(
+			"Undefined attribute value factories or dependency Attribute Provider for Attribute Provider with dependencies");
+
+	private AsyncAttributeProviders()
+	{
+		// prevent instantiation
+	}
+
+	private static <AV extends AttributeValue> CompletableFuture<AttributeBag<AV>> failedFuture(final Throwable cause)
+	{
+		final CompletableFuture<AttributeBag<AV>> future = new CompletableFuture<>();
+		future.completeExceptionally(cause);
+		return future;
+	}
+
+	/*
+	 * Future result of a provider called in another thread with a detached evaluation context holding its dependencies. Holds the attributes put in the detached context by the provider (e.g. dependency
+	 * attributes resolved on the way), to be merged into the caller's context by the caller thread in join(...).
+	 */
+	private static final class ContextMergingFuture<AV extends AttributeValue> extends CompletableFuture<AttributeBag<AV>>
+	{
+		private final EvaluationContext callerContext;
+		// set before completion (happens-before the completion)
+		private Map<AttributeFqn, AttributeBag<?>> producedAttributes = null;
+		// accessed by the caller thread only
+		private boolean merged = false;
+
+		private ContextMergingFuture(final EvaluationContext callerContext)
+		{
+			this.callerContext = callerContext;
+		}
+
+		private void mergeIntoCallerContext()
+		{
+			if (merged || producedAttributes == null)
+			{
+				return;
+			}
+
+			merged = true;
+			for (final Entry<AttributeFqn, AttributeBag<?>> producedAttribute : producedAttributes.entrySet())
+			{
+				callerContext.putNamedAttributeValueIfAbsent(producedAttribute.getKey(), producedAttribute.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Adapts a synchronous {@link AttributeProvider} to {@link AsyncAttributeProvider}, calling {@link AttributeProvider#get(AttributeFqn, Datatype, EvaluationContext)} in the calling thread, i.e.
+	 * the returned future is always completed. This allows existing providers to be used where an {@link AsyncAttributeProvider} is expected, without any I/O overlap.
+	 * 
+	 * @param provider
+	 *            synchronous provider
+	 * @return asynchronous provider
+	 * @throws IllegalArgumentException
+	 *             if {@code provider == null}
+	 */
+	public static AsyncAttributeProvider fromSync(final AttributeProvider provider) throws IllegalArgumentException
+	{
+		if (provider == null)
+		{
+			throw NULL_PROVIDER_ARGUMENT_EXCEPTION;
+		}
+
+		return new AsyncAttributeProvider()
+		{
+			@Override
+			public <AV extends AttributeValue> CompletableFuture<AttributeBag<AV>> getAsync(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context)
+			{
+				try
+				{
+					return CompletableFuture.completedFuture(provider.get(attributeFQN, datatype, context));
+				}
+				catch (final IndeterminateEvaluationException | RuntimeException e)
+				{
+					return failedFuture(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Adapts a synchronous {@link AttributeProvider} to {@link AsyncAttributeProvider}, calling {@link AttributeProvider#get(AttributeFqn, Datatype, EvaluationContext)} with a given executor, e.g.
+	 * a thread pool dedicated to blocking I/O, so that several attributes may be requested at once.
+	 * <p>
+	 * Since the evaluation context is not thread-safe, the provider is not given the caller's context but a detached context holding only the values of its dependencies, resolved in the calling
+	 * thread with {@code dependencyAttributeProvider} (as in {@link CachingNamedAttributeProvider}), so that the listeners of the caller's context are notified of their consumption (e.g. for
+	 * dependency-aware decision caching). The attributes put in the detached context by the provider (e.g. other attributes resolved on the way) are merged back into the caller's context by
+	 * {@link #join(CompletableFuture, AttributeFqn)}, in the thread calling it; the listeners of the caller's context are notified of them at that time only. Request attributes other than the
+	 * dependencies, AttributeSelectors and Content are not available to the provider.
+	 * 
+	 * @param provider
+	 *            synchronous provider
+	 * @param dependencies
+	 *            attributes that {@code provider} depends on (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}); null or empty if none
+	 * @param attributeValueFactories
+	 *            attribute value factories, used to get the dependencies' datatypes (may be null if there is no dependency)
+	 * @param dependencyAttributeProvider
+	 *            provider of the dependency attributes (may be null if there is no dependency)
+	 * @param executor
+	 *            executor running the calls to {@code provider}
+	 * @return asynchronous provider
+	 * @throws IllegalArgumentException
+	 *             if {@code provider == null || executor == null}, or {@code dependencies} is not empty and {@code attributeValueFactories == null || dependencyAttributeProvider == null}, or the datatype
+	 *             of a dependency is not supported
+	 */
+	public static AsyncAttributeProvider fromSync(final AttributeProvider provider, final Set<AttributeDesignatorType> dependencies, final AttributeValueFactoryRegistry attributeValueFactories,
+			final AttributeProvider dependencyAttributeProvider, final Executor executor) throws IllegalArgumentException
+	{
+		if (provider == null)
+		{
+			throw NULL_PROVIDER_ARGUMENT_EXCEPTION;
+		}
+
+		if (executor == null)
+		{
+			throw NULL_EXECUTOR_ARGUMENT_EXCEPTION;
+		}
+
+		if (dependencies != null && !dependencies.isEmpty() && (attributeValueFactories == null || dependencyAttributeProvider == null))
+		{
+			throw NULL_DEPENDENCY_RESOLUTION_ARGUMENT_EXCEPTION;
+		}
+
+		final ProviderDependencies providerDependencies = new ProviderDependencies(dependencies, attributeValueFactories, dependencyAttributeProvider);
+		return new AsyncAttributeProvider()
+		{
+			@Override
+			public <AV extends AttributeValue> CompletableFuture<AttributeBag<AV>> getAsync(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context)
+			{
+				final Map<AttributeFqn, AttributeBag<?>> dependencyValues;
+				try
+				{
+					dependencyValues = providerDependencies.toMap(providerDependencies.resolve(context));
+				}
+				catch (final IndeterminateEvaluationException | RuntimeException e)
+				{
+					return failedFuture(e);
+				}
+
+				final ContextMergingFuture<AV> future = new ContextMergingFuture<>(context);
+				try
+				{
+					executor.execute(() -> {
+						try
+						{
+							final EvaluationContext detachedContext = new DetachedEvaluationContext(dependencyValues);
+							final AttributeBag<AV> result = provider.get(attributeFQN, datatype, detachedContext);
+							final Map<AttributeFqn, AttributeBag<?>> producedAttributes = HashCollections.newUpdatableMap();
+							final Iterator<Entry<AttributeFqn, AttributeBag<?>>> detachedContextIterator = detachedContext.getNamedAttributes();
+							while (detachedContextIterator.hasNext())
+							{
+								final Entry<AttributeFqn, AttributeBag<?>> detachedContextEntry = detachedContextIterator.next();
+								if (!dependencyValues.containsKey(detachedContextEntry.getKey()))
+								{
+									producedAttributes.put(detachedContextEntry.getKey(), detachedContextEntry.getValue());
+								}
+							}
+
+							future.producedAttributes = producedAttributes;
+							future.complete(result);
+						}
+						catch (final IndeterminateEvaluationException | RuntimeException e)
+						{
+							future.completeExceptionally(e);
+						}
+					});
+				}
+				catch (final RejectedExecutionException e)
+				{
+					future.completeExceptionally(new IndeterminateEvaluationException("Retrieval of attribute " + attributeFQN + " rejected by executor", XacmlStatusCode.PROCESSING_ERROR.value(), e));
+				}
+
+				return future;
+			}
+		};
+	}
+
+	/**
+	 * Waits for the result of an attribute retrieval, unwrapping the error if any. If the future comes from a provider adapted by
+	 * {@link #fromSync(AttributeProvider, Set, AttributeValueFactoryRegistry, AttributeProvider, Executor)}, the attributes put by the provider in its detached context are merged into the caller's
+	 * evaluation context, therefore this must be called by the thread owning the evaluation context.
+	 * 
+	 * @param future
+	 *            future result of {@link AsyncAttributeProvider#getAsync(AttributeFqn, Datatype, EvaluationContext)}
+	 * @param attributeFQN
+	 *            requested attribute (for error messages only)
+	 * @return attribute values
+	 * @throws IndeterminateEvaluationException
+	 *             if {@code future} completed with an {@link IndeterminateEvaluationException}, or any other checked exception (wrapped)
+	 */
+	public static <AV extends AttributeValue> AttributeBag<AV> join(final CompletableFuture<AttributeBag<AV>> future, final AttributeFqn attributeFQN) throws IndeterminateEvaluationException
+	{
+		try
+		{
+			final AttributeBag<AV> result = future.join();
+			if (future instanceof ContextMergingFuture)
+			{
+				((ContextMergingFuture<AV>) future).mergeIntoCallerContext();
+			}
+
+			return result;
+		}
+		catch (final CompletionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof IndeterminateEvaluationException)
+			{
+				throw (IndeterminateEvaluationException) cause;
+			}
+
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+
+			throw new IndeterminateEvaluationException("Error resolving attribute " + attributeFQN, XacmlStatusCode.PROCESSING_ERROR.value(), cause);
+		}
+	}
+
+	/**
+	 * Adapts an {@link AsyncAttributeProvider} to (synchronous) {@link AttributeProvider}, waiting for the completion of each attribute retrieval in the calling thread, so that asynchronous providers
+	 * can be used wherever synchronous ones are expected.
+	 * 
+	 * @param provider
+	 *            asynchronous provider
+	 * @return synchronous provider
+	 * @throws IllegalArgumentException
+	 *             if {@code provider == null}
+	 */
+	public static AttributeProvider toSync(final AsyncAttributeProvider provider) throws IllegalArgumentException
+	{
+		if (provider == null)
+		{
+			throw NULL_PROVIDER_ARGUMENT_EXCEPTION;
+		}
+
+		return new AttributeProvider()
+		{
+			@Override
+			public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context)
+					throws IndeterminateEvaluationException
+			{
+				return join(provider.getAsync(attributeFQN, datatype, context), attributeFQN);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.List;
+import java.util.Map;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+
+/**
+ * Scope of attribute values shared by the individual decision requests of a batch (Multiple Decision request), e.g. {@link PdpEngine#evaluate(List)}, in the current thread. While a scope is open,
+ * the {@link BatchScopedNamedAttributeProvider}s called in the same thread reuse the values they have already returned in the scope for the same attribute and dependency values, instead of calling
+ * their decorated providers again for each individual request. For example, in a batch of requests for the same subject and many resources, the subject attributes are fetched once.
+ * <p>
+ * Usage (as done by {@link BatchScopedPdpEngine}):
+ * 
+ * <pre>
+ * final AttributeBatchScope scope = AttributeBatchScope.open();
+ * try
+ * {
+ * 	// evaluate the individual requests in this thread
+ * }
+ * finally
+ * {
+ * 	scope.close();
+ * }
+ * </pre>
+ * <p>
+ * Scopes are re-entrant: opening a scope while one is already open in the current thread joins it, and only closing the outermost one discards the values.
+ * <p>
+ * Not thread-safe: a scope must be used and closed by the thread that opened it.
+ */
+public final class AttributeBatchScope implements AutoCloseable
+{
+	private static final ThreadLocal<AttributeBatchScope> CURRENT_SCOPE = new ThreadLocal<>();
+
+	private final Map<DependentAttributeKey, AttributeBag<?>> values;
+	private final boolean outermost;
+
+	private AttributeBatchScope(final Map<DependentAttributeKey, AttributeBag<?>> values, final boolean outermost)
+	{
+		this.values = values;
+		this.outermost = outermost;
+	}
+
+	/**
+	 * Opens a scope in the current thread, or joins the one already open
+	 * 
+	 * @return scope, to be closed at the end of the batch
+	 */
+	public static AttributeBatchScope open()
+	{
+		final AttributeBatchScope currentScope = CURRENT_SCOPE.get();
+		if (currentScope != null)
+		{
+			return new AttributeBatchScope(currentScope.values, false);
+		}
+
+		final AttributeBatchScope newScope = new AttributeBatchScope(HashCollections.newUpdatableMap(), true);
+		CURRENT_SCOPE.set(newScope);
+		return newScope;
+	}
+
+	/**
+	 * Get the attribute values of the scope open in the current thread
+	 * 
+	 * @return values of the current scope (updatable), null if no scope open
+	 */
+	static Map<DependentAttributeKey, AttributeBag<?>> currentValues()
+	{
+		final AttributeBatchScope currentScope = CURRENT_SCOPE.get();
+		return currentScope == null ? null : currentScope.values;
+	}
+
+	/**
+	 * Closes the scope. If this is the outermost scope, the attribute values are discarded.
+	 */
+	@Override
+	public void close()
+	{
+		if (outermost && CURRENT_SCOPE.get() == this)
+		{
+			CURRENT_SCOPE.remove();
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * {@link PdpEngine} decorator prefetching attributes from Attribute Providers as soon as a decision request arrives, before the request is evaluated, in order to overlap the attribute lookups
+ * instead of doing them one after the other when the policy evaluation reaches each AttributeDesignator.
+ * <p>
+ * The attributes to be prefetched from each provider are configured with {@link Builder#prefetch(NamedAttributeProvider, Map)}, typically the provided attributes (see
+ * {@link NamedAttributeProvider#getProvidedAttributes()}) that the PDP policies are known to use. For each request, the lookups of these attributes - except the ones already in the request - are
+ * started in parallel with a given executor, one {@link NamedAttributeProvider#getAll(Map, EvaluationContext)} call per provider, with an evaluation context made of the request attributes only.
+ * The attribute values obtained within a given timeout are added to the request passed to the decorated engine, therefore found by the engine in the request instead of calling the providers
+ * again. Lookups that fail or time out are ignored: the engine resolves these attributes on demand as usual.
+ * <p>
+ * Prefetching is worth it only if the prefetched attributes are needed by most requests, since they are resolved whether the policies actually need them for a given request or not. Note also that
+ * decision caches in the decorated engine see the prefetched attributes as part of the request.
+ * <p>
+ * A request with prefetched attributes is passed to the decorated engine as a new {@link ImmutableDecisionRequest}, not as an instance of the original request type, therefore any data specific
+ * to this type (e.g. the Attributes to be included in the Result of an {@link org.ow2.authzforce.core.pdp.api.io.IndividualXacmlJaxbRequest}) is not available to the engine. The results of
+ * {@link #evaluate(List)} are still returned with the original requests as keys.
+ */
+public final class AttributePrefetchingPdpEngine implements CloseablePdpEngine
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(AttributePrefetchingPdpEngine.class);
+
+	private static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/*
+	 * Attributes to be prefetched from a given provider
+	 */
+	private static final class Prefetch
+	{
+		private final NamedAttributeProvider provider;
+		private final ImmutableMap<AttributeFqn, Datatype<? extends AttributeValue>> attributes;
+
+		private Prefetch(final NamedAttributeProvider provider, final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes)
+		{
+			this.provider = provider;
+			this.attributes = ImmutableMap.copyOf(attributes);
+		}
+	}
+
+	/**
+	 * Builder of {@link AttributePrefetchingPdpEngine}. Not thread-safe.
+	 */
+	public static final class Builder
+	{
+		private final PdpEngine engine;
+		private final Executor executor;
+		private final List<Prefetch> prefetches = new ArrayList<>();
+		private long timeoutNanos = DEFAULT_TIMEOUT_NANOS;
+
+		private Builder(final PdpEngine engine, final Executor executor)
+		{
+			// use AttributePrefetchingPdpEngine#newBuilder(PdpEngine, Executor)
+			Preconditions.checkArgument(engine != null, "Undefined PDP engine");
+			Preconditions.checkArgument(executor != null, "Undefined executor");
+			this.engine = engine;
+			this.executor = executor;
+		}
+
+		/**
+		 * Adds attributes to be prefetched from a given provider
+		 *
+		 * @param provider
+		 *            Attribute Provider
+		 * @param attributes
+		 *            attributes to be prefetched from {@code provider}, with their datatypes
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code provider == null || attributes == null || attributes.isEmpty()}
+		 */
+		public Builder prefetch(final NamedAttributeProvider provider, final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(provider != null, "Undefined Attribute Provider");
+			Preconditions.checkArgument(attributes != null && !attributes.isEmpty(), "Undefined attributes to prefetch");
+			this.prefetches.add(new Prefetch(provider, attributes));
+			return this;
+		}
+
+		/**
+		 * Sets the maximum time to wait for the prefetched attributes before evaluating the request (the attributes not prefetched in time are resolved on demand by the engine). Default: 100 ms.
+		 *
+		 * @param duration
+		 *            timeout (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null}
+		 */
+		public Builder timeout(final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid prefetch timeout (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined prefetch timeout unit");
+			this.timeoutNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Creates the PDP engine
+		 *
+		 * @return new PDP engine
+		 */
+		public AttributePrefetchingPdpEngine build()
+		{
+			return new AttributePrefetchingPdpEngine(this);
+		}
+	}
+
+	/**
+	 * Creates a builder of {@link AttributePrefetchingPdpEngine}. If {@code engine} is {@link Closeable} (e.g. {@link CloseablePdpEngine}), {@link #close()} closes it.
+	 *
+	 * @param engine
+	 *            decorated PDP engine
+	 * @param executor
+	 *            executor running the attribute lookups, e.g. a thread pool dedicated to blocking I/O
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code engine == null || executor == null}
+	 */
+	public static Builder newBuilder(final PdpEngine engine, final Executor executor) throws IllegalArgumentException
+	{
+		return new Builder(engine, executor);
+	}
+
+	private final PdpEngine engine;
+	private final Executor executor;
+	private final ImmutableList<Prefetch> prefetches;
+	private final long timeoutNanos;
+
+	private AttributePrefetchingPdpEngine(final Builder builder)
+	{
+		assert builder != null;
+		this.engine = builder.engine;
+		this.executor = builder.executor;
+		this.prefetches = ImmutableList.copyOf(builder.prefetches);
+		this.timeoutNanos = builder.timeoutNanos;
+	}
+
+	/*
+	 * Starts the lookups of the attributes to be prefetched and missing from the request
+	 */
+	private List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> startPrefetch(final DecisionRequest request)
+	{
+		final Map<AttributeFqn, AttributeBag<?>> requestAttributes = request.getNamedAttributes();
+		final List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> futures = new ArrayList<>(prefetches.size());
+		for (final Prefetch prefetch : prefetches)
+		{
+			final Map<AttributeFqn, Datatype<? extends AttributeValue>> missingAttributes = HashCollections.newUpdatableMap(prefetch.attributes.size());
+			for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : prefetch.attributes.entrySet())
+			{
+				if (!requestAttributes.containsKey(attribute.getKey()))
+				{
+					missingAttributes.put(attribute.getKey(), attribute.getValue());
+				}
+			}
+
+			if (missingAttributes.isEmpty())
+			{
+				continue;
+			}
+
+			try
+			{
+				futures.add(CompletableFuture.supplyAsync(() -> {
+					try
+					{
+						return prefetch.provider.getAll(missingAttributes, new DetachedEvaluationContext(requestAttributes));
+					}
+					catch (final IndeterminateEvaluationException e)
+					{
+						throw new CompletionException(e);
+					}
+				}, executor));
+			}
+			catch (final RejectedExecutionException e)
+			{
+				LOGGER.debug("Prefetch of attributes {} rejected by executor", missingAttributes.keySet(), e);
+			}
+		}
+
+		return futures;
+	}
+
+	/*
+	 * Waits for the prefetched attributes until the deadline, and returns the request with the attributes prefetched in time
+	 */
+	private DecisionRequest completePrefetch(final DecisionRequest request, final List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> futures, final long deadline)
+	{
+		if (futures.isEmpty())
+		{
+			return request;
+		}
+
+		Map<AttributeFqn, AttributeBag<?>> augmentedAttributes = null;
+		for (final CompletableFuture<Map<AttributeFqn, AttributeBag<?>>> future : futures)
+		{
+			final Map<AttributeFqn, AttributeBag<?>> prefetchedAttributes;
+			try
+			{
+				prefetchedAttributes = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			catch (final TimeoutException e)
+			{
+				/*
+				 * The result will never be used: if not started yet, the lookup is not run at all (a CompletableFuture's running task is not interrupted though)
+				 */
+				future.cancel(true);
+				LOGGER.debug("Attribute prefetch timed out: attributes will be resolved on demand");
+				continue;
+			}
+			catch (final ExecutionException e)
+			{
+				LOGGER.debug("Attribute prefetch failed: attributes will be resolved on demand", e.getCause());
+				continue;
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				for (final CompletableFuture<Map<AttributeFqn, AttributeBag<?>>> pendingFuture : futures)
+				{
+					pendingFuture.cancel(true);
+				}
+
+				break;
+			}
+
+			if (augmentedAttributes == null)
+			{
+				augmentedAttributes = HashCollections.newUpdatableMap(request.getNamedAttributes());
+			}
+
+			for (final Entry<AttributeFqn, AttributeBag<?>> prefetchedAttribute : prefetchedAttributes.entrySet())
+			{
+				augmentedAttributes.putIfAbsent(prefetchedAttribute.getKey(), prefetchedAttribute.getValue());
+			}
+		}
+
+		if (augmentedAttributes == null)
+		{
+			return request;
+		}
+
+		return ImmutableDecisionRequest.getInstance(augmentedAttributes, request.getExtraContentsByCategory(), request.isApplicablePolicyIdListReturned());
+	}
+
+	@Override
+	public DecisionRequestBuilder<?> newRequestBuilder(final int expectedNumOfAttributeCategories, final int expectedTotalNumOfAttributes)
+	{
+		return engine.newRequestBuilder(expectedNumOfAttributeCategories, expectedTotalNumOfAttributes);
+	}
+
+	@Override
+	public DecisionResult evaluate(final DecisionRequest request)
+	{
+		final long deadline = System.nanoTime() + timeoutNanos;
+		return engine.evaluate(completePrefetch(request, startPrefetch(request), deadline));
+	}
+
+	@Override
+	public <INDIVIDUAL_DECISION_REQ_T extends DecisionRequest> Collection<Entry<INDIVIDUAL_DECISION_REQ_T, ? extends DecisionResult>> evaluate(final List<INDIVIDUAL_DECISION_REQ_T> requests)
+			throws IndeterminateEvaluationException
+	{
+		final long deadline = System.nanoTime() + timeoutNanos;
+		final List<List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>>> futuresByRequest = new ArrayList<>(requests.size());
+		for (final INDIVIDUAL_DECISION_REQ_T request : requests)
+		{
+			futuresByRequest.add(startPrefetch(request));
+		}
+
+		final List<DecisionRequest> augmentedRequests = new ArrayList<>(requests.size());
+		/*
+		 * The decorated engine may return its own request objects as result keys (e.g. copies of the requests), not necessarily the ones passed to it, therefore the original requests are looked up
+		 * by request equality. Equal augmented requests - queued in request order - get the same result anyway.
+		 */
+		final Map<DecisionRequest, Deque<INDIVIDUAL_DECISION_REQ_T>> originalRequests = HashCollections.newUpdatableMap(requests.size());
+		for (int i = 0; i < requests.size(); i++)
+		{
+			final INDIVIDUAL_DECISION_REQ_T request = requests.get(i);
+			final DecisionRequest augmentedRequest = completePrefetch(request, futuresByRequest.get(i), deadline);
+			augmentedRequests.add(augmentedRequest);
+			originalRequests.computeIfAbsent(augmentedRequest, k -> new ArrayDeque<>(1)).add(request);
+		}
+
+		final Collection<Entry<DecisionRequest, ? extends DecisionResult>> augmentedResults = engine.evaluate(augmentedRequests);
+		final List<Entry<INDIVIDUAL_DECISION_REQ_T, ? extends DecisionResult>> results = new ArrayList<>(augmentedResults.size());
+		for (final Entry<DecisionRequest, ? extends DecisionResult> augmentedResult : augmentedResults)
+		{
+			final Deque<INDIVIDUAL_DECISION_REQ_T> matchingRequests = originalRequests.get(augmentedResult.getKey());
+			final INDIVIDUAL_DECISION_REQ_T originalRequest = matchingRequests == null ? null : matchingRequests.poll();
+			if (originalRequest == null)
+			{
+				throw new IndeterminateEvaluationException("Result returned by the decorated PDP engine for a request that does not match any (remaining) input request: " + augmentedResult.getKey(),
+						XacmlStatusCode.PROCESSING_ERROR.value());
+			}
+
+			results.add(new SimpleImmutableEntry<>(originalRequest, augmentedResult.getValue()));
+		}
+
+		return results;
+	}
+
+	@Override
+	public Iterable<PrimaryPolicyMetadata> getApplicablePolicies()
+	{
+		return engine.getApplicablePolicies();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (engine instanceof Closeable)
+		{
+			((Closeable) engine).close();
+		}
+	}
+
+}
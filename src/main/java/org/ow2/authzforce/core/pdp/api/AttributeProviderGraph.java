@@ -0,0 +1,491 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactory;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * Named Attribute Provider made of a graph of Attribute Providers depending on each other's attributes (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}), that
+ * resolves independent providers concurrently. The dependency graph is built and checked (no cycle) once at creation. Then, when attributes are requested with
+ * {@link #getAll(Map, EvaluationContext)}, all the providers needed to get them, directly or as dependencies, are called on a given {@link Executor}, each as soon as the providers it depends on have
+ * returned, so that a chain of dependent providers (e.g. user, then organization, then region) takes the time of the longest chain, not the sum of all calls.
+ * <p>
+ * Each provider is called with {@link NamedAttributeProvider#getAll(Map, EvaluationContext)} for all the attributes needed from it in the request, and an evaluation context holding only the values of
+ * the dependencies. If a provider requests other attributes of the graph from its dependency Attribute Provider, these are resolved lazily in the provider's thread. All attributes resolved on the
+ * way are put in the caller's evaluation context.
+ * <p>
+ * Dependencies not provided by any provider in the graph are taken from the request context, i.e. must be in the request (or put in the context by the PDP). They are got from the caller's context
+ * with {@link EvaluationContext#getNamedAttributeValue(AttributeFqn, Datatype)} in the calling thread, so that the context's listeners are notified of their consumption (e.g. for dependency-aware
+ * decision caching). Therefore, the providers must declare all their dependencies on request attributes: the other request attributes are not available to them.
+ * <p>
+ * A good fit for a graph of remote attribute sources is an executor of virtual threads on recent Java versions, or else a dedicated thread pool.
+ */
+public final class AttributeProviderGraph implements CloseableNamedAttributeProvider
+{
+	private static final IllegalArgumentException UNDEFINED_PROVIDER_FACTORIES_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined Attribute Provider factories");
+
+	/*
+	 * Node of the dependency graph, i.e. provider with its provided attributes and dependencies
+	 */
+	private static final class Node
+	{
+		private final CloseableNamedAttributeProvider provider;
+		private final ImmutableMap<AttributeFqn, Datatype<? extends AttributeValue>> dependencies;
+		// set once the graph is complete
+		private ImmutableList<Node> dependencyNodes = ImmutableList.of();
+
+		private Node(final CloseableNamedAttributeProvider provider, final ImmutableMap<AttributeFqn, Datatype<? extends AttributeValue>> dependencies)
+		{
+			this.provider = provider;
+			this.dependencies = dependencies;
+		}
+
+		@Override
+		public String toString()
+		{
+			return provider.toString();
+		}
+	}
+
+	/*
+	 * Dependency Attribute Provider given to the providers, for the dependencies not resolved beforehand
+	 */
+	private final class LazyDependencyResolver implements AttributeProvider
+	{
+		@Override
+		public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+		{
+			final AttributeBag<AV> contextValue = context.getNamedAttributeValue(attributeFQN, datatype);
+			if (contextValue != null)
+			{
+				return contextValue;
+			}
+
+			final Node node = nodesByProvidedAttribute.get(attributeFQN);
+			if (node == null)
+			{
+				return Bags.emptyAttributeBag(datatype, new IndeterminateEvaluationException("Not found in context: " + attributeFQN, XacmlStatusCode.MISSING_ATTRIBUTE.value()));
+			}
+
+			final AttributeBag<AV> value = node.provider.get(attributeFQN, datatype, context);
+			context.putNamedAttributeValueIfAbsent(attributeFQN, value);
+			return value;
+		}
+	}
+
+	private final Executor executor;
+	private final ImmutableList<Node> nodesInDependencyOrder;
+	private final Map<AttributeFqn, Node> nodesByProvidedAttribute;
+	private final ImmutableSet<AttributeDesignatorType> providedAttributes;
+
+	private static Datatype<? extends AttributeValue> getDatatype(final AttributeDesignatorType attribute, final AttributeValueFactoryRegistry attributeValueFactories)
+			throws IllegalArgumentException
+	{
+		final AttributeValueFactory<?> attributeValueFactory = attributeValueFactories.getExtension(attribute.getDataType());
+		if (attributeValueFactory == null)
+		{
+			throw new IllegalArgumentException("Unsupported datatype of attribute " + attribute + ": " + attribute.getDataType());
+		}
+
+		return attributeValueFactory.getDatatype();
+	}
+
+	/*
+	 * Depth-first topological sort, detecting cycles
+	 */
+	private static void visit(final Node node, final Set<Node> visiting, final Set<Node> visited, final List<Node> sortedNodes) throws IllegalArgumentException
+	{
+		if (visited.contains(node))
+		{
+			return;
+		}
+
+		if (!visiting.add(node))
+		{
+			throw new IllegalArgumentException("Cycle in Attribute Provider dependencies involving provider: " + node);
+		}
+
+		for (final Node dependencyNode : node.dependencyNodes)
+		{
+			visit(dependencyNode, visiting, visited, sortedNodes);
+		}
+
+		visiting.remove(node);
+		visited.add(node);
+		sortedNodes.add(node);
+	}
+
+	private AttributeProviderGraph(final List<CloseableNamedAttributeProvider.DependencyAwareFactory> providerFactories, final AttributeValueFactoryRegistry attributeValueFactories,
+			final Executor executor) throws IllegalArgumentException
+	{
+		this.executor = executor;
+		final AttributeProvider dependencyResolver = new LazyDependencyResolver();
+		final List<Node> nodes = new ArrayList<>(providerFactories.size());
+		try
+		{
+			final Map<AttributeFqn, Node> mutableNodesByProvidedAttribute = HashCollections.newUpdatableMap();
+			final ImmutableSet.Builder<AttributeDesignatorType> providedAttributesBuilder = ImmutableSet.builder();
+			for (final CloseableNamedAttributeProvider.DependencyAwareFactory providerFactory : providerFactories)
+			{
+				final Set<AttributeDesignatorType> dependencies = providerFactory.getDependencies();
+				final ImmutableMap.Builder<AttributeFqn, Datatype<? extends AttributeValue>> dependencyDatatypes = ImmutableMap.builder();
+				if (dependencies != null)
+				{
+					for (final AttributeDesignatorType dependency : dependencies)
+					{
+						dependencyDatatypes.put(AttributeFqns.newInstance(dependency), getDatatype(dependency, attributeValueFactories));
+					}
+				}
+
+				final Node node = new Node(providerFactory.getInstance(attributeValueFactories, dependencyResolver), dependencyDatatypes.build());
+				nodes.add(node);
+				for (final AttributeDesignatorType providedAttribute : node.provider.getProvidedAttributes())
+				{
+					final Node otherNode = mutableNodesByProvidedAttribute.putIfAbsent(AttributeFqns.newInstance(providedAttribute), node);
+					if (otherNode != null)
+					{
+						throw new IllegalArgumentException("Conflicting Attribute Providers: attribute " + providedAttribute + " provided by both " + otherNode + " and " + node);
+					}
+
+					providedAttributesBuilder.add(providedAttribute);
+				}
+			}
+
+			for (final Node node : nodes)
+			{
+				final Set<Node> dependencyNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+				for (final AttributeFqn dependency : node.dependencies.keySet())
+				{
+					final Node dependencyNode = mutableNodesByProvidedAttribute.get(dependency);
+					if (dependencyNode != null)
+					{
+						dependencyNodes.add(dependencyNode);
+					}
+				}
+
+				node.dependencyNodes = ImmutableList.copyOf(dependencyNodes);
+			}
+
+			final Set<Node> visiting = Collections.newSetFromMap(new IdentityHashMap<>());
+			final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+			final List<Node> sortedNodes = new ArrayList<>(nodes.size());
+			for (final Node node : nodes)
+			{
+				visit(node, visiting, visited, sortedNodes);
+			}
+
+			this.nodesInDependencyOrder = ImmutableList.copyOf(sortedNodes);
+			this.nodesByProvidedAttribute = HashCollections.newImmutableMap(mutableNodesByProvidedAttribute);
+			this.providedAttributes = providedAttributesBuilder.build();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			for (final Node node : nodes)
+			{
+				try
+				{
+					node.provider.close();
+				}
+				catch (final IOException closeException)
+				{
+					e.addSuppressed(closeException);
+				}
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates the dependency graph of Attribute Providers
+	 *
+	 * @param providerFactories
+	 *            factories of the providers in the graph (each provider is instantiated with a dependency Attribute Provider resolving the attributes provided by the other providers)
+	 * @param attributeValueFactories
+	 *            attribute value factories
+	 * @param executor
+	 *            executor of the calls to the providers
+	 * @return new instance
+	 * @throws IllegalArgumentException
+	 *             if any argument is null, or the datatype of a dependency is not supported, or several providers provide the same attribute, or there is a cycle in the dependencies
+	 */
+	public static AttributeProviderGraph newInstance(final List<CloseableNamedAttributeProvider.DependencyAwareFactory> providerFactories,
+			final AttributeValueFactoryRegistry attributeValueFactories, final Executor executor) throws IllegalArgumentException
+	{
+		if (providerFactories == null)
+		{
+			throw UNDEFINED_PROVIDER_FACTORIES_ARGUMENT_EXCEPTION;
+		}
+
+		Preconditions.checkArgument(attributeValueFactories != null, "Undefined attribute value factories");
+		Preconditions.checkArgument(executor != null, "Undefined executor");
+		return new AttributeProviderGraph(providerFactories, attributeValueFactories, executor);
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return providedAttributes;
+	}
+
+	/*
+	 * Adds an attribute to the attributes to be fetched from the providers, and its provider's dependencies recursively. Attributes already in the caller's context - such as the dependencies not
+	 * provided by the graph - are got with context.getNamedAttributeValue(), which notifies the context's listeners of their consumption, and added to knownValues.
+	 */
+	private void addNeededAttribute(final AttributeFqn attributeFQN, final Datatype<? extends AttributeValue> datatype, final EvaluationContext context,
+			final Map<AttributeFqn, AttributeBag<?>> knownValues, final Map<Node, Map<AttributeFqn, Datatype<? extends AttributeValue>>> neededAttributesByNode)
+			throws IndeterminateEvaluationException
+	{
+		if (knownValues.containsKey(attributeFQN))
+		{
+			return;
+		}
+
+		final Node node = nodesByProvidedAttribute.get(attributeFQN);
+		Map<AttributeFqn, Datatype<? extends AttributeValue>> neededAttributes = node == null ? null : neededAttributesByNode.get(node);
+		if (neededAttributes != null && neededAttributes.containsKey(attributeFQN))
+		{
+			return;
+		}
+
+		final AttributeBag<?> contextValue = context.getNamedAttributeValue(attributeFQN, datatype);
+		if (contextValue != null)
+		{
+			knownValues.put(attributeFQN, contextValue);
+			return;
+		}
+
+		if (node == null)
+		{
+			// not in the request, and not provided by the graph
+			return;
+		}
+
+		if (neededAttributes == null)
+		{
+			neededAttributes = HashCollections.newUpdatableMap();
+			neededAttributesByNode.put(node, neededAttributes);
+			neededAttributes.put(attributeFQN, datatype);
+			for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> dependency : node.dependencies.entrySet())
+			{
+				addNeededAttribute(dependency.getKey(), dependency.getValue(), context, knownValues, neededAttributesByNode);
+			}
+		}
+		else
+		{
+			neededAttributes.put(attributeFQN, datatype);
+		}
+	}
+
+	private static Map<AttributeFqn, AttributeBag<?>> fetch(final Node node, final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final Map<AttributeFqn, AttributeBag<?>> knownValues,
+			final List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> dependencyResults)
+	{
+		final Map<AttributeFqn, AttributeBag<?>> contextValues = HashCollections.newUpdatableMap(knownValues);
+		for (final CompletableFuture<Map<AttributeFqn, AttributeBag<?>>> dependencyResult : dependencyResults)
+		{
+			// already completed
+			contextValues.putAll(dependencyResult.join());
+		}
+
+		final EvaluationContext context = new DetachedEvaluationContext(contextValues);
+		final Map<AttributeFqn, AttributeBag<?>> results;
+		try
+		{
+			results = node.provider.getAll(attributes, context);
+		}
+		catch (final IndeterminateEvaluationException e)
+		{
+			throw new CompletionException(e);
+		}
+
+		/*
+		 * Include the attributes resolved lazily or put in the context by the provider
+		 */
+		final Map<AttributeFqn, AttributeBag<?>> allResults = HashCollections.newUpdatableMap(results);
+		final Iterator<Entry<AttributeFqn, AttributeBag<?>>> contextIterator = context.getNamedAttributes();
+		while (contextIterator.hasNext())
+		{
+			final Entry<AttributeFqn, AttributeBag<?>> contextEntry = contextIterator.next();
+			if (!contextValues.containsKey(contextEntry.getKey()))
+			{
+				allResults.putIfAbsent(contextEntry.getKey(), contextEntry.getValue());
+			}
+		}
+
+		return allResults;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The providers needed to get {@code attributes} are called concurrently as far as their dependencies allow. Every attribute resolved on the way (including dependencies) is put in {@code context}.
+	 * The values of the dependencies are got from {@code context} in the calling thread before any provider is called.
+	 */
+	@Override
+	public Map<AttributeFqn, AttributeBag<?>> getAll(final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final EvaluationContext context)
+			throws IndeterminateEvaluationException
+	{
+		// only read by the provider threads from now on
+		final Map<AttributeFqn, AttributeBag<?>> knownValues = HashCollections.newUpdatableMap();
+		final Map<Node, Map<AttributeFqn, Datatype<? extends AttributeValue>>> neededAttributesByNode = new IdentityHashMap<>();
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			addNeededAttribute(attribute.getKey(), attribute.getValue(), context, knownValues, neededAttributesByNode);
+		}
+
+		/*
+		 * Schedule in dependency order, so that the futures of the dependencies are created first
+		 */
+		final Map<Node, CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> resultsByNode = new IdentityHashMap<>();
+		for (final Node node : nodesInDependencyOrder)
+		{
+			final Map<AttributeFqn, Datatype<? extends AttributeValue>> neededAttributes = neededAttributesByNode.get(node);
+			if (neededAttributes == null)
+			{
+				continue;
+			}
+
+			final List<CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> dependencyResults = new ArrayList<>(node.dependencyNodes.size());
+			for (final Node dependencyNode : node.dependencyNodes)
+			{
+				final CompletableFuture<Map<AttributeFqn, AttributeBag<?>>> dependencyResult = resultsByNode.get(dependencyNode);
+				if (dependencyResult != null)
+				{
+					dependencyResults.add(dependencyResult);
+				}
+			}
+
+			final CompletableFuture<Map<AttributeFqn, AttributeBag<?>>> result = dependencyResults.isEmpty()
+					? CompletableFuture.supplyAsync(() -> fetch(node, neededAttributes, knownValues, dependencyResults), executor)
+					: CompletableFuture.allOf(dependencyResults.toArray(new CompletableFuture<?>[dependencyResults.size()]))
+							.thenApplyAsync(v -> fetch(node, neededAttributes, knownValues, dependencyResults), executor);
+			resultsByNode.put(node, result);
+		}
+
+		for (final Entry<Node, CompletableFuture<Map<AttributeFqn, AttributeBag<?>>>> nodeResult : resultsByNode.entrySet())
+		{
+			final Map<AttributeFqn, AttributeBag<?>> values;
+			try
+			{
+				values = nodeResult.getValue().join();
+			}
+			catch (final CompletionException e)
+			{
+				final Throwable cause = e.getCause();
+				if (cause instanceof IndeterminateEvaluationException)
+				{
+					throw (IndeterminateEvaluationException) cause;
+				}
+
+				if (cause instanceof UnsupportedOperationException)
+				{
+					throw (UnsupportedOperationException) cause;
+				}
+
+				throw new IndeterminateEvaluationException("Error getting attributes from Attribute Provider " + nodeResult.getKey(), XacmlStatusCode.PROCESSING_ERROR.value(), cause);
+			}
+
+			for (final Entry<AttributeFqn, AttributeBag<?>> value : values.entrySet())
+			{
+				context.putNamedAttributeValueIfAbsent(value.getKey(), value.getValue());
+			}
+		}
+
+		final Map<AttributeFqn, AttributeBag<?>> results = HashCollections.newUpdatableMap(attributes.size());
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			final AttributeBag<?> value = context.getNamedAttributeValue(attribute.getKey(), attribute.getValue());
+			if (value == null)
+			{
+				throw new UnsupportedOperationException("Attribute not provided by any Attribute Provider in the graph: " + attribute.getKey());
+			}
+
+			results.put(attribute.getKey(), value);
+		}
+
+		return results;
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final AttributeBag<?> value = getAll(Collections.singletonMap(attributeFQN, datatype), context).get(attributeFQN);
+		/*
+		 * Datatype checked by getAll()
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> result = (AttributeBag<AV>) value;
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		IOException closeException = null;
+		for (final Node node : nodesInDependencyOrder)
+		{
+			try
+			{
+				node.provider.close();
+			}
+			catch (final IOException e)
+			{
+				if (closeException == null)
+				{
+					closeException = e;
+				}
+				else
+				{
+					closeException.addSuppressed(e);
+				}
+			}
+		}
+
+		if (closeException != null)
+		{
+			throw closeException;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Optional;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+
+/**
+ * Indeterminate evaluation caused by an Attribute Provider that is unavailable or too slow, e.g. call timed out, too many concurrent calls, or circuit open (see
+ * {@link ResilientNamedAttributeProvider}). It may carry a fallback value, i.e. the last value successfully returned by the provider for the same attribute, that the caller may use instead of
+ * failing the evaluation, at the risk of using stale data.
+ */
+public class AttributeProviderUnavailableException extends IndeterminateEvaluationException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient AttributeBag<?> fallbackValue;
+
+	/**
+	 * Instantiates with error message, XACML StatusCode, internal cause and fallback value
+	 * 
+	 * @param message
+	 *            exception message
+	 * @param statusCode
+	 *            XACML StatusCode value, must be a valid xs:anyURI (used as XACML StatusCode Value)
+	 * @param cause
+	 *            internal cause of error (may be null)
+	 * @param fallbackValue
+	 *            fallback value (null if none)
+	 */
+	public AttributeProviderUnavailableException(final String message, final String statusCode, final Throwable cause, final AttributeBag<?> fallbackValue)
+	{
+		super(message, statusCode, cause);
+		this.fallbackValue = fallbackValue;
+	}
+
+	/**
+	 * Get the fallback value, i.e. the last value successfully returned by the provider for the same attribute (and same dependency values)
+	 * 
+	 * @return fallback value if any (the datatype is the requested one), else empty
+	 */
+	public Optional<AttributeBag<?>> getFallbackValue()
+	{
+		return Optional.ofNullable(fallbackValue);
+	}
+
+}
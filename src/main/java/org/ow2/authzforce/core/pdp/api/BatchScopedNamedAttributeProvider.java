@@ -0,0 +1,192 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * {@link CloseableNamedAttributeProvider} decorator sharing the attribute values (bags) returned by the decorated provider across the individual decision requests of a batch, i.e. while an
+ * {@link AttributeBatchScope} is open in the current thread (e.g. with {@link BatchScopedPdpEngine}). Values are shared with a key made of the attribute name and datatype, and the values of the
+ * attributes that the decorated provider depends on (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}), e.g. the subject ID: the provider's result is assumed to
+ * depend only on these values. Out of any batch scope, the decorated provider is called directly.
+ * <p>
+ * WARNING: a provider that reads request attributes directly from the evaluation context, without declaring them as dependencies, would have the values returned for the first individual request
+ * served to the other requests of the batch (e.g. a subject's roles to another subject). Therefore, a provider factory without any declared dependency is rejected, unless explicitly allowed (see
+ * {@link #newFactory(CloseableNamedAttributeProvider.DependencyAwareFactory, boolean)}), i.e. unless the provided attributes do not depend on the request at all.
+ * <p>
+ * Unlike {@link CachingNamedAttributeProvider}, nothing is kept once the batch is over, so there is no staleness beyond the batch evaluation. Errors (Indeterminate) are not shared.
+ * <p>
+ * Instances are created with a {@link CloseableNamedAttributeProvider.DependencyAwareFactory} created by {@link #newFactory(CloseableNamedAttributeProvider.DependencyAwareFactory, boolean)}.
+ */
+public final class BatchScopedNamedAttributeProvider implements CloseableNamedAttributeProvider
+{
+	private static final IllegalArgumentException NULL_FACTORY_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined Attribute Provider factory");
+
+	/**
+	 * Creates a dependency-aware factory decorating the providers created by another factory with batch-scoped sharing of attribute values
+	 *
+	 * @param providerFactory
+	 *            factory of the providers to be decorated, whose provided attribute values must depend only on the values of its declared dependencies
+	 *            ({@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()})
+	 * @param allowNoDependencies
+	 *            true iff {@code providerFactory} may have no declared dependency, i.e. the provided attribute values do not depend on the request at all and may be shared by all the individual
+	 *            requests of a batch
+	 * @return dependency-aware factory of {@link BatchScopedNamedAttributeProvider}s, with the same dependencies as {@code providerFactory}
+	 * @throws IllegalArgumentException
+	 *             if {@code providerFactory == null}, or {@code providerFactory} has no declared dependency and {@code allowNoDependencies} is false
+	 */
+	public static DependencyAwareFactory newFactory(final DependencyAwareFactory providerFactory, final boolean allowNoDependencies) throws IllegalArgumentException
+	{
+		if (providerFactory == null)
+		{
+			throw NULL_FACTORY_ARGUMENT_EXCEPTION;
+		}
+
+		final Set<AttributeDesignatorType> providerDependencies = providerFactory.getDependencies();
+		if (!allowNoDependencies && (providerDependencies == null || providerDependencies.isEmpty()))
+		{
+			throw new IllegalArgumentException("Attribute Provider factory without declared dependencies (" + providerFactory
+					+ "): attribute values would be shared by all the individual requests of a batch. Allow no dependencies explicitly if the provided attributes do not depend on the request.");
+		}
+
+		return new DependencyAwareFactory()
+		{
+			@Override
+			public Set<AttributeDesignatorType> getDependencies()
+			{
+				return providerFactory.getDependencies();
+			}
+
+			@Override
+			public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+			{
+				final CloseableNamedAttributeProvider provider = providerFactory.getInstance(attributeValueFactories, dependencyAttributeProvider);
+				return new BatchScopedNamedAttributeProvider(provider, new ProviderDependencies(providerFactory.getDependencies(), attributeValueFactories, dependencyAttributeProvider));
+			}
+		};
+	}
+
+	private final CloseableNamedAttributeProvider provider;
+	private final ProviderDependencies dependencies;
+
+	private BatchScopedNamedAttributeProvider(final CloseableNamedAttributeProvider provider, final ProviderDependencies dependencies)
+	{
+		assert provider != null && dependencies != null;
+		this.provider = provider;
+		this.dependencies = dependencies;
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return provider.getProvidedAttributes();
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final Map<DependentAttributeKey, AttributeBag<?>> scopeValues = AttributeBatchScope.currentValues();
+		if (scopeValues == null)
+		{
+			return provider.get(attributeFQN, datatype, context);
+		}
+
+		final DependentAttributeKey key = new DependentAttributeKey(attributeFQN, datatype, dependencies.resolve(context));
+		/*
+		 * Datatype is part of the key
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> sharedValue = (AttributeBag<AV>) scopeValues.get(key);
+		if (sharedValue != null)
+		{
+			return sharedValue;
+		}
+
+		final AttributeBag<AV> value = provider.get(attributeFQN, datatype, context);
+		scopeValues.put(key, value);
+		return value;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * In a batch scope, only the attributes not already returned in the scope are requested from the decorated provider, at once with {@link NamedAttributeProvider#getAll(Map, EvaluationContext)}.
+	 */
+	@Override
+	public Map<AttributeFqn, AttributeBag<?>> getAll(final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final EvaluationContext context)
+			throws IndeterminateEvaluationException
+	{
+		final Map<DependentAttributeKey, AttributeBag<?>> scopeValues = AttributeBatchScope.currentValues();
+		if (scopeValues == null)
+		{
+			return provider.getAll(attributes, context);
+		}
+
+		final List<AttributeBag<?>> dependencyValues = dependencies.resolve(context);
+		final Map<AttributeFqn, AttributeBag<?>> results = HashCollections.newUpdatableMap(attributes.size());
+		final Map<AttributeFqn, Datatype<? extends AttributeValue>> missedAttributes = HashCollections.newUpdatableMap(attributes.size());
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			final AttributeBag<?> sharedValue = scopeValues.get(new DependentAttributeKey(attribute.getKey(), attribute.getValue(), dependencyValues));
+			if (sharedValue == null)
+			{
+				missedAttributes.put(attribute.getKey(), attribute.getValue());
+			}
+			else
+			{
+				results.put(attribute.getKey(), sharedValue);
+			}
+		}
+
+		if (missedAttributes.isEmpty())
+		{
+			return results;
+		}
+
+		final Map<AttributeFqn, AttributeBag<?>> providedValues = provider.getAll(missedAttributes, context);
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> missedAttribute : missedAttributes.entrySet())
+		{
+			final AttributeBag<?> value = providedValues.get(missedAttribute.getKey());
+			if (value != null)
+			{
+				scopeValues.put(new DependentAttributeKey(missedAttribute.getKey(), missedAttribute.getValue(), dependencyValues), value);
+				results.put(missedAttribute.getKey(), value);
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		provider.close();
+	}
+
+}
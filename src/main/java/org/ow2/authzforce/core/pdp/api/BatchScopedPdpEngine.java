@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+
+/**
+ * {@link PdpEngine} decorator evaluating each batch of individual decision requests ({@link #evaluate(List)}) in an {@link AttributeBatchScope}, so that the {@link BatchScopedNamedAttributeProvider}s
+ * fetch the attributes shared by the individual requests (e.g. same subject, different resources) once per batch, instead of once per individual request. This requires the decorated engine to
+ * evaluate the individual requests of a batch in the calling thread, as AuthzForce PDP engines do; else the attribute values are just not shared.
+ * <p>
+ * {@link #evaluate(DecisionRequest)} is passed to the decorated engine as is.
+ * <p>
+ * Thread-safe if the decorated engine is.
+ */
+public final class BatchScopedPdpEngine implements CloseablePdpEngine
+{
+	private static final IllegalArgumentException NULL_ENGINE_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined PDP engine");
+
+	private final PdpEngine engine;
+
+	private BatchScopedPdpEngine(final PdpEngine engine)
+	{
+		assert engine != null;
+		this.engine = engine;
+	}
+
+	/**
+	 * Decorates a PDP engine with batch-scoped attribute sharing. If {@code engine} is {@link Closeable} (e.g. {@link CloseablePdpEngine}), {@link #close()} closes it.
+	 * 
+	 * @param engine
+	 *            decorated PDP engine
+	 * @return batch-scoped PDP engine
+	 * @throws IllegalArgumentException
+	 *             if {@code engine == null}
+	 */
+	public static BatchScopedPdpEngine wrap(final PdpEngine engine) throws IllegalArgumentException
+	{
+		if (engine == null)
+		{
+			throw NULL_ENGINE_ARGUMENT_EXCEPTION;
+		}
+
+		return new BatchScopedPdpEngine(engine);
+	}
+
+	@Override
+	public DecisionRequestBuilder<?> newRequestBuilder(final int expectedNumOfAttributeCategories, final int expectedTotalNumOfAttributes)
+	{
+		return engine.newRequestBuilder(expectedNumOfAttributeCategories, expectedTotalNumOfAttributes);
+	}
+
+	@Override
+	public DecisionResult evaluate(final DecisionRequest request)
+	{
+		return engine.evaluate(request);
+	}
+
+	@Override
+	public <INDIVIDUAL_DECISION_REQ_T extends DecisionRequest> Collection<Entry<INDIVIDUAL_DECISION_REQ_T, ? extends DecisionResult>> evaluate(final List<INDIVIDUAL_DECISION_REQ_T> requests)
+			throws IndeterminateEvaluationException
+	{
+		final AttributeBatchScope scope = AttributeBatchScope.open();
+		try
+		{
+			return engine.evaluate(requests);
+		}
+		finally
+		{
+			scope.close();
+		}
+	}
+
+	@Override
+	public Iterable<PrimaryPolicyMetadata> getApplicablePolicies()
+	{
+		return engine.getApplicablePolicies();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (engine instanceof Closeable)
+		{
+			((Closeable) engine).close();
+		}
+	}
+
+}
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactory;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * {@link CloseableNamedAttributeProvider} decorator short-circuiting calls to the decorated provider that would return empty bags, e.g. "no delegation for this user", to save a round trip to the
+ * attribute source. It uses a Bloom filter of the values of a key attribute - one of the dependencies of the decorated provider, e.g. the subject ID - for which the decorated provider may return
+ * non-empty bags. If the key attribute value is definitely not in the filter, an empty bag is returned without calling the decorated provider; else (key possibly present, with a configurable false
+ * positive probability) the decorated provider is called.
+ * <p>
+ * The filter is built from a {@link KeySnapshot} - e.g. a local file exported periodically from the attribute source - at creation, then rebuilt with {@link #rebuild()}, or periodically if
+ * {@link FactoryBuilder#rebuildInterval(long, TimeUnit, Executor)} is set. The snapshot must include all keys with non-empty values, else wrong empty bags are returned: the rebuild interval bounds the
+ * staleness.
+ * <p>
+ * Key attribute values are compared with the filter in their lexical form, i.e. the string form of the single item of {@link AttributeValue#getContent()}. If the key attribute has several values in
+ * the context, the decorated provider is not called only if none of them is in the filter; if it has none, the decorated provider is always called.
+ * <p>
+ * Only the attributes provided by the decorated provider ({@link #getProvidedAttributes()}) are short-circuited, others are requested from the decorated provider as usual (which normally throws
+ * {@link UnsupportedOperationException}). The empty bags returned without calling the decorated provider have the source set with {@link FactoryBuilder#attributeSource(AttributeSource)}.
+ */
+public final class BloomFilteredNamedAttributeProvider implements CloseableNamedAttributeProvider
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(BloomFilteredNamedAttributeProvider.class);
+
+	private static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	/**
+	 * Snapshot of the keys (key attribute values in lexical form) for which the decorated provider may return non-empty bags
+	 */
+	@FunctionalInterface
+	public interface KeySnapshot
+	{
+		/**
+		 * Get the keys in the snapshot
+		 *
+		 * @return keys
+		 * @throws IOException
+		 *             error reading the snapshot
+		 */
+		Collection<String> getKeys() throws IOException;
+
+		/**
+		 * Creates a snapshot read from a text file with one key per line (UTF-8, blank lines ignored). The file is read again on each call to {@link #getKeys()}.
+		 *
+		 * @param file
+		 *            snapshot file
+		 * @return snapshot
+		 * @throws IllegalArgumentException
+		 *             if {@code file == null}
+		 */
+		static KeySnapshot fromFile(final Path file) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(file != null, "Undefined key snapshot file");
+			return () -> Files.readAllLines(file, StandardCharsets.UTF_8).stream().filter(line -> !line.trim().isEmpty()).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Builder of {@link CloseableNamedAttributeProvider.DependencyAwareFactory} creating {@link BloomFilteredNamedAttributeProvider}s. Not thread-safe.
+	 */
+	public static final class FactoryBuilder
+	{
+		private final DependencyAwareFactory providerFactory;
+		private final AttributeDesignatorType keyAttribute;
+		private final KeySnapshot keySnapshot;
+		private double falsePositiveProbability = DEFAULT_FALSE_POSITIVE_PROBABILITY;
+		private long rebuildIntervalNanos = -1;
+		private Executor rebuildExecutor = null;
+		private Ticker ticker = Ticker.systemTicker();
+		private AttributeSource attributeSource = null;
+
+		private FactoryBuilder(final DependencyAwareFactory providerFactory, final AttributeDesignatorType keyAttribute, final KeySnapshot keySnapshot)
+		{
+			// use BloomFilteredNamedAttributeProvider#newFactoryBuilder(...)
+			Preconditions.checkArgument(providerFactory != null, "Undefined Attribute Provider factory");
+			Preconditions.checkArgument(keyAttribute != null, "Undefined key attribute");
+			Preconditions.checkArgument(keySnapshot != null, "Undefined key snapshot");
+			final Set<AttributeDesignatorType> dependencies = providerFactory.getDependencies();
+			Preconditions.checkArgument(dependencies != null && dependencies.contains(keyAttribute), "Key attribute is not a dependency of the Attribute Provider: %s", keyAttribute);
+			this.providerFactory = providerFactory;
+			this.keyAttribute = keyAttribute;
+			this.keySnapshot = keySnapshot;
+		}
+
+		/**
+		 * Sets the false positive probability of the Bloom filter, i.e. the probability that the decorated provider is called for a key that is not in the snapshot. Default: 0.01.
+		 *
+		 * @param probability
+		 *            false positive probability, in ]0, 1[
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code probability} is not in ]0, 1[
+		 */
+		public FactoryBuilder falsePositiveProbability(final double probability) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(probability > 0 && probability < 1, "Invalid false positive probability (must be in ]0, 1[): %s", probability);
+			this.falsePositiveProbability = probability;
+			return this;
+		}
+
+		/**
+		 * Enables periodic rebuild of the filter from the key snapshot. Default: disabled (use {@link BloomFilteredNamedAttributeProvider#rebuild()} to rebuild explicitly).
+		 *
+		 * @param interval
+		 *            minimum time between two rebuilds (strictly positive). The rebuild is triggered by the first attribute request after this interval.
+		 * @param unit
+		 *            unit of {@code interval}
+		 * @param executor
+		 *            executor of the rebuilds
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code interval <= 0 || unit == null || executor == null}
+		 */
+		public FactoryBuilder rebuildInterval(final long interval, final TimeUnit unit, final Executor executor) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(interval > 0, "Invalid Bloom filter rebuild interval (must be > 0): %s", interval);
+			Preconditions.checkArgument(unit != null, "Undefined Bloom filter rebuild interval unit");
+			Preconditions.checkArgument(executor != null, "Undefined Bloom filter rebuild executor");
+			this.rebuildIntervalNanos = unit.toNanos(interval);
+			this.rebuildExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used to schedule rebuilds. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public FactoryBuilder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Sets the source of the empty bags returned without calling the decorated provider, which should be the source of the bags returned by the decorated provider. Default: custom source
+		 * named after the class of the decorated provider.
+		 *
+		 * @param source
+		 *            source of the short-circuited empty bags
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code source == null}
+		 */
+		public FactoryBuilder attributeSource(final AttributeSource source) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(source != null, "Undefined attribute source");
+			this.attributeSource = source;
+			return this;
+		}
+
+		/**
+		 * Creates the factory
+		 *
+		 * @return dependency-aware factory of {@link BloomFilteredNamedAttributeProvider}s, with the same dependencies as the decorated factory. Its {@code getInstance(...)} method builds the
+		 *         filter and throws {@link IllegalArgumentException} if the key snapshot cannot be read.
+		 */
+		public DependencyAwareFactory build()
+		{
+			final FilterSettings settings = new FilterSettings(this);
+			return new DependencyAwareFactory()
+			{
+				@Override
+				public Set<AttributeDesignatorType> getDependencies()
+				{
+					return providerFactory.getDependencies();
+				}
+
+				@Override
+				public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+				{
+					final AttributeValueFactory<?> keyValueFactory = attributeValueFactories.getExtension(keyAttribute.getDataType());
+					if (keyValueFactory == null)
+					{
+						throw new IllegalArgumentException("Unsupported datatype of key attribute " + keyAttribute + ": " + keyAttribute.getDataType());
+					}
+
+					final CloseableNamedAttributeProvider provider = providerFactory.getInstance(attributeValueFactories, dependencyAttributeProvider);
+					final AttributeSource source = settings.attributeSource == null ? AttributeSources.newCustomSource(provider.getClass().getName()) : settings.attributeSource;
+					try
+					{
+						return new BloomFilteredNamedAttributeProvider(provider, keyValueFactory.getDatatype(), dependencyAttributeProvider, source, settings);
+					}
+					catch (final IOException e)
+					{
+						try
+						{
+							provider.close();
+						}
+						catch (final IOException closeException)
+						{
+							e.addSuppressed(closeException);
+						}
+
+						throw new IllegalArgumentException("Failed to build Bloom filter from key snapshot", e);
+					}
+				}
+			};
+		}
+	}
+
+	/*
+	 * Immutable copy of the builder settings
+	 */
+	private static final class FilterSettings
+	{
+		private final AttributeFqn keyAttributeFqn;
+		private final KeySnapshot keySnapshot;
+		private final double falsePositiveProbability;
+		private final long rebuildIntervalNanos;
+		private final Executor rebuildExecutor;
+		private final Ticker ticker;
+		// null if default
+		private final AttributeSource attributeSource;
+
+		private FilterSettings(final FactoryBuilder builder)
+		{
+			this.keyAttributeFqn = AttributeFqns.newInstance(builder.keyAttribute);
+			this.keySnapshot = builder.keySnapshot;
+			this.falsePositiveProbability = builder.falsePositiveProbability;
+			this.rebuildIntervalNanos = builder.rebuildIntervalNanos;
+			this.rebuildExecutor = builder.rebuildExecutor;
+			this.ticker = builder.ticker;
+			this.attributeSource = builder.attributeSource;
+		}
+	}
+
+	/**
+	 * Creates a builder of dependency-aware factory decorating the providers created by another factory with a Bloom filter
+	 *
+	 * @param providerFactory
+	 *            factory of the providers to be decorated
+	 * @param keyAttribute
+	 *            key attribute, must be one of the dependencies of {@code providerFactory}
+	 * @param keySnapshot
+	 *            source of the keys for which the decorated provider may return non-empty bags
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if an argument is null, or {@code keyAttribute} is not a dependency of {@code providerFactory}
+	 */
+	public static FactoryBuilder newFactoryBuilder(final DependencyAwareFactory providerFactory, final AttributeDesignatorType keyAttribute, final KeySnapshot keySnapshot)
+			throws IllegalArgumentException
+	{
+		return new FactoryBuilder(providerFactory, keyAttribute, keySnapshot);
+	}
+
+	private final CloseableNamedAttributeProvider provider;
+	private final Set<AttributeFqn> providedAttributeFqns;
+	private final Datatype<? extends AttributeValue> keyDatatype;
+	private final AttributeProvider dependencyAttributeProvider;
+	private final AttributeSource source;
+	private final FilterSettings settings;
+
+	private volatile BloomFilter<CharSequence> filter;
+	private volatile long nextRebuildTime;
+	private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+	private final AtomicLong shortCircuitCount = new AtomicLong(0);
+
+	private BloomFilteredNamedAttributeProvider(final CloseableNamedAttributeProvider provider, final Datatype<? extends AttributeValue> keyDatatype,
+			final AttributeProvider dependencyAttributeProvider, final AttributeSource source, final FilterSettings settings) throws IOException
+	{
+		assert provider != null && keyDatatype != null && source != null && settings != null;
+		this.provider = provider;
+		final Set<AttributeDesignatorType> providedAttributes = provider.getProvidedAttributes();
+		this.providedAttributeFqns = HashCollections.newUpdatableSet(providedAttributes.size());
+		for (final AttributeDesignatorType providedAttribute : providedAttributes)
+		{
+			providedAttributeFqns.add(AttributeFqns.newInstance(providedAttribute));
+		}
+
+		this.keyDatatype = keyDatatype;
+		this.dependencyAttributeProvider = dependencyAttributeProvider;
+		this.source = source;
+		this.settings = settings;
+		this.filter = newFilter();
+		this.nextRebuildTime = settings.ticker.read() + settings.rebuildIntervalNanos;
+	}
+
+	private BloomFilter<CharSequence> newFilter() throws IOException
+	{
+		final Collection<String> keys = settings.keySnapshot.getKeys();
+		final BloomFilter<CharSequence> newFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), Math.max(keys.size(), 1), settings.falsePositiveProbability);
+		for (final String key : keys)
+		{
+			newFilter.put(key);
+		}
+
+		LOGGER.debug("Built Bloom filter of {} keys for attribute {}", keys.size(), settings.keyAttributeFqn);
+		return newFilter;
+	}
+
+	/**
+	 * Rebuilds the filter from the key snapshot, and replaces the current one atomically. Callers keep using the current filter until then.
+	 *
+	 * @throws IOException
+	 *             error reading the key snapshot (the current filter is kept)
+	 */
+	public void rebuild() throws IOException
+	{
+		this.filter = newFilter();
+	}
+
+	/**
+	 * Get the number of calls answered with an empty bag without calling the decorated provider
+	 *
+	 * @return number of short-circuited calls
+	 */
+	public long getShortCircuitCount()
+	{
+		return shortCircuitCount.get();
+	}
+
+	private void scheduleRebuildIfDue()
+	{
+		if (settings.rebuildExecutor == null || settings.ticker.read() - nextRebuildTime < 0 || !rebuilding.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			settings.rebuildExecutor.execute(() -> {
+				try
+				{
+					rebuild();
+				}
+				catch (final IOException | RuntimeException e)
+				{
+					LOGGER.warn("Failed to rebuild Bloom filter of attribute {}: keeping the current one", settings.keyAttributeFqn, e);
+				}
+				finally
+				{
+					nextRebuildTime = settings.ticker.read() + settings.rebuildIntervalNanos;
+					rebuilding.set(false);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			LOGGER.debug("Rebuild of Bloom filter of attribute {} rejected by executor", settings.keyAttributeFqn, e);
+			nextRebuildTime = settings.ticker.read() + settings.rebuildIntervalNanos;
+			rebuilding.set(false);
+		}
+	}
+
+	/*
+	 * Returns true iff none of the key values is in the filter, i.e. the decorated provider returns empty bags
+	 */
+	private boolean isDefinitelyAbsent(final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final AttributeBag<?> keys = dependencyAttributeProvider.get(settings.keyAttributeFqn, keyDatatype, context);
+		if (keys.isEmpty())
+		{
+			return false;
+		}
+
+		scheduleRebuildIfDue();
+		final BloomFilter<CharSequence> currentFilter = filter;
+		for (final AttributeValue key : keys)
+		{
+			final List<Serializable> content = key.getContent();
+			if (content.size() != 1 || currentFilter.mightContain(String.valueOf(content.get(0))))
+			{
+				return false;
+			}
+		}
+
+		shortCircuitCount.incrementAndGet();
+		return true;
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return provider.getProvidedAttributes();
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		if (providedAttributeFqns.contains(attributeFQN) && isDefinitelyAbsent(context))
+		{
+			return Bags.emptyAttributeBag(datatype, null, source);
+		}
+
+		return provider.get(attributeFQN, datatype, context);
+	}
+
+	@Override
+	public Map<AttributeFqn, AttributeBag<?>> getAll(final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final EvaluationContext context)
+			throws IndeterminateEvaluationException
+	{
+		/*
+		 * Attributes not provided by the decorated provider are left to it
+		 */
+		if (!providedAttributeFqns.containsAll(attributes.keySet()) || !isDefinitelyAbsent(context))
+		{
+			return provider.getAll(attributes, context);
+		}
+
+		final Map<AttributeFqn, AttributeBag<?>> results = HashCollections.newUpdatableMap(attributes.size());
+		for (final Map.Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			results.put(attribute.getKey(), Bags.emptyAttributeBag(attribute.getValue(), null, source));
+		}
+
+		return results;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		provider.close();
+	}
+
+}
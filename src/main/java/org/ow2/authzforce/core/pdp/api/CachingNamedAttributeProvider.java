@@ -0,0 +1,430 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * {@link CloseableNamedAttributeProvider} decorator caching the attribute values (bags) returned by the decorated provider across requests (evaluation contexts), e.g. to avoid calling a remote
+ * directory (LDAP, HTTP...) for each request. Attribute values are cached with a key made of the attribute name and datatype, and the values of the attributes that the decorated provider depends on
+ * (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}), e.g. the subject ID: the provider's result is assumed to depend only on these values (during the cache entry's
+ * time-to-live).
+ * <p>
+ * Features:
+ * <ul>
+ * <li>time-to-live (TTL) per provided attribute;</li>
+ * <li>maximum number of cached attribute bags;</li>
+ * <li>refresh-ahead: cached values still valid but close to expiry are reloaded in the background, so that hot entries (e.g. for active users) never expire on the request path.</li>
+ * </ul>
+ * Errors (Indeterminate) are not cached. Since the decorated provider is created by the decorated factory, instances are created with a {@link CloseableNamedAttributeProvider.DependencyAwareFactory}
+ * built by {@link #newFactoryBuilder(CloseableNamedAttributeProvider.DependencyAwareFactory)}.
+ */
+public final class CachingNamedAttributeProvider implements CloseableNamedAttributeProvider
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(CachingNamedAttributeProvider.class);
+
+	private static final long DEFAULT_MAX_SIZE = 10000;
+	private static final long DEFAULT_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/**
+	 * Builder of {@link CloseableNamedAttributeProvider.DependencyAwareFactory} creating {@link CachingNamedAttributeProvider}s. Not thread-safe.
+	 */
+	public static final class FactoryBuilder
+	{
+		private final DependencyAwareFactory providerFactory;
+		private long maxSize = DEFAULT_MAX_SIZE;
+		private long defaultTtlNanos = DEFAULT_TTL_NANOS;
+		private final Map<AttributeFqn, Long> ttlNanosByAttribute = HashCollections.newUpdatableMap();
+		private double refreshAheadRatio = 0;
+		private Executor refreshExecutor = null;
+		private Ticker ticker = Ticker.systemTicker();
+
+		private FactoryBuilder(final DependencyAwareFactory providerFactory)
+		{
+			// use CachingNamedAttributeProvider#newFactoryBuilder(DependencyAwareFactory)
+			Preconditions.checkArgument(providerFactory != null, "Undefined Attribute Provider factory");
+			this.providerFactory = providerFactory;
+		}
+
+		/**
+		 * Sets the maximum number of cached attribute bags. Default: 10000.
+		 *
+		 * @param maximumSize
+		 *            maximum number of entries (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumSize <= 0}
+		 */
+		public FactoryBuilder maximumSize(final long maximumSize) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumSize > 0, "Invalid maximum cache size (must be > 0): %s", maximumSize);
+			this.maxSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Sets the default time-to-live of cached attribute bags, i.e. for attributes without specific TTL set with {@link #timeToLive(AttributeDesignatorType, long, TimeUnit)}. Default: 1 minute.
+		 *
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null}
+		 */
+		public FactoryBuilder defaultTimeToLive(final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.defaultTtlNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the time-to-live of a given provided attribute's cached bags
+		 *
+		 * @param attribute
+		 *            provided attribute (only Category, Issuer and AttributeId are taken into account)
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code attribute == null || duration <= 0 || unit == null}
+		 */
+		public FactoryBuilder timeToLive(final AttributeDesignatorType attribute, final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(attribute != null, "Undefined attribute");
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.ttlNanosByAttribute.put(AttributeFqns.newInstance(attribute), unit.toNanos(duration));
+			return this;
+		}
+
+		/**
+		 * Enables refresh-ahead: when a cached attribute bag is requested after {@code ratio} x TTL since it was loaded, it is returned as usual, and reloaded asynchronously with
+		 * {@code executor}. Default: disabled.
+		 *
+		 * @param ratio
+		 *            fraction of the TTL after which entries are refreshed, in ]0, 1[
+		 * @param executor
+		 *            executor of refresh tasks
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code ratio} is not in ]0, 1[, or {@code executor == null}
+		 */
+		public FactoryBuilder refreshAhead(final double ratio, final Executor executor) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(ratio > 0 && ratio < 1, "Invalid refresh-ahead ratio (must be in ]0, 1[): %s", ratio);
+			Preconditions.checkArgument(executor != null, "Undefined refresh executor");
+			this.refreshAheadRatio = ratio;
+			this.refreshExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used for entry expiry and refresh. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public FactoryBuilder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Creates the factory
+		 *
+		 * @return dependency-aware factory of {@link CachingNamedAttributeProvider}s, with the same dependencies as the decorated factory
+		 */
+		public DependencyAwareFactory build()
+		{
+			final CacheSettings settings = new CacheSettings(this);
+			return new DependencyAwareFactory()
+			{
+				@Override
+				public Set<AttributeDesignatorType> getDependencies()
+				{
+					return providerFactory.getDependencies();
+				}
+
+				@Override
+				public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+				{
+					final CloseableNamedAttributeProvider provider = providerFactory.getInstance(attributeValueFactories, dependencyAttributeProvider);
+					return new CachingNamedAttributeProvider(provider, providerFactory.getDependencies(), attributeValueFactories, dependencyAttributeProvider, settings);
+				}
+			};
+		}
+	}
+
+	/*
+	 * Immutable copy of the builder settings
+	 */
+	private static final class CacheSettings
+	{
+		private final long maxSize;
+		private final long defaultTtlNanos;
+		private final ImmutableMap<AttributeFqn, Long> ttlNanosByAttribute;
+		private final double refreshAheadRatio;
+		private final Executor refreshExecutor;
+		private final Ticker ticker;
+
+		private CacheSettings(final FactoryBuilder builder)
+		{
+			this.maxSize = builder.maxSize;
+			this.defaultTtlNanos = builder.defaultTtlNanos;
+			this.ttlNanosByAttribute = ImmutableMap.copyOf(builder.ttlNanosByAttribute);
+			this.refreshAheadRatio = builder.refreshAheadRatio;
+			this.refreshExecutor = builder.refreshExecutor;
+			this.ticker = builder.ticker;
+		}
+
+		private long getMaxTtlNanos()
+		{
+			long maxTtlNanos = defaultTtlNanos;
+			for (final long ttlNanos : ttlNanosByAttribute.values())
+			{
+				maxTtlNanos = Math.max(maxTtlNanos, ttlNanos);
+			}
+
+			return maxTtlNanos;
+		}
+	}
+
+	private static final class CacheEntry
+	{
+		private final AttributeBag<?> value;
+		private final long refreshTime;
+		private final long expiryTime;
+		private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+		private CacheEntry(final AttributeBag<?> value, final long refreshTime, final long expiryTime)
+		{
+			this.value = value;
+			this.refreshTime = refreshTime;
+			this.expiryTime = expiryTime;
+		}
+	}
+
+	/**
+	 * Creates a builder of dependency-aware factory decorating the providers created by another factory with a cache
+	 *
+	 * @param providerFactory
+	 *            factory of the providers to be decorated
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code providerFactory == null}
+	 */
+	public static FactoryBuilder newFactoryBuilder(final DependencyAwareFactory providerFactory) throws IllegalArgumentException
+	{
+		return new FactoryBuilder(providerFactory);
+	}
+
+	private final CloseableNamedAttributeProvider provider;
+	private final ProviderDependencies dependencies;
+	private final CacheSettings settings;
+	private final Cache<DependentAttributeKey, CacheEntry> cache;
+
+	private CachingNamedAttributeProvider(final CloseableNamedAttributeProvider provider, final Set<AttributeDesignatorType> dependencies, final AttributeValueFactoryRegistry attributeValueFactories,
+			final AttributeProvider dependencyAttributeProvider, final CacheSettings settings)
+	{
+		assert provider != null && settings != null;
+		this.provider = provider;
+		this.dependencies = new ProviderDependencies(dependencies, attributeValueFactories, dependencyAttributeProvider);
+		this.settings = settings;
+		this.cache = CacheBuilder.newBuilder().maximumSize(settings.maxSize).expireAfterWrite(settings.getMaxTtlNanos(), TimeUnit.NANOSECONDS).ticker(settings.ticker).build();
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return provider.getProvidedAttributes();
+	}
+
+	private CacheEntry newEntry(final AttributeFqn attributeFQN, final AttributeBag<?> value)
+	{
+		final Long attributeTtlNanos = settings.ttlNanosByAttribute.get(attributeFQN);
+		final long ttlNanos = attributeTtlNanos == null ? settings.defaultTtlNanos : attributeTtlNanos;
+		final long now = settings.ticker.read();
+		final long refreshTime = settings.refreshExecutor == null ? Long.MAX_VALUE : now + (long) (ttlNanos * settings.refreshAheadRatio);
+		return new CacheEntry(value, refreshTime, now + ttlNanos);
+	}
+
+	private <AV extends AttributeValue> void refresh(final DependentAttributeKey key, final Datatype<AV> datatype, final CacheEntry entry)
+	{
+		final Map<AttributeFqn, AttributeBag<?>> dependencyValues = dependencies.toMap(key.getDependencyValues());
+
+		try
+		{
+			settings.refreshExecutor.execute(() -> {
+				try
+				{
+					final AttributeBag<AV> newValue = provider.get(key.getAttributeFqn(), datatype, new DetachedEvaluationContext(dependencyValues));
+					cache.put(key, newEntry(key.getAttributeFqn(), newValue));
+				}
+				catch (final IndeterminateEvaluationException | RuntimeException e)
+				{
+					LOGGER.debug("Refresh-ahead of attribute {} failed: keeping the cached value until expiry", key, e);
+					entry.refreshing.set(false);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			LOGGER.debug("Refresh-ahead of attribute {} rejected by executor", key, e);
+			entry.refreshing.set(false);
+		}
+	}
+
+	/*
+	 * Returns the cached value if any and not expired, else null
+	 */
+	private <AV extends AttributeValue> AttributeBag<AV> getCachedValue(final DependentAttributeKey key, final Datatype<AV> datatype)
+	{
+		final CacheEntry entry = cache.getIfPresent(key);
+		if (entry == null)
+		{
+			return null;
+		}
+
+		final long now = settings.ticker.read();
+		if (now - entry.expiryTime >= 0)
+		{
+			return null;
+		}
+
+		if (now - entry.refreshTime >= 0 && entry.refreshing.compareAndSet(false, true))
+		{
+			refresh(key, datatype, entry);
+		}
+
+		/*
+		 * Datatype is part of the key
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> cachedValue = (AttributeBag<AV>) entry.value;
+		return cachedValue;
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final DependentAttributeKey key = new DependentAttributeKey(attributeFQN, datatype, dependencies.resolve(context));
+		final AttributeBag<AV> cachedValue = getCachedValue(key, datatype);
+		if (cachedValue != null)
+		{
+			return cachedValue;
+		}
+
+		final AttributeBag<AV> value = provider.get(attributeFQN, datatype, context);
+		cache.put(key, newEntry(attributeFQN, value));
+		return value;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the attributes not found in cache are requested from the decorated provider, at once with {@link NamedAttributeProvider#getAll(Map, EvaluationContext)}.
+	 */
+	@Override
+	public Map<AttributeFqn, AttributeBag<?>> getAll(final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final EvaluationContext context)
+			throws IndeterminateEvaluationException
+	{
+		final List<AttributeBag<?>> dependencyValues = dependencies.resolve(context);
+		final Map<AttributeFqn, AttributeBag<?>> results = HashCollections.newUpdatableMap(attributes.size());
+		final Map<AttributeFqn, Datatype<? extends AttributeValue>> missedAttributes = HashCollections.newUpdatableMap(attributes.size());
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			final AttributeBag<?> cachedValue = getCachedValue(new DependentAttributeKey(attribute.getKey(), attribute.getValue(), dependencyValues), attribute.getValue());
+			if (cachedValue == null)
+			{
+				missedAttributes.put(attribute.getKey(), attribute.getValue());
+			}
+			else
+			{
+				results.put(attribute.getKey(), cachedValue);
+			}
+		}
+
+		if (missedAttributes.isEmpty())
+		{
+			return results;
+		}
+
+		final Map<AttributeFqn, AttributeBag<?>> providedValues = provider.getAll(missedAttributes, context);
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> missedAttribute : missedAttributes.entrySet())
+		{
+			final AttributeBag<?> value = providedValues.get(missedAttribute.getKey());
+			if (value != null)
+			{
+				cache.put(new DependentAttributeKey(missedAttribute.getKey(), missedAttribute.getValue(), dependencyValues), newEntry(missedAttribute.getKey(), value));
+				results.put(missedAttribute.getKey(), value);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Removes all cached attribute values
+	 */
+	public void invalidateAll()
+	{
+		cache.invalidateAll();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		cache.invalidateAll();
+		provider.close();
+	}
+
+}
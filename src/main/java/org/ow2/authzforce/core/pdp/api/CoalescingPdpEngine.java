@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+
+/**
+ * {@link PdpEngine} decorator coalescing concurrent evaluations of identical individual decision requests ("single flight"): when a request is evaluated while an identical request - i.e. with the
+ * same {@link DecisionRequest#getFingerprint()} - is being evaluated by another thread, the second thread does not evaluate it again but waits for the in-flight evaluation and returns the same
+ * {@link DecisionResult}. This saves CPU when many identical requests arrive at the same time (e.g. same user accessing the same resource from multiple browser tabs), without keeping any result
+ * once the evaluation is over, unlike a {@link DecisionCache}.
+ * <p>
+ * As a consequence, coalesced requests share the values of the attributes set by the PDP itself at evaluation time, e.g. the standard current-time/current-date/current-dateTime environment
+ * attributes, which is equivalent to receiving them at the same time as the in-flight request.
+ * <p>
+ * Only {@link #evaluate(DecisionRequest)} is coalesced, and only for requests that have a fingerprint (see {@link DecisionRequest#getFingerprint()}). {@link #evaluate(List)} (Multiple Decision
+ * requests) is passed to the decorated engine as is, since individual requests in such a batch must be evaluated in the same context.
+ * <p>
+ * Thread-safe if the decorated engine is.
+ */
+public final class CoalescingPdpEngine implements CloseablePdpEngine
+{
+	private static final IllegalArgumentException NULL_ENGINE_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined PDP engine");
+
+	private final PdpEngine engine;
+	private final ConcurrentMap<DecisionRequestFingerprint, CompletableFuture<DecisionResult>> inFlightEvaluations = new ConcurrentHashMap<>();
+
+	private CoalescingPdpEngine(final PdpEngine engine)
+	{
+		assert engine != null;
+		this.engine = engine;
+	}
+
+	/**
+	 * Decorates a PDP engine with request coalescing. If {@code engine} is {@link Closeable} (e.g. {@link CloseablePdpEngine}), {@link #close()} closes it.
+	 * 
+	 * @param engine
+	 *            decorated PDP engine
+	 * @return coalescing PDP engine
+	 * @throws IllegalArgumentException
+	 *             if {@code engine == null}
+	 */
+	public static CoalescingPdpEngine wrap(final PdpEngine engine) throws IllegalArgumentException
+	{
+		if (engine == null)
+		{
+			throw NULL_ENGINE_ARGUMENT_EXCEPTION;
+		}
+
+		return new CoalescingPdpEngine(engine);
+	}
+
+	@Override
+	public DecisionRequestBuilder<?> newRequestBuilder(final int expectedNumOfAttributeCategories, final int expectedTotalNumOfAttributes)
+	{
+		return engine.newRequestBuilder(expectedNumOfAttributeCategories, expectedTotalNumOfAttributes);
+	}
+
+	@Override
+	public DecisionResult evaluate(final DecisionRequest request)
+	{
+		final DecisionRequestFingerprint key;
+		try
+		{
+			key = request.getFingerprint();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			// no fingerprint to identify identical requests
+			return engine.evaluate(request);
+		}
+
+		final CompletableFuture<DecisionResult> newEvaluation = new CompletableFuture<>();
+		final CompletableFuture<DecisionResult> inFlightEvaluation = inFlightEvaluations.putIfAbsent(key, newEvaluation);
+		if (inFlightEvaluation != null)
+		{
+			// identical request in flight
+			try
+			{
+				return inFlightEvaluation.join();
+			}
+			catch (final CompletionException e)
+			{
+				final Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+				{
+					throw (RuntimeException) cause;
+				}
+
+				if (cause instanceof Error)
+				{
+					throw (Error) cause;
+				}
+
+				throw e;
+			}
+		}
+
+		try
+		{
+			final DecisionResult result = engine.evaluate(request);
+			newEvaluation.complete(result);
+			return result;
+		}
+		catch (final RuntimeException | Error e)
+		{
+			newEvaluation.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			inFlightEvaluations.remove(key, newEvaluation);
+		}
+	}
+
+	@Override
+	public <INDIVIDUAL_DECISION_REQ_T extends DecisionRequest> Collection<Entry<INDIVIDUAL_DECISION_REQ_T, ? extends DecisionResult>> evaluate(final List<INDIVIDUAL_DECISION_REQ_T> requests)
+			throws IndeterminateEvaluationException
+	{
+		return engine.evaluate(requests);
+	}
+
+	@Override
+	public Iterable<PrimaryPolicyMetadata> getApplicablePolicies()
+	{
+		return engine.getApplicablePolicies();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (engine instanceof Closeable)
+		{
+			((Closeable) engine).close();
+		}
+	}
+
+}
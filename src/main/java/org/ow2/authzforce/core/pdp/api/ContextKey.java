@@ -0,0 +1,138 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Typed key of a custom property of {@link EvaluationContext}s, i.e. per-request state of a PDP extension, as a type-safe alternative to {@link EvaluationContext#getOther(String)} and
+ * {@link EvaluationContext#putOther(String, Object)}: see {@link EvaluationContext#getOther(ContextKey)} and {@link EvaluationContext#putOther(ContextKey, Object)}. Each key is assigned a unique
+ * dense index when created, that context implementations may use to store the values in an array (e.g. {@link ArrayEvaluationContext}), instead of a hash map keyed by strings.
+ * <p>
+ * Keys are compared by identity: two keys with the same name are different keys (the name is only informative), so that an extension loaded several times (e.g. redeployed in a servlet container
+ * or OSGi framework sharing this API) does not conflict with previous instances of itself. A value put with a key is only visible through the same key, never through
+ * {@link EvaluationContext#getOther(String)}, whatever the context implementation.
+ * <p>
+ * Keys are meant to be created once, typically as static constants of the extension class:
+ * 
+ * <pre>
+ * private static final ContextKey&lt;MyState&gt; MY_STATE_KEY = ContextKey.newInstance("com.example.MyExtension.state", MyState.class);
+ * </pre>
+ * 
+ * Indexes are never reused (only the index counter is global, no key is retained), so keys must not be created per request.
+ * <p>
+ * Immutable.
+ *
+ * @param <T>
+ *            type of the property values
+ */
+public final class ContextKey<T>
+{
+	private static final AtomicInteger KEY_COUNT = new AtomicInteger(0);
+
+	private final String name;
+	private final Class<T> type;
+	private final int index;
+	private final String propertyName;
+
+	private ContextKey(final String name, final Class<T> type, final int index)
+	{
+		this.name = name;
+		this.type = type;
+		this.index = index;
+		/*
+		 * Unique (index-based) and distinct from the key name, so that the value is not visible with EvaluationContext#getOther(String) with the key name
+		 */
+		this.propertyName = ContextKey.class.getName() + "#" + index + "[" + name + "]";
+	}
+
+	/**
+	 * Creates (registers) a new key
+	 * 
+	 * @param name
+	 *            name of the key, for logging/debugging purposes (need not be unique)
+	 * @param type
+	 *            type of the property values
+	 * @return new key
+	 * @throws IllegalArgumentException
+	 *             if {@code name == null || type == null}
+	 */
+	public static <T> ContextKey<T> newInstance(final String name, final Class<T> type) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(name != null, "Undefined context key name");
+		Preconditions.checkArgument(type != null, "Undefined context key type");
+		return new ContextKey<>(name, type, KEY_COUNT.getAndIncrement());
+	}
+
+	/**
+	 * Get the number of keys created so far, i.e. the size of arrays able to hold the values of all keys
+	 * 
+	 * @return number of keys
+	 */
+	public static int getKeyCount()
+	{
+		return KEY_COUNT.get();
+	}
+
+	/**
+	 * Get the key name
+	 * 
+	 * @return name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the type of property values
+	 * 
+	 * @return value type
+	 */
+	public Class<T> getType()
+	{
+		return type;
+	}
+
+	/*
+	 * Name of the property holding the value of this key in contexts storing typed properties with EvaluationContext#putOther(String, Object) (default behavior)
+	 */
+	String getPropertyName()
+	{
+		return propertyName;
+	}
+
+	/**
+	 * Get the index of this key, unique among all keys, in [0, {@link #getKeyCount()}[
+	 * 
+	 * @return index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ContextKey[" + name + "]";
+	}
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Registry of dense integer slots assigned to named attributes ({@link AttributeFqn}s) and variables (VariableDefinition IDs), to be used with {@link SlotIndexedEvaluationContext}s: the slots are
+ * assigned once when policies are loaded - typically when creating AttributeDesignator expressions and VariableReferences - so that attribute and variable values are then stored and looked up by
+ * array index in the evaluation context, instead of hashing and comparing {@link AttributeFqn}s and strings on every evaluation.
+ * <p>
+ * Slots are never released: only attributes and variables that appear in policies should be registered, not arbitrary request attributes. Request attributes that have no slot are stored the usual
+ * way (hash map) by the evaluation contexts.
+ * <p>
+ * Thread-safe.
+ */
+public final class ContextSlots
+{
+	private final ConcurrentMap<AttributeFqn, Integer> attributeSlots = new ConcurrentHashMap<>();
+	private final AtomicInteger attributeSlotCount = new AtomicInteger(0);
+	private final ConcurrentMap<String, Integer> variableSlots = new ConcurrentHashMap<>();
+	private final AtomicInteger variableSlotCount = new AtomicInteger(0);
+
+	/**
+	 * Registers an attribute, if not already registered
+	 * 
+	 * @param attributeFQN
+	 *            attribute
+	 * @return slot of the attribute
+	 * @throws IllegalArgumentException
+	 *             if {@code attributeFQN == null}
+	 */
+	public int registerAttribute(final AttributeFqn attributeFQN) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(attributeFQN != null, "Undefined attribute");
+		return attributeSlots.computeIfAbsent(attributeFQN, k -> attributeSlotCount.getAndIncrement());
+	}
+
+	/**
+	 * Registers a variable, if not already registered
+	 * 
+	 * @param variableId
+	 *            VariableDefinition ID
+	 * @return slot of the variable
+	 * @throws IllegalArgumentException
+	 *             if {@code variableId == null}
+	 */
+	public int registerVariable(final String variableId) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(variableId != null, "Undefined variable ID");
+		return variableSlots.computeIfAbsent(variableId, k -> variableSlotCount.getAndIncrement());
+	}
+
+	/**
+	 * Get the slot of an attribute
+	 * 
+	 * @param attributeFQN
+	 *            attribute
+	 * @return slot of the attribute, or -1 if not registered
+	 */
+	public int getAttributeSlot(final AttributeFqn attributeFQN)
+	{
+		final Integer slot = attributeSlots.get(attributeFQN);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Get the slot of a variable
+	 * 
+	 * @param variableId
+	 *            VariableDefinition ID
+	 * @return slot of the variable, or -1 if not registered
+	 */
+	public int getVariableSlot(final String variableId)
+	{
+		final Integer slot = variableSlots.get(variableId);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Get the number of attribute slots, i.e. the size of the arrays of attribute values in evaluation contexts
+	 * 
+	 * @return number of registered attributes
+	 */
+	public int getAttributeSlotCount()
+	{
+		return attributeSlotCount.get();
+	}
+
+	/**
+	 * Get the number of variable slots, i.e. the size of the arrays of variable values in evaluation contexts
+	 * 
+	 * @return number of registered variables
+	 */
+	public int getVariableSlotCount()
+	{
+		return variableSlotCount.get();
+	}
+
+}
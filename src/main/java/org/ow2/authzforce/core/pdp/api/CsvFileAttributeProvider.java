@@ -0,0 +1,679 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactory;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * Named Attribute Provider serving reference data (e.g. role-to-permission table, resource owners) from a local CSV file, loaded into an in-memory index, instead of calling a remote attribute source
+ * for each request.
+ * <p>
+ * The first column of the file contains the value of a key attribute (dependency of the provider, e.g. subject role or resource ID), the other columns contain the values of the provided attributes
+ * for this key, in the order of {@link FactoryBuilder#column(AttributeDesignatorType)} calls. Several rows may have the same key, in which case the values are merged into the same bags; and a cell
+ * may contain several values separated by {@link FactoryBuilder#multiValueSeparator(char)} if set. Empty cells have no value. Fields may be quoted with double quotes (RFC 4180). The file is read
+ * with UTF-8 encoding, through a read-only memory mapping: the records are parsed from the mapped bytes directly, and only the fields are decoded (copied) to the heap.
+ * <p>
+ * If the key attribute has several values in the evaluation context (e.g. several roles), the result is the bag of all values found for any of them.
+ * <p>
+ * With {@link FactoryBuilder#reloadOnChange(long, TimeUnit, Executor)}, the file is checked for change (last modification time or size) periodically, and reloaded in the background: the new index
+ * replaces the old one atomically, and readers are never blocked. If the new file is invalid, the previous index is kept.
+ */
+public final class CsvFileAttributeProvider implements CloseableNamedAttributeProvider
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(CsvFileAttributeProvider.class);
+
+	private static final char DEFAULT_FIELD_SEPARATOR = ',';
+	private static final char QUOTE = '"';
+	private static final int INITIAL_FIELD_CAPACITY = 64;
+
+	/**
+	 * Builder of {@link CloseableNamedAttributeProvider.DependencyAwareFactory} creating {@link CsvFileAttributeProvider}s. Not thread-safe.
+	 */
+	public static final class FactoryBuilder
+	{
+		private final Path file;
+		private final AttributeDesignatorType keyAttribute;
+		private final List<AttributeDesignatorType> columns = new ArrayList<>();
+		private char fieldSeparator = DEFAULT_FIELD_SEPARATOR;
+		private Character multiValueSeparator = null;
+		private long reloadCheckIntervalNanos = -1;
+		private Executor reloadExecutor = null;
+		private Ticker ticker = Ticker.systemTicker();
+
+		private FactoryBuilder(final Path file, final AttributeDesignatorType keyAttribute)
+		{
+			// use CsvFileAttributeProvider#newFactoryBuilder(Path, AttributeDesignatorType)
+			Preconditions.checkArgument(file != null, "Undefined CSV file");
+			Preconditions.checkArgument(keyAttribute != null, "Undefined key attribute");
+			this.file = file;
+			this.keyAttribute = keyAttribute;
+		}
+
+		/**
+		 * Adds the next column of the file (after the key column and the previously added ones), i.e. the next provided attribute
+		 *
+		 * @param providedAttribute
+		 *            provided attribute (datatype of the values in the column)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code providedAttribute == null}
+		 */
+		public FactoryBuilder column(final AttributeDesignatorType providedAttribute) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(providedAttribute != null, "Undefined provided attribute");
+			this.columns.add(providedAttribute);
+			return this;
+		}
+
+		/**
+		 * Sets the field separator. Default: ','.
+		 *
+		 * @param separator
+		 *            field separator (ASCII character, not the double quote)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code separator} is not an ASCII character, or is the double quote or a line terminator
+		 */
+		public FactoryBuilder fieldSeparator(final char separator) throws IllegalArgumentException
+		{
+			/*
+			 * The file is parsed byte by byte: an ASCII separator cannot be confused with a byte of a multi-byte UTF-8 character
+			 */
+			Preconditions.checkArgument(separator < 0x80 && separator != QUOTE && separator != '\n' && separator != '\r', "Invalid CSV field separator: %s", separator);
+			this.fieldSeparator = separator;
+			return this;
+		}
+
+		/**
+		 * Sets the separator of values in the same cell. Default: none (one value per cell).
+		 *
+		 * @param separator
+		 *            value separator (different from the field separator)
+		 * @return this builder
+		 */
+		public FactoryBuilder multiValueSeparator(final char separator)
+		{
+			this.multiValueSeparator = separator;
+			return this;
+		}
+
+		/**
+		 * Enables reload on file change. Default: disabled (use {@link CsvFileAttributeProvider#reload()} to reload explicitly).
+		 *
+		 * @param checkInterval
+		 *            minimum time between two checks of the file (strictly positive). The check is triggered by the first attribute request after this interval.
+		 * @param unit
+		 *            unit of {@code checkInterval}
+		 * @param executor
+		 *            executor of the checks and reloads
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code checkInterval <= 0 || unit == null || executor == null}
+		 */
+		public FactoryBuilder reloadOnChange(final long checkInterval, final TimeUnit unit, final Executor executor) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(checkInterval > 0, "Invalid file check interval (must be > 0): %s", checkInterval);
+			Preconditions.checkArgument(unit != null, "Undefined file check interval unit");
+			Preconditions.checkArgument(executor != null, "Undefined reload executor");
+			this.reloadCheckIntervalNanos = unit.toNanos(checkInterval);
+			this.reloadExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used to schedule file checks. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public FactoryBuilder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Creates the factory
+		 *
+		 * @return dependency-aware factory of {@link CsvFileAttributeProvider}s, depending on the key attribute. Its {@code getInstance(...)} method loads the file and throws
+		 *         {@link IllegalArgumentException} if it cannot be read or is invalid.
+		 * @throws IllegalArgumentException
+		 *             if no column has been added, or the multi-value separator is the same as the field separator
+		 */
+		public DependencyAwareFactory build() throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(!columns.isEmpty(), "No provided attribute (column) defined for CSV file: %s", file);
+			Preconditions.checkArgument(multiValueSeparator == null || multiValueSeparator != fieldSeparator, "CSV multi-value separator same as field separator: %s", fieldSeparator);
+			final FactoryBuilder settings = copy();
+			final Set<AttributeDesignatorType> dependencies = Collections.singleton(keyAttribute);
+			return new DependencyAwareFactory()
+			{
+				@Override
+				public Set<AttributeDesignatorType> getDependencies()
+				{
+					return dependencies;
+				}
+
+				@Override
+				public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+				{
+					return new CsvFileAttributeProvider(settings, attributeValueFactories, dependencyAttributeProvider);
+				}
+			};
+		}
+
+		private FactoryBuilder copy()
+		{
+			final FactoryBuilder copy = new FactoryBuilder(file, keyAttribute);
+			copy.columns.addAll(columns);
+			copy.fieldSeparator = fieldSeparator;
+			copy.multiValueSeparator = multiValueSeparator;
+			copy.reloadCheckIntervalNanos = reloadCheckIntervalNanos;
+			copy.reloadExecutor = reloadExecutor;
+			copy.ticker = ticker;
+			return copy;
+		}
+	}
+
+	/**
+	 * Creates a builder of dependency-aware factory of providers reading a given CSV file
+	 *
+	 * @param file
+	 *            CSV file
+	 * @param keyAttribute
+	 *            attribute whose values are in the first column of the file (dependency of the provider)
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code file == null || keyAttribute == null}
+	 */
+	public static FactoryBuilder newFactoryBuilder(final Path file, final AttributeDesignatorType keyAttribute) throws IllegalArgumentException
+	{
+		return new FactoryBuilder(file, keyAttribute);
+	}
+
+	/*
+	 * Typed column
+	 */
+	private static final class Column<AV extends AttributeValue>
+	{
+		private final AttributeFqn attributeFqn;
+		private final AttributeValueFactory<AV> valueFactory;
+
+		private Column(final AttributeFqn attributeFqn, final AttributeValueFactory<AV> valueFactory)
+		{
+			this.attributeFqn = attributeFqn;
+			this.valueFactory = valueFactory;
+		}
+
+		private AV parse(final String value) throws IllegalArgumentException
+		{
+			return valueFactory.getInstance(Collections.<Serializable> singletonList(value), Collections.emptyMap(), null);
+		}
+
+		private AttributeBag<AV> newBag(final List<AttributeValue> values, final AttributeSource source)
+		{
+			/*
+			 * Values created by parse()
+			 */
+			@SuppressWarnings("unchecked")
+			final List<AV> typedValues = (List<AV>) values;
+			return Bags.newAttributeBag(valueFactory.getDatatype(), typedValues, source);
+		}
+	}
+
+	/*
+	 * Immutable index of the file content
+	 */
+	private static final class Index
+	{
+		// bags of each column for each key value
+		private final Map<AttributeValue, ImmutableList<AttributeBag<?>>> bagsByKey;
+		private final long lastModifiedMillis;
+		private final long size;
+
+		private Index(final Map<AttributeValue, ImmutableList<AttributeBag<?>>> bagsByKey, final long lastModifiedMillis, final long size)
+		{
+			this.bagsByKey = bagsByKey;
+			this.lastModifiedMillis = lastModifiedMillis;
+			this.size = size;
+		}
+	}
+
+	private final Path file;
+	private final char fieldSeparator;
+	private final Character multiValueSeparator;
+	private final AttributeFqn keyAttributeFqn;
+	private final Column<?> keyColumn;
+	private final ImmutableList<Column<?>> columns;
+	private final Map<AttributeFqn, Integer> columnIndexesByAttribute;
+	private final ImmutableSet<AttributeDesignatorType> providedAttributes;
+	private final AttributeSource source;
+	private final AttributeProvider dependencyAttributeProvider;
+	private final long reloadCheckIntervalNanos;
+	private final Executor reloadExecutor;
+	private final Ticker ticker;
+
+	private volatile Index index;
+	private volatile long nextReloadCheckTime;
+	private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+	private static Column<?> newColumn(final AttributeDesignatorType attribute, final AttributeValueFactoryRegistry attributeValueFactories) throws IllegalArgumentException
+	{
+		final AttributeValueFactory<?> valueFactory = attributeValueFactories.getExtension(attribute.getDataType());
+		if (valueFactory == null)
+		{
+			throw new IllegalArgumentException("Unsupported datatype of attribute " + attribute + ": " + attribute.getDataType());
+		}
+
+		return new Column<>(AttributeFqns.newInstance(attribute), valueFactory);
+	}
+
+	private CsvFileAttributeProvider(final FactoryBuilder settings, final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+			throws IllegalArgumentException
+	{
+		this.file = settings.file;
+		this.fieldSeparator = settings.fieldSeparator;
+		this.multiValueSeparator = settings.multiValueSeparator;
+		this.keyAttributeFqn = AttributeFqns.newInstance(settings.keyAttribute);
+		this.keyColumn = newColumn(settings.keyAttribute, attributeValueFactories);
+		final List<Column<?>> mutableColumns = new ArrayList<>(settings.columns.size());
+		final Map<AttributeFqn, Integer> mutableColumnIndexes = HashCollections.newUpdatableMap(settings.columns.size());
+		for (final AttributeDesignatorType column : settings.columns)
+		{
+			final Column<?> typedColumn = newColumn(column, attributeValueFactories);
+			if (mutableColumnIndexes.putIfAbsent(typedColumn.attributeFqn, mutableColumns.size()) != null)
+			{
+				throw new IllegalArgumentException("Duplicate provided attribute (column) in CSV file " + file + ": " + column);
+			}
+
+			mutableColumns.add(typedColumn);
+		}
+
+		this.columns = ImmutableList.copyOf(mutableColumns);
+		this.columnIndexesByAttribute = HashCollections.newImmutableMap(mutableColumnIndexes);
+		this.providedAttributes = ImmutableSet.copyOf(settings.columns);
+		this.source = AttributeSources.newCustomSource(file.toUri().toString());
+		this.dependencyAttributeProvider = dependencyAttributeProvider;
+		this.reloadCheckIntervalNanos = settings.reloadCheckIntervalNanos;
+		this.reloadExecutor = settings.reloadExecutor;
+		this.ticker = settings.ticker;
+
+		try
+		{
+			this.index = load();
+		}
+		catch (final IOException e)
+		{
+			throw new IllegalArgumentException("Failed to load CSV file: " + file, e);
+		}
+
+		this.nextReloadCheckTime = ticker.read() + reloadCheckIntervalNanos;
+	}
+
+	/*
+	 * UTF-8 bytes of the field being parsed, reused for all the fields of a file
+	 */
+	private static final class FieldBuffer
+	{
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+		private byte[] bytes = new byte[INITIAL_FIELD_CAPACITY];
+		private int length = 0;
+
+		private void append(final byte b)
+		{
+			if (length == bytes.length)
+			{
+				bytes = Arrays.copyOf(bytes, 2 * length);
+			}
+
+			bytes[length++] = b;
+		}
+
+		private String decodeAndClear() throws CharacterCodingException
+		{
+			final String field = length == 0 ? "" : decoder.decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+			length = 0;
+			return field;
+		}
+	}
+
+	/*
+	 * Splits a record into fields, handling quotes. Returns null at end of input. Separators, quotes and line terminators are ASCII characters, therefore can be matched on the UTF-8 bytes directly.
+	 */
+	private List<String> nextRecord(final ByteBuffer in, final FieldBuffer field) throws IllegalArgumentException, CharacterCodingException
+	{
+		if (!in.hasRemaining())
+		{
+			return null;
+		}
+
+		final List<String> fields = new ArrayList<>(columns.size() + 1);
+		boolean quoted = false;
+		while (in.hasRemaining())
+		{
+			final byte b = in.get();
+			if (quoted)
+			{
+				if (b != QUOTE)
+				{
+					field.append(b);
+				}
+				else if (in.hasRemaining() && in.get(in.position()) == QUOTE)
+				{
+					// escaped quote
+					field.append(b);
+					in.get();
+				}
+				else
+				{
+					quoted = false;
+				}
+			}
+			else if (b == QUOTE)
+			{
+				quoted = true;
+			}
+			else if (b == fieldSeparator)
+			{
+				fields.add(field.decodeAndClear());
+			}
+			else if (b == '\n' || b == '\r')
+			{
+				if (b == '\r' && in.hasRemaining() && in.get(in.position()) == '\n')
+				{
+					in.get();
+				}
+
+				break;
+			}
+			else
+			{
+				field.append(b);
+			}
+		}
+
+		if (quoted)
+		{
+			throw new IllegalArgumentException("Unterminated quoted field at end of CSV file");
+		}
+
+		fields.add(field.decodeAndClear());
+		return fields;
+	}
+
+	private void addValues(final Column<?> column, final String cell, final List<AttributeValue> values)
+	{
+		if (cell.isEmpty())
+		{
+			return;
+		}
+
+		if (multiValueSeparator == null)
+		{
+			values.add(column.parse(cell));
+			return;
+		}
+
+		int start = 0;
+		for (int end = cell.indexOf(multiValueSeparator); end >= 0; end = cell.indexOf(multiValueSeparator, start))
+		{
+			if (end > start)
+			{
+				values.add(column.parse(cell.substring(start, end)));
+			}
+
+			start = end + 1;
+		}
+
+		if (start < cell.length())
+		{
+			values.add(column.parse(cell.substring(start)));
+		}
+	}
+
+	private Index load() throws IOException, IllegalArgumentException
+	{
+		final BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+		final ByteBuffer content;
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			// the mapping remains valid after the channel is closed
+			content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		final FieldBuffer field = new FieldBuffer();
+		final Map<AttributeValue, List<List<AttributeValue>>> valuesByKey = HashCollections.newUpdatableMap();
+		int lineNumber = 0;
+		for (List<String> fields = nextRecord(content, field); fields != null; fields = nextRecord(content, field))
+		{
+			lineNumber++;
+			if (fields.size() == 1 && fields.get(0).isEmpty())
+			{
+				// blank line
+				continue;
+			}
+
+			if (fields.size() > columns.size() + 1)
+			{
+				throw new IllegalArgumentException("Too many fields (" + fields.size() + ") at record #" + lineNumber + " of CSV file " + file + " (expected: " + (columns.size() + 1) + ")");
+			}
+
+			try
+			{
+				final AttributeValue key = keyColumn.parse(fields.get(0));
+				List<List<AttributeValue>> columnValues = valuesByKey.get(key);
+				if (columnValues == null)
+				{
+					columnValues = new ArrayList<>(columns.size());
+					for (int i = 0; i < columns.size(); i++)
+					{
+						columnValues.add(new ArrayList<>());
+					}
+
+					valuesByKey.put(key, columnValues);
+				}
+
+				for (int i = 1; i < fields.size(); i++)
+				{
+					addValues(columns.get(i - 1), fields.get(i), columnValues.get(i - 1));
+				}
+			}
+			catch (final IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid value at record #" + lineNumber + " of CSV file " + file, e);
+			}
+		}
+
+		final Map<AttributeValue, ImmutableList<AttributeBag<?>>> bagsByKey = HashCollections.newUpdatableMap(valuesByKey.size());
+		for (final Map.Entry<AttributeValue, List<List<AttributeValue>>> keyValues : valuesByKey.entrySet())
+		{
+			final ImmutableList.Builder<AttributeBag<?>> bags = ImmutableList.builder();
+			for (int i = 0; i < columns.size(); i++)
+			{
+				bags.add(columns.get(i).newBag(keyValues.getValue().get(i), source));
+			}
+
+			bagsByKey.put(keyValues.getKey(), bags.build());
+		}
+
+		LOGGER.debug("Loaded {} keys from CSV file {}", bagsByKey.size(), file);
+		return new Index(HashCollections.newImmutableMap(bagsByKey), fileAttributes.lastModifiedTime().toMillis(), fileAttributes.size());
+	}
+
+	/**
+	 * Reloads the file if it has changed (last modification time or size), and replaces the index atomically. Readers keep using the previous index until then. Reloads are serialized with the
+	 * background reloads (see {@link FactoryBuilder#reloadOnChange(long, TimeUnit, Executor)}), so that the index of the latest load is always the one in use.
+	 *
+	 * @return true iff the file has been reloaded
+	 * @throws IOException
+	 *             error reading the file
+	 * @throws IllegalArgumentException
+	 *             invalid file content (the previous index is kept)
+	 */
+	public synchronized boolean reload() throws IOException, IllegalArgumentException
+	{
+		final BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+		final Index currentIndex = index;
+		if (fileAttributes.lastModifiedTime().toMillis() == currentIndex.lastModifiedMillis && fileAttributes.size() == currentIndex.size)
+		{
+			return false;
+		}
+
+		index = load();
+		LOGGER.info("Reloaded CSV file {}", file);
+		return true;
+	}
+
+	private void scheduleReloadCheckIfDue()
+	{
+		if (reloadExecutor == null || ticker.read() - nextReloadCheckTime < 0 || !reloading.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			reloadExecutor.execute(() -> {
+				try
+				{
+					reload();
+				}
+				catch (final IOException | IllegalArgumentException e)
+				{
+					LOGGER.warn("Failed to reload CSV file {}: keeping the previously loaded content", file, e);
+				}
+				finally
+				{
+					nextReloadCheckTime = ticker.read() + reloadCheckIntervalNanos;
+					reloading.set(false);
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			LOGGER.debug("Reload check of CSV file {} rejected by executor", file, e);
+			nextReloadCheckTime = ticker.read() + reloadCheckIntervalNanos;
+			reloading.set(false);
+		}
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return providedAttributes;
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final Integer columnIndex = columnIndexesByAttribute.get(attributeFQN);
+		if (columnIndex == null)
+		{
+			throw new UnsupportedOperationException("Attribute not provided by CSV file " + file + ": " + attributeFQN);
+		}
+
+		final Column<?> column = columns.get(columnIndex);
+		if (!column.valueFactory.getDatatype().equals(datatype))
+		{
+			throw new IndeterminateEvaluationException("Datatype of attribute " + attributeFQN + " in CSV file " + file + " (" + column.valueFactory.getDatatype() + ") does not match expected datatype: "
+					+ datatype, XacmlStatusCode.PROCESSING_ERROR.value());
+		}
+
+		final AttributeBag<?> keys = dependencyAttributeProvider.get(keyAttributeFqn, keyColumn.valueFactory.getDatatype(), context);
+		scheduleReloadCheckIfDue();
+		final Index currentIndex = index;
+		final AttributeBag<?> result;
+		if (keys.size() == 1)
+		{
+			final ImmutableList<AttributeBag<?>> bags = currentIndex.bagsByKey.get(keys.getSingleElement());
+			result = bags == null ? Bags.emptyAttributeBag(datatype, null, source) : bags.get(columnIndex);
+		}
+		else
+		{
+			final List<AttributeValue> values = new ArrayList<>();
+			for (final AttributeValue key : keys)
+			{
+				final ImmutableList<AttributeBag<?>> bags = currentIndex.bagsByKey.get(key);
+				if (bags != null)
+				{
+					for (final AttributeValue value : bags.get(columnIndex))
+					{
+						values.add(value);
+					}
+				}
+			}
+
+			result = values.isEmpty() ? Bags.emptyAttributeBag(datatype, null, source) : column.newBag(values, source);
+		}
+
+		/*
+		 * Datatype checked above
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> typedResult = (AttributeBag<AV>) result;
+		return typedResult;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// nothing to release: the memory mapping is only used while loading
+	}
+
+}
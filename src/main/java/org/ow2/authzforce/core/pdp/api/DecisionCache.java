@@ -20,7 +20,9 @@ package org.ow2.authzforce.core.pdp.api;
 import java.io.Closeable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
 import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
 import org.ow2.authzforce.xmlns.pdp.ext.AbstractDecisionCache;
 
@@ -116,4 +118,43 @@ public interface DecisionCache extends Closeable
 	 */
 	<DECISION_REQ_T extends DecisionRequest> void putAll(Map<DECISION_REQ_T, DecisionResult> resultsByRequest);
 
+	/**
+	 * Tells whether this cache supports selective invalidation with {@link #invalidate(Set)}. If not, the whole cache must be discarded (closed and replaced) after a policy change.
+	 * <p>
+	 * The default implementation returns false, consistently with the default implementation of {@link #invalidate(Set)}. Implementations overriding {@link #invalidate(Set)} must override this
+	 * method as well.
+	 * 
+	 * @return true iff {@link #invalidate(Set)} is supported
+	 */
+	default boolean supportsInvalidation()
+	{
+		return false;
+	}
+
+	/**
+	 * Best-effort selective invalidation: removes from the cache the decision results that may depend on any of the given policies, typically because these policy versions have been replaced or
+	 * removed from the PDP's policies (see {@link PdpEngine#getApplicablePolicies()}), in order to keep the rest of the cache warm after a policy change.
+	 * <p>
+	 * The only policy dependencies known to the cache are the {@link DecisionResult#getApplicablePolicies()} of the cached results, which the PDP only returns for requests with
+	 * ReturnPolicyIdList=true. A result with no applicable policy - i.e. any result of a request with ReturnPolicyIdList=false, and any NotApplicable result - has unknown dependencies, therefore is
+	 * always removed. As a consequence, this method only keeps part of the cache if most cached results are Permit/Deny/Indeterminate results of requests with ReturnPolicyIdList=true; else it is
+	 * equivalent to removing all the cached results.
+	 * <p>
+	 * Furthermore, this is only correct for policy changes that do not change which policies are applicable to which requests, e.g. a change of obligations or of the effect of rules that are
+	 * applicable anyway. A change that may make a policy applicable to requests it was not applicable to before (e.g. a change of Target, or a new policy in a Policy(Set) with first-applicable
+	 * combining algorithm) may change decisions that do not depend on any changed policy, therefore requires removing all the cached results instead.
+	 * <p>
+	 * The default implementation throws {@link UnsupportedOperationException}, i.e. selective invalidation is not supported and the whole cache must be discarded (closed and replaced). Callers
+	 * should check {@link #supportsInvalidation()} first.
+	 * 
+	 * @param outdatedPolicies
+	 *            policies (identified by type, ID and version) that the removed results may depend on
+	 * @throws UnsupportedOperationException
+	 *             if the cache does not support selective invalidation ({@link #supportsInvalidation()} returns false)
+	 */
+	default void invalidate(final Set<PrimaryPolicyMetadata> outdatedPolicies) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException("Selective invalidation of decision results not supported by " + this.getClass());
+	}
+
 }
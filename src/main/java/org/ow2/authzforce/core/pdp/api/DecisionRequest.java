@@ -60,4 +60,18 @@ public interface DecisionRequest
 	 */
 	boolean isApplicablePolicyIdListReturned();
 
+	/**
+	 * Get the canonical fingerprint of this request, typically used as decision cache key. The default implementation computes it on every call; implementations should override this to compute it
+	 * only once, since requests are immutable.
+	 * 
+	 * @return request fingerprint
+	 * @throws IllegalArgumentException
+	 *             if an attribute value has non-text (mixed) content, which cannot be encoded canonically. Such a request is not cacheable, and callers using the fingerprint as cache key should
+	 *             evaluate it without cache.
+	 */
+	default DecisionRequestFingerprint getFingerprint() throws IllegalArgumentException
+	{
+		return DecisionRequestFingerprint.newInstance(this);
+	}
+
 }
\ No newline at end of file
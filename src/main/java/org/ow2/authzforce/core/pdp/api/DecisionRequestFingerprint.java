@@ -0,0 +1,384 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.xml.namespace.QName;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+
+import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Canonical and compact fingerprint of a {@link DecisionRequest}, made of a 128-bit hash and a compact binary encoding of the request's named attributes (sorted by {@link AttributeFqn}), extra
+ * contents (sorted by category) and ReturnPolicyIdList flag. Two requests that are equal in the XACML sense (same attribute values regardless of the order of values in bags, or of attributes in the
+ * request) have equal fingerprints.
+ * <p>
+ * This is meant to be used as key in {@link DecisionCache} implementations instead of the {@link DecisionRequest} itself: {@link #hashCode()} is constant-time and {@link #equals(Object)} compares
+ * the 128-bit hashes first, then the encodings (flat byte arrays) only if the hashes match; whereas {@link DecisionRequest} equality requires walking the maps of attribute bags.
+ * <p>
+ * Immutable.
+ */
+public final class DecisionRequestFingerprint
+{
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+	private static final byte APPLICABLE_POLICY_ID_LIST_RETURNED = 1;
+	private static final byte APPLICABLE_POLICY_ID_LIST_NOT_RETURNED = 0;
+
+	private static final int EXPECTED_ENCODED_SIZE_PER_ATTRIBUTE = 128;
+
+	private final long hashMsb;
+	private final long hashLsb;
+	private final byte[] encoding;
+
+	private DecisionRequestFingerprint(final byte[] encoding)
+	{
+		assert encoding != null;
+		this.encoding = encoding;
+		final ByteBuffer hash = ByteBuffer.wrap(HASH_FUNCTION.hashBytes(encoding).asBytes());
+		this.hashMsb = hash.getLong();
+		this.hashLsb = hash.getLong();
+	}
+
+	private static void writeString(final ByteArrayDataOutput out, final String s)
+	{
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] encode(final AttributeValue value) throws IllegalArgumentException
+	{
+		final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+		final List<Serializable> content = value.getContent();
+		out.writeInt(content.size());
+		for (final Serializable contentItem : content)
+		{
+			/*
+			 * Mixed content (JAXBElement, DOM Element, etc.) has no canonical string form (toString() may be the same for different values, or different for equal values)
+			 */
+			if (!(contentItem instanceof String))
+			{
+				throw new IllegalArgumentException("Unsupported (non-text) content of attribute value in request fingerprint: " + value);
+			}
+
+			writeString(out, (String) contentItem);
+		}
+
+		final Map<QName, String> xmlAttributes = value.getXmlAttributes();
+		if (xmlAttributes == null || xmlAttributes.isEmpty())
+		{
+			out.writeInt(0);
+		}
+		else
+		{
+			final SortedMap<String, String> sortedXmlAttributes = new TreeMap<>();
+			for (final Entry<QName, String> xmlAttribute : xmlAttributes.entrySet())
+			{
+				sortedXmlAttributes.put(xmlAttribute.getKey().toString(), xmlAttribute.getValue());
+			}
+
+			out.writeInt(sortedXmlAttributes.size());
+			for (final Entry<String, String> xmlAttribute : sortedXmlAttributes.entrySet())
+			{
+				writeString(out, xmlAttribute.getKey());
+				writeString(out, xmlAttribute.getValue());
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	private static void write(final ByteArrayDataOutput out, final AttributeFqn attributeFqn, final AttributeBag<?> attributeBag) throws IllegalArgumentException
+	{
+		writeString(out, attributeFqn.getCategory());
+		final Optional<String> issuer = attributeFqn.getIssuer();
+		out.writeBoolean(issuer.isPresent());
+		if (issuer.isPresent())
+		{
+			writeString(out, issuer.get());
+		}
+
+		writeString(out, attributeFqn.getId());
+
+		if (attributeBag == null)
+		{
+			/*
+			 * Attribute undefined
+			 */
+			out.writeInt(-1);
+			return;
+		}
+
+		writeString(out, attributeBag.getElementDatatype().getId());
+		/*
+		 * The order of values in a bag does not matter, so sort the value encodings to get a canonical form
+		 */
+		final int bagSize = attributeBag.size();
+		out.writeInt(bagSize);
+		if (bagSize == 1)
+		{
+			out.write(encode(attributeBag.getSingleElement()));
+			return;
+		}
+
+		final List<byte[]> valueEncodings = new ArrayList<>(bagSize);
+		for (final AttributeValue value : attributeBag)
+		{
+			valueEncodings.add(encode(value));
+		}
+
+		valueEncodings.sort(UnsignedBytes.lexicographicalComparator());
+		for (final byte[] valueEncoding : valueEncodings)
+		{
+			out.write(valueEncoding);
+		}
+	}
+
+	private static <K extends Comparable<? super K>, V> SortedMap<K, V> sorted(final Map<K, V> map)
+	{
+		if (map instanceof SortedMap)
+		{
+			/*
+			 * Natural order: null comparator (e.g. TreeMap) or Ordering.natural() (e.g. ImmutableSortedMap)
+			 */
+			final Comparator<? super K> comparator = ((SortedMap<K, V>) map).comparator();
+			if (comparator == null || comparator == Ordering.natural())
+			{
+				// already sorted in natural order
+				return (SortedMap<K, V>) map;
+			}
+		}
+
+		return new TreeMap<>(map);
+	}
+
+	/**
+	 * Computes the fingerprint of a decision request
+	 *
+	 * @param namedAttributes
+	 *            named attributes; if it is a {@link SortedMap} in natural order of keys (e.g. {@link com.google.common.collect.ImmutableSortedMap}), no sorting is done
+	 * @param contentNodesByCategory
+	 *            extra XML Content elements by attribute Category; same as {@code namedAttributes} regarding sorting
+	 * @param returnApplicablePolicies
+	 *            equivalent of XACML Request's ReturnPolicyIdList flag
+	 * @return fingerprint
+	 * @throws IllegalArgumentException
+	 *             if an attribute value has non-text (mixed) content, e.g. a DOM Element, which cannot be encoded canonically. Such a request is not cacheable.
+	 */
+	public static DecisionRequestFingerprint newInstance(final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> contentNodesByCategory,
+			final boolean returnApplicablePolicies) throws IllegalArgumentException
+	{
+		final int attributeCount = namedAttributes == null ? 0 : namedAttributes.size();
+		final ByteArrayDataOutput out = ByteStreams.newDataOutput(1 + attributeCount * EXPECTED_ENCODED_SIZE_PER_ATTRIBUTE);
+		out.writeByte(returnApplicablePolicies ? APPLICABLE_POLICY_ID_LIST_RETURNED : APPLICABLE_POLICY_ID_LIST_NOT_RETURNED);
+		out.writeInt(attributeCount);
+		if (attributeCount > 0)
+		{
+			for (final Entry<AttributeFqn, AttributeBag<?>> namedAttribute : sorted(namedAttributes).entrySet())
+			{
+				write(out, namedAttribute.getKey(), namedAttribute.getValue());
+			}
+		}
+
+		if (contentNodesByCategory == null || contentNodesByCategory.isEmpty())
+		{
+			out.writeInt(0);
+		}
+		else
+		{
+			out.writeInt(contentNodesByCategory.size());
+			for (final Entry<String, XdmNode> contentNode : sorted(contentNodesByCategory).entrySet())
+			{
+				writeString(out, contentNode.getKey());
+				// serialized XML
+				writeString(out, contentNode.getValue().toString());
+			}
+		}
+
+		return new DecisionRequestFingerprint(out.toByteArray());
+	}
+
+	/**
+	 * Computes the fingerprint of a decision request
+	 *
+	 * @param request
+	 *            decision request
+	 * @return fingerprint
+	 * @throws IllegalArgumentException
+	 *             if an attribute value has non-text (mixed) content, e.g. a DOM Element, which cannot be encoded canonically. Such a request is not cacheable.
+	 */
+	public static DecisionRequestFingerprint newInstance(final DecisionRequest request) throws IllegalArgumentException
+	{
+		return newInstance(request.getNamedAttributes(), request.getExtraContentsByCategory(), request.isApplicablePolicyIdListReturned());
+	}
+
+	/**
+	 * Get the most significant 64 bits of the 128-bit hash
+	 *
+	 * @return most significant bits of the hash
+	 */
+	public long getMostSignificantHashBits()
+	{
+		return hashMsb;
+	}
+
+	/**
+	 * Get the least significant 64 bits of the 128-bit hash
+	 *
+	 * @return least significant bits of the hash
+	 */
+	public long getLeastSignificantHashBits()
+	{
+		return hashLsb;
+	}
+
+	/**
+	 * Get the size of the binary encoding of the request
+	 *
+	 * @return encoding size (number of bytes)
+	 */
+	public int getEncodedSize()
+	{
+		return encoding.length;
+	}
+
+	/**
+	 * Writes the binary encoding of the request to a buffer, at its current position (relative bulk put)
+	 *
+	 * @param out
+	 *            output buffer, with at least {@link #getEncodedSize()} bytes remaining
+	 * @throws BufferOverflowException
+	 *             if there is insufficient space in {@code out}
+	 */
+	public void writeEncodingTo(final ByteBuffer out) throws BufferOverflowException
+	{
+		out.put(encoding);
+	}
+
+	/**
+	 * Checks whether the binary encoding of the request is equal to the one stored in a buffer at a given position, e.g. a key stored in off-heap memory. The position of the buffer is not changed.
+	 *
+	 * @param buffer
+	 *            buffer containing an encoding written by {@link #writeEncodingTo(ByteBuffer)}
+	 * @param index
+	 *            (absolute) index of the encoding in {@code buffer}
+	 * @param length
+	 *            length of the encoding in {@code buffer}
+	 * @return true iff the encodings are equal
+	 */
+	public boolean encodingEquals(final ByteBuffer buffer, final int index, final int length)
+	{
+		if (length != encoding.length)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			if (buffer.get(index + i) != encoding[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Restores a fingerprint from its binary encoding, e.g. previously written by {@link #writeEncodingTo(ByteBuffer)}. The hash is recomputed.
+	 *
+	 * @param encoding
+	 *            binary encoding of a decision request (not copied, therefore must not be modified afterwards)
+	 * @return fingerprint
+	 * @throws IllegalArgumentException
+	 *             if {@code encoding == null}
+	 */
+	public static DecisionRequestFingerprint fromEncoding(final byte[] encoding) throws IllegalArgumentException
+	{
+		if (encoding == null)
+		{
+			throw new IllegalArgumentException("Undefined DecisionRequest fingerprint encoding");
+		}
+
+		return new DecisionRequestFingerprint(encoding);
+	}
+
+	/**
+	 * Get the 128-bit hash
+	 *
+	 * @return hash code
+	 */
+	public HashCode getHash()
+	{
+		return HashCode.fromBytes(ByteBuffer.allocate(16).putLong(hashMsb).putLong(hashLsb).array());
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int) hashLsb;
+	}
+
+	@Override
+	public boolean equals(final Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+
+		if (!(obj instanceof DecisionRequestFingerprint))
+		{
+			return false;
+		}
+
+		final DecisionRequestFingerprint other = (DecisionRequestFingerprint) obj;
+		return this.hashLsb == other.hashLsb && this.hashMsb == other.hashMsb && Arrays.equals(this.encoding, other.encoding);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DecisionRequestFingerprint[" + getHash() + "]";
+	}
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.List;
+import java.util.Objects;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Key identifying an attribute value (bag) resolved by an Attribute Provider across evaluation contexts: the attribute name (FQN) and datatype, and the values of the attributes that the provider
+ * depends on (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}). Assuming the provider's result depends only on these dependency values, two lookups with equal keys
+ * have the same result.
+ * <p>
+ * Immutable.
+ */
+final class DependentAttributeKey
+{
+	private final AttributeFqn attributeFqn;
+	private final Datatype<?> datatype;
+	private final ImmutableList<AttributeBag<?>> dependencyValues;
+	private final int hashCode;
+
+	/**
+	 * Creates key
+	 * 
+	 * @param attributeFqn
+	 *            attribute name
+	 * @param datatype
+	 *            attribute datatype
+	 * @param dependencyValues
+	 *            values of the dependency attributes, always in the same order for a given provider
+	 */
+	DependentAttributeKey(final AttributeFqn attributeFqn, final Datatype<?> datatype, final List<AttributeBag<?>> dependencyValues)
+	{
+		assert attributeFqn != null && datatype != null && dependencyValues != null;
+		this.attributeFqn = attributeFqn;
+		this.datatype = datatype;
+		this.dependencyValues = ImmutableList.copyOf(dependencyValues);
+		this.hashCode = Objects.hash(attributeFqn, datatype, this.dependencyValues);
+	}
+
+	AttributeFqn getAttributeFqn()
+	{
+		return attributeFqn;
+	}
+
+	Datatype<?> getDatatype()
+	{
+		return datatype;
+	}
+
+	ImmutableList<AttributeBag<?>> getDependencyValues()
+	{
+		return dependencyValues;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(final Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+
+		if (!(obj instanceof DependentAttributeKey))
+		{
+			return false;
+		}
+
+		final DependentAttributeKey other = (DependentAttributeKey) obj;
+		return this.hashCode == other.hashCode && this.attributeFqn.equals(other.attributeFqn) && this.datatype.equals(other.datatype) && this.dependencyValues.equals(other.dependencyValues);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DependentAttributeKey[attributeFqn=" + attributeFqn + ", datatype=" + datatype + ", dependencyValues=" + dependencyValues + "]";
+	}
+
+}
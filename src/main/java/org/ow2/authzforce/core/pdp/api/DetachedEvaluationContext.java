@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Bag;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.core.pdp.api.value.Value;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Minimal {@link EvaluationContext} used to call Attribute Providers outside of any PDP request evaluation, e.g. to refresh or prefetch attribute values in the background. It only contains given
+ * named attributes - typically the provider's dependencies - and the ones put by the providers themselves. AttributeSelectors and Content are not supported.
+ * <p>
+ * Not thread-safe, like any evaluation context.
+ */
+final class DetachedEvaluationContext implements EvaluationContext
+{
+	private final LayeredUpdatableMap<AttributeFqn, AttributeBag<?>> namedAttributes;
+	private final Map<String, Value> variables = HashCollections.newUpdatableMap();
+	private final Map<String, Object> otherProperties = HashCollections.newUpdatableMap();
+	private final Map<Class<?>, Listener> listeners = HashCollections.newUpdatableMap();
+
+	/**
+	 * Creates context
+	 * 
+	 * @param namedAttributes
+	 *            initial named attributes (not copied but overlaid with the ones put by the providers, therefore must not be modified afterwards)
+	 */
+	DetachedEvaluationContext(final Map<AttributeFqn, AttributeBag<?>> namedAttributes)
+	{
+		this.namedAttributes = LayeredUpdatableMap.newInstance(namedAttributes);
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> getNamedAttributeValue(final AttributeFqn attributeFQN, final Datatype<AV> datatype) throws IndeterminateEvaluationException
+	{
+		final AttributeBag<?> bag = namedAttributes.get(attributeFQN);
+		if (bag == null)
+		{
+			return null;
+		}
+
+		if (!bag.getElementDatatype().equals(datatype))
+		{
+			throw new IndeterminateEvaluationException("Datatype (" + bag.getElementDatatype() + ") of attribute " + attributeFQN + " in context does not match expected datatype: " + datatype,
+					XacmlStatusCode.PROCESSING_ERROR.value());
+		}
+
+		/*
+		 * Datatype checked above
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> result = (AttributeBag<AV>) bag;
+		return result;
+	}
+
+	@Override
+	public Iterator<Entry<AttributeFqn, AttributeBag<?>>> getNamedAttributes()
+	{
+		return namedAttributes.entryIterator();
+	}
+
+	@Override
+	public boolean putNamedAttributeValueIfAbsent(final AttributeFqn attributeFQN, final AttributeBag<?> result)
+	{
+		return namedAttributes.putIfAbsent(attributeFQN, result) == null;
+	}
+
+	@Override
+	public <AV extends AttributeValue> Bag<AV> getAttributeSelectorResult(final AttributeSelectorExpression<AV> attributeSelector) throws IndeterminateEvaluationException
+	{
+		throw new UnsupportedOperationException("AttributeSelectors not supported in detached evaluation context");
+	}
+
+	@Override
+	public <AV extends AttributeValue> boolean putAttributeSelectorResultIfAbsent(final AttributeSelectorExpression<AV> attributeSelector, final Bag<AV> result)
+			throws IndeterminateEvaluationException
+	{
+		throw new IndeterminateEvaluationException("AttributeSelectors not supported in detached evaluation context", XacmlStatusCode.PROCESSING_ERROR.value());
+	}
+
+	@Override
+	public XdmNode getAttributesContent(final String category)
+	{
+		return null;
+	}
+
+	@Override
+	public <V extends Value> V getVariableValue(final String variableId, final Datatype<V> datatype) throws IndeterminateEvaluationException
+	{
+		final Value value = variables.get(variableId);
+		if (value == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return datatype.cast(value);
+		}
+		catch (final ClassCastException e)
+		{
+			throw new IndeterminateEvaluationException("Datatype of variable '" + variableId + "' in context does not match expected datatype: " + datatype, XacmlStatusCode.PROCESSING_ERROR.value(),
+					e);
+		}
+	}
+
+	@Override
+	public boolean putVariableIfAbsent(final String variableId, final Value value)
+	{
+		return variables.putIfAbsent(variableId, value) == null;
+	}
+
+	@Override
+	public Value removeVariable(final String variableId)
+	{
+		return variables.remove(variableId);
+	}
+
+	@Override
+	public Object getOther(final String key)
+	{
+		return otherProperties.get(key);
+	}
+
+	@Override
+	public boolean containsKey(final String key)
+	{
+		return otherProperties.containsKey(key);
+	}
+
+	@Override
+	public void putOther(final String key, final Object val)
+	{
+		otherProperties.put(key, val);
+	}
+
+	@Override
+	public Object remove(final String key)
+	{
+		return otherProperties.remove(key);
+	}
+
+	@Override
+	public boolean isApplicablePolicyIdListRequested()
+	{
+		return false;
+	}
+
+	@Override
+	public <L extends Listener> L putListener(final Class<L> listenerType, final L listener)
+	{
+		return listenerType.cast(listeners.put(listenerType, listener));
+	}
+
+	@Override
+	public <L extends Listener> L getListener(final Class<L> listenerType)
+	{
+		return listenerType.cast(listeners.get(listenerType));
+	}
+
+}
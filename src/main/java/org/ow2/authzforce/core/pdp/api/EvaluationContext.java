@@ -245,6 +245,56 @@ public interface EvaluationContext
 	 */
 	Object remove(String key);
 
+	/**
+	 * Get custom property with a typed key. A value put with a given key is only visible through the same key, not through {@link #getOther(String)} (see {@link ContextKey}).
+	 * <p>
+	 * The default implementation calls {@link #getOther(String)} with a property name reserved for the key (different from the key name). Implementations should override it to use the key's
+	 * index (e.g. to look up an array), and override {@link #putOther(ContextKey, Object)} and {@link #remove(ContextKey)} accordingly.
+	 * 
+	 * @param <T>
+	 *            type of the property value
+	 * @param key
+	 *            property key
+	 * @return property value, or null if none
+	 */
+	default <T> T getOther(final ContextKey<T> key)
+	{
+		return key.getType().cast(getOther(key.getPropertyName()));
+	}
+
+	/**
+	 * Puts custom property in the context with a typed key
+	 * <p>
+	 * The default implementation calls {@link #putOther(String, Object)} with a property name reserved for the key (different from the key name).
+	 * 
+	 * @param <T>
+	 *            type of the property value
+	 * @param key
+	 *            property key
+	 * @param value
+	 *            property value
+	 */
+	default <T> void putOther(final ContextKey<T> key, final T value)
+	{
+		putOther(key.getPropertyName(), value);
+	}
+
+	/**
+	 * Removes custom property with a typed key from the context
+	 * <p>
+	 * The default implementation calls {@link #remove(String)} with a property name reserved for the key (different from the key name).
+	 * 
+	 * @param <T>
+	 *            type of the property value
+	 * @param key
+	 *            property key
+	 * @return the previous value associated with key, or null if none
+	 */
+	default <T> T remove(final ContextKey<T> key)
+	{
+		return key.getType().cast(remove(key.getPropertyName()));
+	}
+
 	/**
 	 * Equivalent of XACML Request ReturnPolicyIdList attribute. XACML §5.4.2: "This attribute is used to request that the PDP return a list of all fully applicable policies and policy sets which were
 	 * used in the decision as a part of the decision response." For a more precise definition of "applicable" in this context, see {@link DecisionResult#getApplicablePolicies()}.
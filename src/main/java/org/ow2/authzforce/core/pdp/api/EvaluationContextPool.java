@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+
+import com.google.common.base.Preconditions;
+
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Pool of reusable {@link ArrayEvaluationContext}s, to avoid allocating a new evaluation context (arrays and hash maps) for each decision request. Contexts are obtained with
+ * {@link #acquire(Map, Map, boolean)} and must be given back with {@link #release(ArrayEvaluationContext)} once the evaluation is over, typically in a {@code finally} block; then the caller must not
+ * use the released context anymore.
+ * <p>
+ * Two kinds of pools:
+ * <ul>
+ * <li>thread-local ({@link #newThreadLocalPool(ContextSlots)}): one context kept per thread, suitable for a fixed pool of request threads. Contexts must be released by the thread that acquired them,
+ * else the thread's context is not reused;</li>
+ * <li>bounded ({@link #newBoundedPool(ContextSlots, int)}): up to a maximum number of contexts shared by all threads, suitable when threads are many or short-lived.</li>
+ * </ul>
+ * If no context is available (e.g. nested acquisition in the same thread, or all contexts in use), a new one is created; if the pool is full on release, the context is dropped.
+ * <p>
+ * Released contexts are cleared immediately, so that the pool does not keep any reference to the data of past requests. Releasing a context that is already idle in the pool has no effect, so
+ * that a context released twice is never handed out to two threads at once.
+ * <p>
+ * Thread-safe.
+ */
+public final class EvaluationContextPool
+{
+	/*
+	 * Context of a thread-local pool, kept in the thread-local variable while in use (flagged), so that acquiring/releasing it does not update the thread-local map
+	 */
+	private static final class ThreadLocalContext
+	{
+		private final ArrayEvaluationContext context;
+		private boolean inUse = false;
+
+		private ThreadLocalContext(final ArrayEvaluationContext context)
+		{
+			this.context = context;
+		}
+	}
+
+	private final ContextSlots slots;
+	// null if bounded pool
+	private final ThreadLocal<ThreadLocalContext> threadLocalContext;
+	// null if thread-local pool
+	private final Queue<ArrayEvaluationContext> sharedContexts;
+
+	private EvaluationContextPool(final ContextSlots slots, final ThreadLocal<ThreadLocalContext> threadLocalContext, final Queue<ArrayEvaluationContext> sharedContexts)
+	{
+		this.slots = slots;
+		this.threadLocalContext = threadLocalContext;
+		this.sharedContexts = sharedContexts;
+	}
+
+	/**
+	 * Creates a pool keeping one context per thread
+	 * 
+	 * @param slots
+	 *            slot registry of the contexts
+	 * @return new pool
+	 * @throws IllegalArgumentException
+	 *             if {@code slots == null}
+	 */
+	public static EvaluationContextPool newThreadLocalPool(final ContextSlots slots) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(slots != null, "Undefined context slots");
+		return new EvaluationContextPool(slots, new ThreadLocal<>(), null);
+	}
+
+	/**
+	 * Creates a pool keeping a bounded number of contexts shared by all threads
+	 * 
+	 * @param slots
+	 *            slot registry of the contexts
+	 * @param maximumSize
+	 *            maximum number of contexts kept in the pool (strictly positive)
+	 * @return new pool
+	 * @throws IllegalArgumentException
+	 *             if {@code slots == null || maximumSize <= 0}
+	 */
+	public static EvaluationContextPool newBoundedPool(final ContextSlots slots, final int maximumSize) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(slots != null, "Undefined context slots");
+		Preconditions.checkArgument(maximumSize > 0, "Invalid maximum evaluation context pool size (must be > 0): %s", maximumSize);
+		return new EvaluationContextPool(slots, null, new ArrayBlockingQueue<>(maximumSize));
+	}
+
+	/**
+	 * Gets an evaluation context for a decision request from the pool, or a new one if none available
+	 * 
+	 * @param namedAttributes
+	 *            named attributes of the request (null if none)
+	 * @param extraContentsByCategory
+	 *            extra XML Content elements by attribute Category (null if none)
+	 * @param returnApplicablePolicyIdList
+	 *            equivalent of XACML Request's ReturnPolicyIdList flag
+	 * @return evaluation context, equivalent to a new one
+	 */
+	public ArrayEvaluationContext acquire(final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> extraContentsByCategory,
+			final boolean returnApplicablePolicyIdList)
+	{
+		final ArrayEvaluationContext pooledContext;
+		if (threadLocalContext != null)
+		{
+			final ThreadLocalContext currentThreadContext = threadLocalContext.get();
+			if (currentThreadContext == null)
+			{
+				// first acquisition in this thread
+				final ArrayEvaluationContext newContext = ArrayEvaluationContext.newInstance(slots, namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+				final ThreadLocalContext newThreadContext = new ThreadLocalContext(newContext);
+				newThreadContext.inUse = true;
+				threadLocalContext.set(newThreadContext);
+				return newContext;
+			}
+
+			if (currentThreadContext.inUse)
+			{
+				// nested acquisition
+				pooledContext = null;
+			}
+			else
+			{
+				currentThreadContext.inUse = true;
+				pooledContext = currentThreadContext.context;
+			}
+		}
+		else
+		{
+			pooledContext = sharedContexts.poll();
+			if (pooledContext != null)
+			{
+				pooledContext.unmarkPooled();
+			}
+		}
+
+		if (pooledContext == null)
+		{
+			return ArrayEvaluationContext.newInstance(slots, namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+		}
+
+		pooledContext.reset(namedAttributes, extraContentsByCategory, returnApplicablePolicyIdList);
+		return pooledContext;
+	}
+
+	/**
+	 * Gives back a context to the pool. The context is cleared, and must not be used by the caller anymore. If the context has already been released and not acquired again since then, this has no
+	 * effect.
+	 * 
+	 * @param context
+	 *            context acquired from this pool (or created with the same slot registry)
+	 * @throws IllegalArgumentException
+	 *             if {@code context} does not use the same slot registry as this pool
+	 */
+	public void release(final ArrayEvaluationContext context) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(context.getSlots() == slots, "Evaluation context not from this pool (different context slots)");
+		if (threadLocalContext != null)
+		{
+			final ThreadLocalContext currentThreadContext = threadLocalContext.get();
+			if (currentThreadContext != null && currentThreadContext.context == context)
+			{
+				if (!currentThreadContext.inUse)
+				{
+					// already released
+					return;
+				}
+
+				currentThreadContext.inUse = false;
+			}
+
+			context.clear();
+			return;
+		}
+
+		/*
+		 * Flag the context before clearing and offering it, so that a concurrent second release of the same context has no effect
+		 */
+		if (!context.markPooled())
+		{
+			// already released
+			return;
+		}
+
+		context.clear();
+		if (!sharedContexts.offer(context))
+		{
+			// pool full -> context dropped
+			context.unmarkPooled();
+		}
+	}
+
+}
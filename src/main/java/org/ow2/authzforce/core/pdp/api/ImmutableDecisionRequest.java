@@ -42,17 +42,23 @@ public final class ImmutableDecisionRequest implements DecisionRequest
 	private final Map<String, XdmNode> extraContentByCategory;
 	private final boolean isApplicablePolicyListReturned;
 
+	/*
+	 * Computed once by getSortedInstance() (unless the request is not cacheable), else lazily on first call to getFingerprint()
+	 */
+	private transient volatile DecisionRequestFingerprint fingerprint;
+
 	private transient volatile int hashCode = 0; // Effective Java - Item 9
 	private transient volatile String toString = null;
 
 	private ImmutableDecisionRequest(final Map<AttributeFqn, AttributeBag<?>> immutableNamedAttributes, final Map<String, XdmNode> immutableContentNodesByCategory,
-			final boolean returnApplicablePolicies)
+			final boolean returnApplicablePolicies, final DecisionRequestFingerprint fingerprint)
 	{
 		assert immutableNamedAttributes != null && immutableContentNodesByCategory != null;
 
 		this.namedAttributes = immutableNamedAttributes;
 		this.extraContentByCategory = immutableContentNodesByCategory;
 		this.isApplicablePolicyListReturned = returnApplicablePolicies;
+		this.fingerprint = fingerprint;
 	}
 
 	/**
@@ -70,12 +76,12 @@ public final class ImmutableDecisionRequest implements DecisionRequest
 			final boolean returnApplicablePolicies)
 	{
 		return new ImmutableDecisionRequest(namedAttributes == null ? Collections.emptyMap() : HashCollections.newImmutableMap(namedAttributes),
-				contentNodesByCategory == null ? Collections.emptyMap() : HashCollections.newImmutableMap(contentNodesByCategory), returnApplicablePolicies);
+				contentNodesByCategory == null ? Collections.emptyMap() : HashCollections.newImmutableMap(contentNodesByCategory), returnApplicablePolicies, null);
 	}
 
 	/**
 	 * Create new instance returning named attributes sorted by attribute name ( {@link #getNamedAttributes()}), and content nodes sorted by attribute category name (
-	 * {@link #getExtraContentsByCategory()})
+	 * {@link #getExtraContentsByCategory()}). The request {@link #getFingerprint()} is computed at the same time, since the attributes are sorted already.
 	 * 
 	 * @param namedAttributes
 	 *            named Attributes (no extra Content element)
@@ -88,8 +94,20 @@ public final class ImmutableDecisionRequest implements DecisionRequest
 	public static ImmutableDecisionRequest getSortedInstance(final Map<AttributeFqn, AttributeBag<?>> namedAttributes, final Map<String, XdmNode> contentNodesByCategory,
 			final boolean returnApplicablePolicies)
 	{
-		return new ImmutableDecisionRequest(namedAttributes == null ? ImmutableSortedMap.of() : ImmutableSortedMap.copyOf(namedAttributes), contentNodesByCategory == null ? ImmutableSortedMap.of()
-				: ImmutableSortedMap.copyOf(contentNodesByCategory), returnApplicablePolicies);
+		final ImmutableSortedMap<AttributeFqn, AttributeBag<?>> sortedNamedAttributes = namedAttributes == null ? ImmutableSortedMap.of() : ImmutableSortedMap.copyOf(namedAttributes);
+		final ImmutableSortedMap<String, XdmNode> sortedContentNodesByCategory = contentNodesByCategory == null ? ImmutableSortedMap.of() : ImmutableSortedMap.copyOf(contentNodesByCategory);
+		DecisionRequestFingerprint fingerprint;
+		try
+		{
+			fingerprint = DecisionRequestFingerprint.newInstance(sortedNamedAttributes, sortedContentNodesByCategory, returnApplicablePolicies);
+		}
+		catch (final IllegalArgumentException e)
+		{
+			// not cacheable, getFingerprint() will throw the exception
+			fingerprint = null;
+		}
+
+		return new ImmutableDecisionRequest(sortedNamedAttributes, sortedContentNodesByCategory, returnApplicablePolicies, fingerprint);
 	}
 
 	/*
@@ -123,6 +141,17 @@ public final class ImmutableDecisionRequest implements DecisionRequest
 		return this.isApplicablePolicyListReturned;
 	}
 
+	@Override
+	public DecisionRequestFingerprint getFingerprint() throws IllegalArgumentException
+	{
+		if (fingerprint == null)
+		{
+			fingerprint = DecisionRequestFingerprint.newInstance(this.namedAttributes, this.extraContentByCategory, this.isApplicablePolicyListReturned);
+		}
+
+		return fingerprint;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
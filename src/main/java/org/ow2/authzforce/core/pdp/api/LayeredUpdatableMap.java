@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+
+/**
+ * {@link UpdatableMap} overlaying a base Map - typically the immutable named attributes of a {@link DecisionRequest} - with a mutable delta Map holding the entries put afterwards, e.g. the attribute
+ * values produced by Attribute Providers during evaluation. Creating it is constant-time since the base Map is not copied, and the delta Map is only allocated on the first update.
+ * <p>
+ * Entries put for keys already in the base Map override the base entries. Null keys and values are not supported.
+ * <p>
+ * The base Map must not be modified as long as this map is in use. Not thread-safe (the base Map may be shared by multiple instances in different threads however).
+ * 
+ * @param <K>
+ *            type of keys in this map
+ * @param <V>
+ *            type of mapped values
+ */
+public final class LayeredUpdatableMap<K, V> implements UpdatableMap<K, V>
+{
+	private final Map<K, V> base;
+	private Map<K, V> delta = null;
+
+	private LayeredUpdatableMap(final Map<K, V> base)
+	{
+		this.base = base;
+	}
+
+	/**
+	 * Creates instance
+	 * 
+	 * @param base
+	 *            base Map (not copied, therefore must not be modified afterwards); null is equivalent to an empty map
+	 * @return new instance
+	 */
+	public static <K, V> LayeredUpdatableMap<K, V> newInstance(final Map<K, V> base)
+	{
+		return new LayeredUpdatableMap<>(base == null ? Collections.emptyMap() : base);
+	}
+
+	private Map<K, V> delta()
+	{
+		if (delta == null)
+		{
+			delta = HashCollections.newUpdatableMap();
+		}
+
+		return delta;
+	}
+
+	@Override
+	public V put(final K key, final V value)
+	{
+		final V previousValue = delta().put(key, value);
+		return previousValue == null ? base.get(key) : previousValue;
+	}
+
+	@Override
+	public V putIfAbsent(final K key, final V value)
+	{
+		final V baseValue = base.get(key);
+		if (baseValue != null && (delta == null || !delta.containsKey(key)))
+		{
+			return baseValue;
+		}
+
+		return delta().putIfAbsent(key, value);
+	}
+
+	@Override
+	public void putAll(final Map<? extends K, ? extends V> m)
+	{
+		delta().putAll(m);
+	}
+
+	@Override
+	public boolean containsKey(final K key)
+	{
+		return delta != null && delta.containsKey(key) || base.containsKey(key);
+	}
+
+	@Override
+	public V get(final K key)
+	{
+		if (delta != null)
+		{
+			final V value = delta.get(key);
+			if (value != null)
+			{
+				return value;
+			}
+		}
+
+		return base.get(key);
+	}
+
+	/**
+	 * Get the number of entries (without duplicate keys) in this map
+	 * 
+	 * @return number of entries
+	 */
+	public int size()
+	{
+		if (delta == null || delta.isEmpty())
+		{
+			return base.size();
+		}
+
+		int overriddenCount = 0;
+		for (final K key : delta.keySet())
+		{
+			if (base.containsKey(key))
+			{
+				overriddenCount++;
+			}
+		}
+
+		return base.size() + delta.size() - overriddenCount;
+	}
+
+	/**
+	 * Returns an iterator over the (unmodifiable) entries of this map: the base entries not overridden, then the delta entries.
+	 * 
+	 * @return entry iterator
+	 */
+	public Iterator<Entry<K, V>> entryIterator()
+	{
+		final Iterator<Entry<K, V>> baseIterator = Collections.unmodifiableMap(base).entrySet().iterator();
+		if (delta == null || delta.isEmpty())
+		{
+			return baseIterator;
+		}
+
+		final Map<K, V> finalDelta = delta;
+		return Iterators.concat(Iterators.filter(baseIterator, entry -> !finalDelta.containsKey(entry.getKey())), Collections.unmodifiableMap(finalDelta).entrySet().iterator());
+	}
+
+	@Override
+	public ImmutableMap<K, V> copy()
+	{
+		if (delta == null || delta.isEmpty())
+		{
+			return ImmutableMap.copyOf(base);
+		}
+
+		final ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+		final Iterator<Entry<K, V>> entryIterator = entryIterator();
+		while (entryIterator.hasNext())
+		{
+			builder.put(entryIterator.next());
+		}
+
+		return builder.build();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LayeredUpdatableMap[base=" + base + ", delta=" + (delta == null ? "{}" : delta) + "]";
+	}
+
+}
@@ -17,8 +17,14 @@
  */
 package org.ow2.authzforce.core.pdp.api;
 
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
 import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
 
 /**
@@ -38,4 +44,35 @@ public interface NamedAttributeProvider extends AttributeProvider
 	 */
 	Set<AttributeDesignatorType> getProvidedAttributes();
 
+	/**
+	 * Provides values of several attributes at once, e.g. in a single request to the attribute source (one network round-trip). This is meant to be used when several attributes provided by this
+	 * provider (see {@link #getProvidedAttributes()}) are needed in the same evaluation context. Furthermore, implementations that get more attributes from the attribute source than requested (e.g. all
+	 * attributes of a directory entry) may put the extra ones in the evaluation context with {@link EvaluationContext#putNamedAttributeValueIfAbsent(AttributeFqn, AttributeBag)}, so that they are not
+	 * requested again in the same context. (The requested ones are put in the context by the caller, as for {@link #get(AttributeFqn, Datatype, EvaluationContext)}.)
+	 * <p>
+	 * The default implementation calls {@link #get(AttributeFqn, Datatype, EvaluationContext)} for each requested attribute in turn.
+	 * 
+	 * @param attributes
+	 *            requested attributes (global identifiers), with the expected datatype of each
+	 * @param context
+	 *            the request context
+	 * @return attribute values by attribute, with the same keys as {@code attributes}; each value as defined by {@link #get(AttributeFqn, Datatype, EvaluationContext)}
+	 * @throws UnsupportedOperationException
+	 *             if any of the requested attributes/datatypes is not supported
+	 * @throws IndeterminateEvaluationException
+	 *             if the attributes are supported but some error occurred while trying to resolve any of them. Callers may fall back to {@link #get(AttributeFqn, Datatype, EvaluationContext)} to
+	 *             get the others.
+	 */
+	default Map<AttributeFqn, AttributeBag<?>> getAll(final Map<AttributeFqn, Datatype<? extends AttributeValue>> attributes, final EvaluationContext context)
+			throws IndeterminateEvaluationException
+	{
+		final Map<AttributeFqn, AttributeBag<?>> results = HashCollections.newUpdatableMap(attributes.size());
+		for (final Entry<AttributeFqn, Datatype<? extends AttributeValue>> attribute : attributes.entrySet())
+		{
+			results.put(attribute.getKey(), get(attribute.getKey(), attribute.getValue(), context));
+		}
+
+		return results;
+	}
+
 }
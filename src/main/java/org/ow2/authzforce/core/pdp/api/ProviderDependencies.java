@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactory;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
+import com.google.common.collect.ImmutableList;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * Dependency attributes of an Attribute Provider (see {@link CloseableNamedAttributeProvider.DependencyAwareFactory#getDependencies()}) in a fixed order, with the means to resolve their values in a
+ * given evaluation context. Used by provider decorators to build {@link DependentAttributeKey}s.
+ * <p>
+ * Immutable.
+ */
+final class ProviderDependencies
+{
+	private final ImmutableList<AttributeFqn> attributeFqns;
+	private final ImmutableList<Datatype<? extends AttributeValue>> datatypes;
+	private final AttributeProvider dependencyAttributeProvider;
+
+	/**
+	 * Creates instance
+	 * 
+	 * @param dependencies
+	 *            dependency attributes (null or empty if none)
+	 * @param attributeValueFactories
+	 *            attribute value factories, used to get the dependencies' datatypes
+	 * @param dependencyAttributeProvider
+	 *            provider of the dependency attributes
+	 * @throws IllegalArgumentException
+	 *             if the datatype of a dependency is not supported by {@code attributeValueFactories}
+	 */
+	ProviderDependencies(final Set<AttributeDesignatorType> dependencies, final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+			throws IllegalArgumentException
+	{
+		if (dependencies == null || dependencies.isEmpty())
+		{
+			this.attributeFqns = ImmutableList.of();
+			this.datatypes = ImmutableList.of();
+		}
+		else
+		{
+			final List<AttributeFqn> mutableAttributeFqns = new ArrayList<>(dependencies.size());
+			final List<Datatype<? extends AttributeValue>> mutableDatatypes = new ArrayList<>(dependencies.size());
+			for (final AttributeDesignatorType dependency : dependencies)
+			{
+				final AttributeValueFactory<?> attributeValueFactory = attributeValueFactories.getExtension(dependency.getDataType());
+				if (attributeValueFactory == null)
+				{
+					throw new IllegalArgumentException("Unsupported datatype of Attribute Provider dependency " + dependency + ": " + dependency.getDataType());
+				}
+
+				mutableAttributeFqns.add(AttributeFqns.newInstance(dependency));
+				mutableDatatypes.add(attributeValueFactory.getDatatype());
+			}
+
+			this.attributeFqns = ImmutableList.copyOf(mutableAttributeFqns);
+			this.datatypes = ImmutableList.copyOf(mutableDatatypes);
+		}
+
+		this.dependencyAttributeProvider = dependencyAttributeProvider;
+	}
+
+	/**
+	 * Resolves the values of the dependency attributes
+	 * 
+	 * @param context
+	 *            evaluation context
+	 * @return values of the dependency attributes, in the same order for all calls
+	 * @throws IndeterminateEvaluationException
+	 *             error resolving any of the dependency attributes
+	 */
+	List<AttributeBag<?>> resolve(final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final List<AttributeBag<?>> values = new ArrayList<>(attributeFqns.size());
+		for (int i = 0; i < attributeFqns.size(); i++)
+		{
+			values.add(dependencyAttributeProvider.get(attributeFqns.get(i), datatypes.get(i), context));
+		}
+
+		return values;
+	}
+
+	/**
+	 * Maps values returned by {@link #resolve(EvaluationContext)} to the dependency attributes, e.g. to create a {@link DetachedEvaluationContext}
+	 * 
+	 * @param values
+	 *            dependency values
+	 * @return dependency values by attribute
+	 */
+	Map<AttributeFqn, AttributeBag<?>> toMap(final List<AttributeBag<?>> values)
+	{
+		assert values.size() == attributeFqns.size();
+		final Map<AttributeFqn, AttributeBag<?>> map = HashCollections.newUpdatableMap(attributeFqns.size());
+		for (int i = 0; i < attributeFqns.size(); i++)
+		{
+			map.put(attributeFqns.get(i), values.get(i));
+		}
+
+		return map;
+	}
+
+}
@@ -0,0 +1,636 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.xacml.identifiers.XacmlStatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * {@link CloseableNamedAttributeProvider} decorator protecting the evaluation against a slow or unavailable attribute source (LDAP directory, HTTP service...) behind the decorated provider, so that
+ * a degraded source does not hold all decision threads. Features (all optional):
+ * <ul>
+ * <li>deadline: maximum time waiting for the decorated provider to return, after which the call is abandoned (the decorated provider is then called with an {@link Executor}, and an evaluation
+ * context holding only the values of its dependency attributes);</li>
+ * <li>bulkhead: maximum number of concurrent calls to the decorated provider, beyond which calls are rejected immediately. Abandoned (timed-out) calls still count until they actually return;</li>
+ * <li>circuit breaker: after a given number of consecutive failures, the decorated provider is no longer called (circuit open) for a given duration, then a single trial call is allowed (circuit
+ * half-open) that closes the circuit if successful, else opens it again. Outcomes of calls started before the circuit opened and returning after are ignored.</li>
+ * </ul>
+ * A failure is a timeout, or an {@link IndeterminateEvaluationException} or {@link RuntimeException} - other than {@link UnsupportedOperationException}, which is rethrown as is since it means
+ * that the decorated provider does not support the attribute and another provider should be tried - from the decorated provider. An interruption of the calling thread while waiting for the
+ * decorated provider is not a failure, neither is a rejection of the call by the call executor (handled like a bulkhead rejection). In all these cases but {@link UnsupportedOperationException},
+ * as well as bulkhead or circuit-breaker rejections, {@link #get(AttributeFqn, Datatype, EvaluationContext)} fails with an {@link AttributeProviderUnavailableException} carrying the last value
+ * successfully returned for the same attribute and dependency values, if still cached; or, if {@link FactoryBuilder#returnFallbackValues(boolean)} is enabled, returns this fallback value directly.
+ * <p>
+ * Since the decorated provider is created by the decorated factory, instances are created with a {@link CloseableNamedAttributeProvider.DependencyAwareFactory} built by
+ * {@link #newFactoryBuilder(CloseableNamedAttributeProvider.DependencyAwareFactory)}.
+ */
+public final class ResilientNamedAttributeProvider implements CloseableNamedAttributeProvider
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResilientNamedAttributeProvider.class);
+
+	private static final long DEFAULT_FALLBACK_CACHE_SIZE = 1000;
+
+	/**
+	 * Builder of {@link CloseableNamedAttributeProvider.DependencyAwareFactory} creating {@link ResilientNamedAttributeProvider}s. Not thread-safe.
+	 */
+	public static final class FactoryBuilder
+	{
+		private final DependencyAwareFactory providerFactory;
+		private long timeoutNanos = -1;
+		private Executor executor = null;
+		private int maxConcurrentCalls = -1;
+		private int failureThreshold = -1;
+		private long openDurationNanos = 0;
+		private long fallbackCacheSize = DEFAULT_FALLBACK_CACHE_SIZE;
+		private boolean returnFallbackValues = false;
+		private Ticker ticker = Ticker.systemTicker();
+
+		private FactoryBuilder(final DependencyAwareFactory providerFactory)
+		{
+			// use ResilientNamedAttributeProvider#newFactoryBuilder(DependencyAwareFactory)
+			Preconditions.checkArgument(providerFactory != null, "Undefined Attribute Provider factory");
+			this.providerFactory = providerFactory;
+		}
+
+		/**
+		 * Sets the deadline of calls to the decorated provider. Default: none (the decorated provider is called in the caller's thread).
+		 *
+		 * @param duration
+		 *            maximum time waiting for the decorated provider (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @param callExecutor
+		 *            executor of the calls to the decorated provider. Its thread pool (or queue) should be bounded consistently with {@link #maximumConcurrentCalls(int)}.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null || callExecutor == null}
+		 */
+		public FactoryBuilder timeout(final long duration, final TimeUnit unit, final Executor callExecutor) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid Attribute Provider timeout (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined Attribute Provider timeout unit");
+			Preconditions.checkArgument(callExecutor != null, "Undefined Attribute Provider call executor");
+			this.timeoutNanos = unit.toNanos(duration);
+			this.executor = callExecutor;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of concurrent calls to the decorated provider (bulkhead). Default: unlimited.
+		 *
+		 * @param maximumConcurrentCalls
+		 *            maximum number of concurrent calls (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumConcurrentCalls <= 0}
+		 */
+		public FactoryBuilder maximumConcurrentCalls(final int maximumConcurrentCalls) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumConcurrentCalls > 0, "Invalid maximum number of concurrent Attribute Provider calls (must be > 0): %s", maximumConcurrentCalls);
+			this.maxConcurrentCalls = maximumConcurrentCalls;
+			return this;
+		}
+
+		/**
+		 * Enables the circuit breaker. Default: disabled.
+		 *
+		 * @param consecutiveFailureThreshold
+		 *            number of consecutive failures opening the circuit (strictly positive)
+		 * @param openDuration
+		 *            time during which the circuit stays open, before a trial call is allowed (strictly positive)
+		 * @param unit
+		 *            unit of {@code openDuration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code consecutiveFailureThreshold <= 0 || openDuration <= 0 || unit == null}
+		 */
+		public FactoryBuilder circuitBreaker(final int consecutiveFailureThreshold, final long openDuration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(consecutiveFailureThreshold > 0, "Invalid circuit breaker failure threshold (must be > 0): %s", consecutiveFailureThreshold);
+			Preconditions.checkArgument(openDuration > 0, "Invalid circuit breaker open duration (must be > 0): %s", openDuration);
+			Preconditions.checkArgument(unit != null, "Undefined circuit breaker open duration unit");
+			this.failureThreshold = consecutiveFailureThreshold;
+			this.openDurationNanos = unit.toNanos(openDuration);
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of last known values kept as fallback values. Default: 1000.
+		 *
+		 * @param maximumSize
+		 *            maximum number of fallback values (positive), 0 to disable fallback values
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumSize < 0}
+		 */
+		public FactoryBuilder fallbackCacheSize(final long maximumSize) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumSize >= 0, "Invalid fallback cache size (must be >= 0): %s", maximumSize);
+			this.fallbackCacheSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Sets whether the fallback value, if any, is returned instead of throwing {@link AttributeProviderUnavailableException} when the decorated provider fails or is not called. Default: false.
+		 *
+		 * @param enabled
+		 *            true iff fallback values are returned
+		 * @return this builder
+		 */
+		public FactoryBuilder returnFallbackValues(final boolean enabled)
+		{
+			this.returnFallbackValues = enabled;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used by the circuit breaker. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public FactoryBuilder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Creates the factory
+		 *
+		 * @return dependency-aware factory of {@link ResilientNamedAttributeProvider}s, with the same dependencies as the decorated factory
+		 */
+		public DependencyAwareFactory build()
+		{
+			final ResilienceSettings settings = new ResilienceSettings(this);
+			return new DependencyAwareFactory()
+			{
+				@Override
+				public Set<AttributeDesignatorType> getDependencies()
+				{
+					return providerFactory.getDependencies();
+				}
+
+				@Override
+				public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+				{
+					final CloseableNamedAttributeProvider provider = providerFactory.getInstance(attributeValueFactories, dependencyAttributeProvider);
+					return new ResilientNamedAttributeProvider(provider, providerFactory.getDependencies(), attributeValueFactories, dependencyAttributeProvider, settings);
+				}
+			};
+		}
+	}
+
+	/*
+	 * Immutable copy of the builder settings
+	 */
+	private static final class ResilienceSettings
+	{
+		private final long timeoutNanos;
+		private final Executor executor;
+		private final int maxConcurrentCalls;
+		private final int failureThreshold;
+		private final long openDurationNanos;
+		private final long fallbackCacheSize;
+		private final boolean returnFallbackValues;
+		private final Ticker ticker;
+
+		private ResilienceSettings(final FactoryBuilder builder)
+		{
+			this.timeoutNanos = builder.timeoutNanos;
+			this.executor = builder.executor;
+			this.maxConcurrentCalls = builder.maxConcurrentCalls;
+			this.failureThreshold = builder.failureThreshold;
+			this.openDurationNanos = builder.openDurationNanos;
+			this.fallbackCacheSize = builder.fallbackCacheSize;
+			this.returnFallbackValues = builder.returnFallbackValues;
+			this.ticker = builder.ticker;
+		}
+	}
+
+	/*
+	 * Circuit breaker based on consecutive failures
+	 */
+	private static final class CircuitBreaker
+	{
+		private static final int CLOSED = 0;
+		private static final int OPEN = 1;
+		private static final int HALF_OPEN = 2;
+
+		private static final int CALL_REJECTED = 0;
+		private static final int CALL_ALLOWED = 1;
+		private static final int TRIAL_CALL_ALLOWED = 2;
+
+		private final int failureThreshold;
+		private final long openDurationNanos;
+		private final Ticker ticker;
+		private final AtomicInteger state = new AtomicInteger(CLOSED);
+		private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+		private volatile long openTime = 0;
+
+		private CircuitBreaker(final int failureThreshold, final long openDurationNanos, final Ticker ticker)
+		{
+			this.failureThreshold = failureThreshold;
+			this.openDurationNanos = openDurationNanos;
+			this.ticker = ticker;
+		}
+
+		/*
+		 * Returns CALL_ALLOWED, CALL_REJECTED, or TRIAL_CALL_ALLOWED if the caller got the trial permit: in half-open state, only one (trial) call is allowed, until its outcome is recorded by the
+		 * permit holder.
+		 */
+		private int acquireCall()
+		{
+			switch (state.get())
+			{
+				case CLOSED:
+					return CALL_ALLOWED;
+				case OPEN:
+					return ticker.read() - openTime >= openDurationNanos && state.compareAndSet(OPEN, HALF_OPEN) ? TRIAL_CALL_ALLOWED : CALL_REJECTED;
+				default:
+					return CALL_REJECTED;
+			}
+		}
+
+		/*
+		 * Gives back the trial permit without outcome, so that the next call is the trial call (the open duration has already elapsed)
+		 */
+		private void releaseTrialCall()
+		{
+			state.compareAndSet(HALF_OPEN, OPEN);
+		}
+
+		/*
+		 * Records a successful call. Only the holder of the trial permit may close the circuit; late outcomes of calls allowed before the circuit opened are ignored while it is not closed.
+		 */
+		private void onSuccess(final boolean trialCall)
+		{
+			if (trialCall)
+			{
+				consecutiveFailures.set(0);
+				state.compareAndSet(HALF_OPEN, CLOSED);
+				return;
+			}
+
+			if (state.get() == CLOSED)
+			{
+				consecutiveFailures.set(0);
+			}
+		}
+
+		/*
+		 * Records a failed call. Only the holder of the trial permit may re-open a half-open circuit; late outcomes of calls allowed before the circuit opened are ignored while it is not closed, so
+		 * that they do not extend the open period.
+		 */
+		private void onFailure(final boolean trialCall)
+		{
+			if (trialCall)
+			{
+				// openTime set before the state, so that acquireCall() reads the new openTime once the state is OPEN
+				openTime = ticker.read();
+				state.compareAndSet(HALF_OPEN, OPEN);
+				return;
+			}
+
+			if (state.get() != CLOSED || consecutiveFailures.incrementAndGet() < failureThreshold)
+			{
+				return;
+			}
+
+			synchronized (this)
+			{
+				if (state.get() == CLOSED)
+				{
+					openTime = ticker.read();
+					consecutiveFailures.set(0);
+					state.set(OPEN);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a builder of dependency-aware factory decorating the providers created by another factory with resilience features
+	 *
+	 * @param providerFactory
+	 *            factory of the providers to be decorated
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code providerFactory == null}
+	 */
+	public static FactoryBuilder newFactoryBuilder(final DependencyAwareFactory providerFactory) throws IllegalArgumentException
+	{
+		return new FactoryBuilder(providerFactory);
+	}
+
+	private final CloseableNamedAttributeProvider provider;
+	private final ProviderDependencies dependencies;
+	private final ResilienceSettings settings;
+	// null if unlimited
+	private final Semaphore bulkhead;
+	// null if disabled
+	private final CircuitBreaker circuitBreaker;
+	// null if disabled
+	private final Cache<DependentAttributeKey, AttributeBag<?>> fallbackValues;
+
+	private ResilientNamedAttributeProvider(final CloseableNamedAttributeProvider provider, final Set<AttributeDesignatorType> dependencies,
+			final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider, final ResilienceSettings settings)
+	{
+		assert provider != null && settings != null;
+		this.provider = provider;
+		this.dependencies = new ProviderDependencies(dependencies, attributeValueFactories, dependencyAttributeProvider);
+		this.settings = settings;
+		this.bulkhead = settings.maxConcurrentCalls > 0 ? new Semaphore(settings.maxConcurrentCalls) : null;
+		this.circuitBreaker = settings.failureThreshold > 0 ? new CircuitBreaker(settings.failureThreshold, settings.openDurationNanos, settings.ticker) : null;
+		this.fallbackValues = settings.fallbackCacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(settings.fallbackCacheSize).build() : null;
+	}
+
+	@Override
+	public Set<AttributeDesignatorType> getProvidedAttributes()
+	{
+		return provider.getProvidedAttributes();
+	}
+
+	/*
+	 * Returns the fallback value, or throws AttributeProviderUnavailableException carrying it
+	 */
+	private <AV extends AttributeValue> AttributeBag<AV> fallback(final DependentAttributeKey key, final String reason, final Throwable cause) throws AttributeProviderUnavailableException
+	{
+		/*
+		 * Datatype is part of the key
+		 */
+		@SuppressWarnings("unchecked")
+		final AttributeBag<AV> fallbackValue = fallbackValues == null ? null : (AttributeBag<AV>) fallbackValues.getIfPresent(key);
+		if (fallbackValue != null && settings.returnFallbackValues)
+		{
+			LOGGER.debug("Attribute Provider unavailable for attribute {} ({}): returning last known value", key, reason, cause);
+			return fallbackValue;
+		}
+
+		throw new AttributeProviderUnavailableException("Attribute Provider unavailable for attribute " + key.getAttributeFqn() + ": " + reason, XacmlStatusCode.PROCESSING_ERROR.value(), cause,
+				fallbackValue);
+	}
+
+	/*
+	 * Submits the call to the decorated provider to the call executor. The bulkhead permit (if any) is released when the call actually returns, or right away if the call is rejected.
+	 */
+	private <AV extends AttributeValue> CompletableFuture<AttributeBag<AV>> submitCall(final DependentAttributeKey key, final Datatype<AV> datatype) throws RejectedExecutionException
+	{
+		final EvaluationContext detachedContext = new DetachedEvaluationContext(dependencies.toMap(key.getDependencyValues()));
+		final CompletableFuture<AttributeBag<AV>> future = new CompletableFuture<>();
+		try
+		{
+			settings.executor.execute(() -> {
+				try
+				{
+					future.complete(provider.get(key.getAttributeFqn(), datatype, detachedContext));
+				}
+				catch (final IndeterminateEvaluationException | RuntimeException e)
+				{
+					future.completeExceptionally(e);
+				}
+				finally
+				{
+					if (bulkhead != null)
+					{
+						bulkhead.release();
+					}
+				}
+			});
+		}
+		catch (final RejectedExecutionException e)
+		{
+			if (bulkhead != null)
+			{
+				bulkhead.release();
+			}
+
+			throw e;
+		}
+
+		return future;
+	}
+
+	/*
+	 * Waits for the result of a call submitted with submitCall() until the deadline
+	 */
+	private <AV extends AttributeValue> AttributeBag<AV> callWithDeadline(final CompletableFuture<AttributeBag<AV>> future)
+			throws IndeterminateEvaluationException, TimeoutException, InterruptedException
+	{
+		try
+		{
+			return future.get(settings.timeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		catch (final ExecutionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof IndeterminateEvaluationException)
+			{
+				throw (IndeterminateEvaluationException) cause;
+			}
+
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+
+			// not expected: the call only completes exceptionally with the exceptions above
+			throw new IndeterminateEvaluationException("Error calling Attribute Provider", XacmlStatusCode.PROCESSING_ERROR.value(), cause);
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final List<AttributeBag<?>> dependencyValues = dependencies.resolve(context);
+		final DependentAttributeKey key = new DependentAttributeKey(attributeFQN, datatype, dependencyValues);
+		final int callPermit = circuitBreaker == null ? CircuitBreaker.CALL_ALLOWED : circuitBreaker.acquireCall();
+		if (callPermit == CircuitBreaker.CALL_REJECTED)
+		{
+			return fallback(key, "circuit open", null);
+		}
+
+		final boolean trialCall = callPermit == CircuitBreaker.TRIAL_CALL_ALLOWED;
+
+		if (bulkhead != null && !bulkhead.tryAcquire())
+		{
+			/*
+			 * Not a failure of the provider itself, but if this was the half-open trial call, re-open the circuit, else it would stay half-open forever. Only the holder of the trial permit may
+			 * do it, else it would re-open the circuit while the trial call of another thread is in progress.
+			 */
+			if (trialCall)
+			{
+				circuitBreaker.onFailure(true);
+			}
+
+			return fallback(key, "too many concurrent calls", null);
+		}
+
+		final CompletableFuture<AttributeBag<AV>> future;
+		if (settings.executor == null)
+		{
+			future = null;
+		}
+		else
+		{
+			try
+			{
+				future = submitCall(key, datatype);
+			}
+			catch (final RejectedExecutionException e)
+			{
+				/*
+				 * The call executor is saturated (or shut down): handled like a bulkhead rejection, the provider did not fail
+				 */
+				if (trialCall)
+				{
+					circuitBreaker.onFailure(true);
+				}
+
+				return fallback(key, "call rejected by executor", e);
+			}
+		}
+
+		final AttributeBag<AV> value;
+		try
+		{
+			if (future == null)
+			{
+				try
+				{
+					value = provider.get(attributeFQN, datatype, context);
+				}
+				finally
+				{
+					if (bulkhead != null)
+					{
+						bulkhead.release();
+					}
+				}
+			}
+			else
+			{
+				value = callWithDeadline(future);
+			}
+		}
+		catch (final TimeoutException e)
+		{
+			if (circuitBreaker != null)
+			{
+				circuitBreaker.onFailure(trialCall);
+			}
+
+			return fallback(key, "timeout", e);
+		}
+		catch (final UnsupportedOperationException e)
+		{
+			/*
+			 * Attribute not supported by the decorated provider, another provider should be tried: not a failure
+			 */
+			if (trialCall)
+			{
+				circuitBreaker.releaseTrialCall();
+			}
+
+			throw e;
+		}
+		catch (final InterruptedException e)
+		{
+			/*
+			 * The calling thread was interrupted while waiting (interrupt status already restored): not a failure of the provider
+			 */
+			if (trialCall)
+			{
+				circuitBreaker.releaseTrialCall();
+			}
+
+			return fallback(key, "interrupted", e);
+		}
+		catch (final IndeterminateEvaluationException | RuntimeException e)
+		{
+			if (circuitBreaker != null)
+			{
+				circuitBreaker.onFailure(trialCall);
+			}
+
+			return fallback(key, "call failed", e);
+		}
+
+		if (circuitBreaker != null)
+		{
+			circuitBreaker.onSuccess(trialCall);
+		}
+
+		if (fallbackValues != null)
+		{
+			fallbackValues.put(key, value);
+		}
+
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (fallbackValues != null)
+		{
+			fallbackValues.invalidateAll();
+		}
+
+		provider.close();
+	}
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.core.pdp.api.value.Value;
+
+/**
+ * {@link EvaluationContext} storing named attribute and variable values in arrays indexed by the slots assigned by {@link #getSlots()}, and giving direct access to them by slot. Expressions that
+ * know their slot in advance (registered with the same {@link ContextSlots} when the policies were loaded) should use the slot-based methods on the hot path; the other methods remain available and
+ * return the same values.
+ * <p>
+ * The slot-based methods also take the attribute/variable identifier, which must be the one the slot was registered for. It is used for values without slot (e.g. slot registered after the creation
+ * of the context), listeners and error messages.
+ */
+public interface SlotIndexedEvaluationContext extends EvaluationContext
+{
+	/**
+	 * Get the slot registry used by this context
+	 * 
+	 * @return slot registry
+	 */
+	ContextSlots getSlots();
+
+	/**
+	 * Same as {@link #getNamedAttributeValue(AttributeFqn, Datatype)} but using the attribute's slot, except that listeners are notified of the consumption only if the attribute is found (non-null
+	 * result): on a miss, the caller is expected to fall back to the Attribute Provider, which looks up the context again with {@link #getNamedAttributeValue(AttributeFqn, Datatype)}, so that
+	 * listeners see a single consumption per lookup.
+	 * 
+	 * @param slot
+	 *            slot of {@code attributeFQN} in {@link #getSlots()}
+	 * @param attributeFQN
+	 *            attribute GUID (global ID = Category,Issuer,AttributeId)
+	 * @param datatype
+	 *            attribute value datatype
+	 * @return attribute value(s), null iff attribute unknown (not set) in this context, empty if attribute known in this context but no value
+	 * @throws IndeterminateEvaluationException
+	 *             if the datatype of the attribute in context is different from {@code datatype}
+	 */
+	<AV extends AttributeValue> AttributeBag<AV> getNamedAttributeValue(int slot, AttributeFqn attributeFQN, Datatype<AV> datatype) throws IndeterminateEvaluationException;
+
+	/**
+	 * Same as {@link #putNamedAttributeValueIfAbsent(AttributeFqn, AttributeBag)} but using the attribute's slot
+	 * 
+	 * @param slot
+	 *            slot of {@code attributeFQN} in {@link #getSlots()}
+	 * @param attributeFQN
+	 *            attribute's global ID
+	 * @param result
+	 *            attribute values
+	 * @return false iff there is already a matching value in this context (this operation did NOT succeed)
+	 */
+	boolean putNamedAttributeValueIfAbsent(int slot, AttributeFqn attributeFQN, AttributeBag<?> result);
+
+	/**
+	 * Same as {@link #getVariableValue(String, Datatype)} but using the variable's slot
+	 * 
+	 * @param slot
+	 *            slot of {@code variableId} in {@link #getSlots()}
+	 * @param variableId
+	 *            identifies the VariableDefinition
+	 * @param datatype
+	 *            datatype
+	 * @return value of the evaluated VariableDefinition's expression, or null if not evaluated (yet) in this context
+	 * @throws IndeterminateEvaluationException
+	 *             if actual datatype of variable value in context does not match expected {@code datatype}
+	 */
+	<V extends Value> V getVariableValue(int slot, String variableId, Datatype<V> datatype) throws IndeterminateEvaluationException;
+
+	/**
+	 * Same as {@link #putVariableIfAbsent(String, Value)} but using the variable's slot
+	 * 
+	 * @param slot
+	 *            slot of {@code variableId} in {@link #getSlots()}
+	 * @param variableId
+	 *            identifies the VariableDefinition
+	 * @param value
+	 *            value of the VariableDefinition's expression evaluated in this context
+	 * @return false iff there is already a value for this variable in context (this operation could NOT succeed).
+	 */
+	boolean putVariableIfAbsent(int slot, String variableId, Value value);
+}
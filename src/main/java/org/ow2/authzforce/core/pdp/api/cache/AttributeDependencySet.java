@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionRequestFingerprint;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Set of request attributes (and attribute categories of request Content, if any AttributeSelector was evaluated) that a decision result depends on, i.e. that were consumed during the evaluation of
+ * the decision request. Any two requests with the same values for these attributes and Content (and same ReturnPolicyIdList flag) are evaluated the same way, therefore may share the same decision
+ * cache entry.
+ * <p>
+ * Immutable.
+ */
+final class AttributeDependencySet
+{
+	/**
+	 * Cache key for a request projected on a set of dependencies. Distinct from the fingerprint of a full request (not even equal to the fingerprint of a request that only has the projected
+	 * attributes), and from the projection of the same request on another set of dependencies, so that a result computed without some attribute (undefined) is never returned for a request where
+	 * this attribute is defined.
+	 * <p>
+	 * Immutable.
+	 */
+	static final class ProjectedRequestKey
+	{
+		private final AttributeDependencySet dependencySet;
+		private final DecisionRequestFingerprint projectionFingerprint;
+
+		private transient final int hashCode;
+
+		private ProjectedRequestKey(final AttributeDependencySet dependencySet, final DecisionRequestFingerprint projectionFingerprint)
+		{
+			assert dependencySet != null && projectionFingerprint != null;
+			this.dependencySet = dependencySet;
+			this.projectionFingerprint = projectionFingerprint;
+			this.hashCode = 31 * dependencySet.hashCode() + projectionFingerprint.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (this == obj)
+			{
+				return true;
+			}
+
+			if (!(obj instanceof ProjectedRequestKey))
+			{
+				return false;
+			}
+
+			final ProjectedRequestKey other = (ProjectedRequestKey) obj;
+			return this.hashCode == other.hashCode && this.dependencySet.equals(other.dependencySet) && this.projectionFingerprint.equals(other.projectionFingerprint);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "ProjectedRequestKey[dependencySet=" + dependencySet + ", projectionFingerprint=" + projectionFingerprint + "]";
+		}
+	}
+
+	private final ImmutableSortedSet<AttributeFqn> attributes;
+	private final ImmutableSortedSet<String> contentCategories;
+
+	private transient final int hashCode;
+
+	AttributeDependencySet(final ImmutableSortedSet<AttributeFqn> attributes, final ImmutableSortedSet<String> contentCategories)
+	{
+		assert attributes != null && contentCategories != null;
+		this.attributes = attributes;
+		this.contentCategories = contentCategories;
+		this.hashCode = 31 * attributes.hashCode() + contentCategories.hashCode();
+	}
+
+	ImmutableSortedSet<AttributeFqn> getAttributes()
+	{
+		return attributes;
+	}
+
+	ImmutableSortedSet<String> getContentCategories()
+	{
+		return contentCategories;
+	}
+
+	/**
+	 * Computes the cache key of the projection of a request on this set of dependencies, i.e. the fingerprint of the request restricted to the attributes (and Content) in this set, qualified by this
+	 * set. An attribute in this set but missing from the request is part of the key as such (undefined).
+	 * 
+	 * @param request
+	 *            decision request
+	 * @return key of the projection of {@code request} on this set of dependencies, never equal to a full request fingerprint
+	 */
+	ProjectedRequestKey project(final DecisionRequest request)
+	{
+		final Map<AttributeFqn, AttributeBag<?>> requestAttributes = request.getNamedAttributes();
+		// TreeMap allows null values, i.e. undefined attributes
+		final SortedMap<AttributeFqn, AttributeBag<?>> projectedAttributes = new TreeMap<>();
+		for (final AttributeFqn attributeFqn : attributes)
+		{
+			projectedAttributes.put(attributeFqn, requestAttributes.get(attributeFqn));
+		}
+
+		final Map<String, XdmNode> projectedContents;
+		if (contentCategories.isEmpty())
+		{
+			projectedContents = null;
+		}
+		else
+		{
+			final Map<String, XdmNode> requestContents = request.getExtraContentsByCategory();
+			projectedContents = new TreeMap<>();
+			for (final String category : contentCategories)
+			{
+				final XdmNode content = requestContents.get(category);
+				if (content != null)
+				{
+					projectedContents.put(category, content);
+				}
+			}
+		}
+
+		return new ProjectedRequestKey(this, DecisionRequestFingerprint.newInstance(projectedAttributes, projectedContents, request.isApplicablePolicyIdListReturned()));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(final Object obj)
+	{
+		if (this == obj)
+		{
+			return true;
+		}
+
+		if (!(obj instanceof AttributeDependencySet))
+		{
+			return false;
+		}
+
+		final AttributeDependencySet other = (AttributeDependencySet) obj;
+		return this.attributes.equals(other.attributes) && this.contentCategories.equals(other.contentCategories);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AttributeDependencySet[attributes=" + attributes + ", contentCategories=" + contentCategories + "]";
+	}
+
+}
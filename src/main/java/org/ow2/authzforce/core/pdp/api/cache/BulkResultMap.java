@@ -0,0 +1,202 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.ow2.authzforce.core.pdp.api.DecisionCache;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+
+/**
+ * Compact immutable map of decision results by request, returned by {@link DecisionCache#getAll(java.util.List)} implementations. Keys and values are stored in two arrays, and indexed by an
+ * open-addressing hash table of array positions (int array), instead of one {@link java.util.HashMap} node object per entry.
+ * 
+ * @param <K>
+ *            request type
+ */
+final class BulkResultMap<K extends DecisionRequest> extends AbstractMap<K, DecisionResult>
+{
+	private final Object[] keys;
+	private final DecisionResult[] values;
+	/*
+	 * Position in keys/values + 1 (0 = empty slot)
+	 */
+	private final int[] table;
+	private final int tableMask;
+	private final int size;
+
+	/**
+	 * Creates map from requests and results in the same order. Null results are skipped, i.e. the requests are not keys in the map.
+	 * 
+	 * @param requests
+	 *            requests
+	 * @param results
+	 *            results, {@code results[i]} being the result of {@code requests[i]}, or null if none
+	 */
+	BulkResultMap(final Object[] requests, final DecisionResult[] results)
+	{
+		assert requests != null && results != null && requests.length == results.length;
+
+		int size = 0;
+		for (final DecisionResult result : results)
+		{
+			if (result != null)
+			{
+				size++;
+			}
+		}
+
+		this.keys = new Object[size];
+		this.values = new DecisionResult[size];
+		int tableSize = 2;
+		while (tableSize < 2 * size)
+		{
+			tableSize <<= 1;
+		}
+
+		this.table = new int[tableSize];
+		this.tableMask = tableSize - 1;
+
+		int position = 0;
+		for (int i = 0; i < requests.length; i++)
+		{
+			if (results[i] == null)
+			{
+				continue;
+			}
+
+			final Object key = requests[i];
+			int slot = spread(key.hashCode()) & tableMask;
+			boolean isDuplicate = false;
+			while (table[slot] != 0)
+			{
+				if (keys[table[slot] - 1].equals(key))
+				{
+					isDuplicate = true;
+					break;
+				}
+
+				slot = (slot + 1) & tableMask;
+			}
+
+			if (!isDuplicate)
+			{
+				keys[position] = key;
+				values[position] = results[i];
+				table[slot] = ++position;
+			}
+		}
+
+		this.size = position;
+	}
+
+	private static int spread(final int hashCode)
+	{
+		return hashCode ^ hashCode >>> 16;
+	}
+
+	private int positionOf(final Object key)
+	{
+		if (key == null)
+		{
+			return -1;
+		}
+
+		int slot = spread(key.hashCode()) & tableMask;
+		while (table[slot] != 0)
+		{
+			final int position = table[slot] - 1;
+			if (keys[position] == key || keys[position].equals(key))
+			{
+				return position;
+			}
+
+			slot = (slot + 1) & tableMask;
+		}
+
+		return -1;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(final Object key)
+	{
+		return positionOf(key) >= 0;
+	}
+
+	@Override
+	public DecisionResult get(final Object key)
+	{
+		final int position = positionOf(key);
+		return position < 0 ? null : values[position];
+	}
+
+	@Override
+	public Set<Map.Entry<K, DecisionResult>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<K, DecisionResult>>()
+		{
+			@Override
+			public Iterator<Map.Entry<K, DecisionResult>> iterator()
+			{
+				return new Iterator<Map.Entry<K, DecisionResult>>()
+				{
+					private int position = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return position < size;
+					}
+
+					@Override
+					public Map.Entry<K, DecisionResult> next()
+					{
+						if (position >= size)
+						{
+							throw new NoSuchElementException();
+						}
+
+						@SuppressWarnings("unchecked")
+						final K key = (K) keys[position];
+						final Map.Entry<K, DecisionResult> entry = new SimpleImmutableEntry<>(key, values[position]);
+						position++;
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.Optional;
+import java.util.Set;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.HashCollections;
+import org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Bag;
+import org.ow2.authzforce.core.pdp.api.value.XPathValue;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * {@link EvaluationContext} listener recording the named attributes and AttributeSelectors' Content categories consumed during the evaluation of a request, to find out what request attributes the
+ * decision result actually depends on.
+ * <p>
+ * Not thread-safe, since an evaluation context is used by one thread at a time.
+ */
+final class ConsumedAttributesRecorder implements EvaluationContext.Listener
+{
+	private final Set<AttributeFqn> consumedAttributes = HashCollections.newUpdatableSet();
+	private final Set<String> consumedContentCategories = HashCollections.newUpdatableSet();
+
+	@Override
+	public <AV extends AttributeValue> void namedAttributeValueProduced(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+	{
+		// production does not matter, only consumption
+	}
+
+	@Override
+	public <AV extends AttributeValue> void namedAttributeValueConsumed(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+	{
+		consumedAttributes.add(attributeFQN);
+	}
+
+	@Override
+	public <AV extends AttributeValue> void attributeSelectorResultProduced(final AttributeSelectorExpression<AV> attributeSelector, final Optional<AttributeBag<XPathValue>> contextSelectorBag,
+			final Bag<AV> result)
+	{
+		// production does not matter, only consumption
+	}
+
+	@Override
+	public <AV extends AttributeValue> void attributeSelectorResultConsumed(final AttributeSelectorExpression<AV> attributeSelector, final Bag<AV> result)
+	{
+		consumedContentCategories.add(attributeSelector.getAttributeSelectorId().getCategory());
+		final Optional<AttributeFqn> contextSelectorFqn = attributeSelector.getContextSelectorFQN();
+		if (contextSelectorFqn.isPresent())
+		{
+			consumedAttributes.add(contextSelectorFqn.get());
+		}
+	}
+
+	/**
+	 * Get the dependencies recorded so far
+	 * 
+	 * @return consumed attributes and Content categories
+	 */
+	AttributeDependencySet getDependencies()
+	{
+		return new AttributeDependencySet(ImmutableSortedSet.copyOf(consumedAttributes), ImmutableSortedSet.copyOf(consumedContentCategories));
+	}
+
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.PepAction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.DecisionType;
+
+/**
+ * Per-outcome caching rules of decision results, telling decision caches whether and how long a given {@link DecisionResult} may be cached, depending on its decision, the status code of the cause
+ * if Indeterminate, and its PEP actions. For example:
+ * <ul>
+ * <li>NotApplicable results may be cached longer than others, since they usually depend less on attributes that change frequently;</li>
+ * <li>Indeterminate results caused by a temporary failure of an attribute source (e.g. status code {@code urn:oasis:names:tc:xacml:1.0:status:missing-attribute}) may be cached for a short time, to
+ * avoid hammering the failing source without pinning the error for too long;</li>
+ * <li>results with mandatory PEP actions (Obligations) may be excluded from caching, if they must be fulfilled with fresh attribute values.</li>
+ * </ul>
+ * Rules that do not apply to a given result fall back to the cache's default time-to-live.
+ * <p>
+ * Immutable.
+ */
+public final class DecisionCachingRules
+{
+	/**
+	 * Rules caching all results with the cache's default time-to-live
+	 */
+	public static final DecisionCachingRules DEFAULT = newBuilder().build();
+
+	/*
+	 * Special TTL value meaning "do not cache"
+	 */
+	private static final long NOT_CACHED = 0;
+
+	/**
+	 * Builder of {@link DecisionCachingRules}. Not thread-safe.
+	 */
+	public static final class Builder
+	{
+		private final Map<DecisionType, Long> ttlNanosByDecision = new EnumMap<>(DecisionType.class);
+		private final Map<String, Long> ttlNanosByIndeterminateStatusCode = new HashMap<>();
+		private boolean mandatoryPepActionsCached = true;
+
+		private Builder()
+		{
+			// use DecisionCachingRules#newBuilder()
+		}
+
+		/**
+		 * Sets the time-to-live of results with a given decision, overriding the cache's default TTL
+		 *
+		 * @param decision
+		 *            decision
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code decision == null || duration <= 0 || unit == null}
+		 */
+		public Builder timeToLive(final DecisionType decision, final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(decision != null, "Undefined decision");
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.ttlNanosByDecision.put(decision, unit.toNanos(duration));
+			return this;
+		}
+
+		/**
+		 * Sets the time-to-live of Indeterminate results caused by an error with a given status code (see {@link IndeterminateEvaluationException#getStatusCode()}), overriding the TTL set for
+		 * Indeterminate results with {@link #timeToLive(DecisionType, long, TimeUnit)} if any, and the cache's default TTL
+		 *
+		 * @param statusCode
+		 *            status code of the cause of Indeterminate results, e.g. {@code urn:oasis:names:tc:xacml:1.0:status:missing-attribute}
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code statusCode == null || duration <= 0 || unit == null}
+		 */
+		public Builder indeterminateTimeToLive(final String statusCode, final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(statusCode != null, "Undefined status code");
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.ttlNanosByIndeterminateStatusCode.put(statusCode, unit.toNanos(duration));
+			return this;
+		}
+
+		/**
+		 * Excludes results with a given decision from caching
+		 *
+		 * @param decision
+		 *            decision
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code decision == null}
+		 */
+		public Builder notCached(final DecisionType decision) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(decision != null, "Undefined decision");
+			this.ttlNanosByDecision.put(decision, NOT_CACHED);
+			return this;
+		}
+
+		/**
+		 * Excludes Indeterminate results caused by an error with a given status code from caching
+		 *
+		 * @param statusCode
+		 *            status code of the cause of Indeterminate results
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code statusCode == null}
+		 */
+		public Builder indeterminateNotCached(final String statusCode) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(statusCode != null, "Undefined status code");
+			this.ttlNanosByIndeterminateStatusCode.put(statusCode, NOT_CACHED);
+			return this;
+		}
+
+		/**
+		 * Excludes results with mandatory PEP actions (XACML Obligations, see {@link PepAction#isMandatory()}) from caching, whatever the decision. Results with optional PEP actions (XACML Advice)
+		 * only are still cached.
+		 *
+		 * @return this builder
+		 */
+		public Builder mandatoryPepActionsNotCached()
+		{
+			this.mandatoryPepActionsCached = false;
+			return this;
+		}
+
+		/**
+		 * Creates the caching rules
+		 *
+		 * @return new instance
+		 */
+		public DecisionCachingRules build()
+		{
+			return new DecisionCachingRules(this);
+		}
+	}
+
+	/**
+	 * Creates a builder of {@link DecisionCachingRules}
+	 *
+	 * @return new builder
+	 */
+	public static Builder newBuilder()
+	{
+		return new Builder();
+	}
+
+	private final ImmutableMap<DecisionType, Long> ttlNanosByDecision;
+	private final ImmutableMap<String, Long> ttlNanosByIndeterminateStatusCode;
+	private final boolean mandatoryPepActionsCached;
+
+	private DecisionCachingRules(final Builder builder)
+	{
+		this.ttlNanosByDecision = Maps.immutableEnumMap(builder.ttlNanosByDecision);
+		this.ttlNanosByIndeterminateStatusCode = ImmutableMap.copyOf(builder.ttlNanosByIndeterminateStatusCode);
+		this.mandatoryPepActionsCached = builder.mandatoryPepActionsCached;
+	}
+
+	private static boolean hasMandatoryPepAction(final DecisionResult result)
+	{
+		for (final PepAction pepAction : result.getPepActions())
+		{
+			if (pepAction.isMandatory())
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the time-to-live of a given decision result in cache, according to these rules
+	 *
+	 * @param result
+	 *            decision result
+	 * @param defaultTimeToLiveNanos
+	 *            cache's default TTL in nanoseconds, negative if entries do not expire by default
+	 * @return TTL of {@code result} in nanoseconds; negative if {@code result} does not expire; 0 if {@code result} must not be cached
+	 */
+	public long getTimeToLiveNanos(final DecisionResult result, final long defaultTimeToLiveNanos)
+	{
+		if (!mandatoryPepActionsCached && hasMandatoryPepAction(result))
+		{
+			return NOT_CACHED;
+		}
+
+		final DecisionType decision = result.getDecision();
+		if (decision == DecisionType.INDETERMINATE && !ttlNanosByIndeterminateStatusCode.isEmpty())
+		{
+			final Optional<IndeterminateEvaluationException> cause = result.getCauseForIndeterminate();
+			if (cause.isPresent())
+			{
+				final Long ttlNanos = ttlNanosByIndeterminateStatusCode.get(cause.get().getStatusCode());
+				if (ttlNanos != null)
+				{
+					return ttlNanos;
+				}
+			}
+		}
+
+		final Long ttlNanos = ttlNanosByDecision.get(decision);
+		return ttlNanos == null ? defaultTimeToLiveNanos : ttlNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DecisionCachingRules[ttlNanosByDecision=" + ttlNanosByDecision + ", ttlNanosByIndeterminateStatusCode=" + ttlNanosByIndeterminateStatusCode + ", mandatoryPepActionsCached="
+				+ mandatoryPepActionsCached + "]";
+	}
+
+}
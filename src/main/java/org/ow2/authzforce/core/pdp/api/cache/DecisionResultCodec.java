@@ -0,0 +1,485 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+
+import javax.xml.namespace.QName;
+
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+import org.ow2.authzforce.core.pdp.api.DecisionResults;
+import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.PepAction;
+import org.ow2.authzforce.core.pdp.api.PepActionAttributeAssignment;
+import org.ow2.authzforce.core.pdp.api.StatusHelper;
+import org.ow2.authzforce.core.pdp.api.expression.ConstantExpression;
+import org.ow2.authzforce.core.pdp.api.policy.BasePrimaryPolicyMetadata;
+import org.ow2.authzforce.core.pdp.api.policy.PolicyVersion;
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+import org.ow2.authzforce.core.pdp.api.policy.TopLevelPolicyElementType;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.XPathValue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.DecisionType;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.Status;
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.StatusCode;
+
+/**
+ * Compact binary codec for {@link DecisionResult}s - including decision, status, {@link PepAction}s and applicable policies ({@link PrimaryPolicyMetadata}) - typically used by decision caches that
+ * store results outside the Java heap or on disk.
+ * <p>
+ * Limitations:
+ * <ul>
+ * <li>StatusDetail is not encoded (dropped).</li>
+ * <li>The cause of an Indeterminate result is encoded as its status code and message only (no stacktrace, no internal cause).</li>
+ * <li>Only text (String) content of attribute values in PEP actions' attribute assignments is supported, and attribute values are restored without XPath compiler, so values of XACML datatype
+ * xpathExpression are not supported.</li>
+ * </ul>
+ * Immutable and thread-safe.
+ */
+public final class DecisionResultCodec
+{
+	private static final IllegalArgumentException NULL_ATTRIBUTE_VALUE_FACTORIES_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined attribute value factories");
+
+	private static final int EXPECTED_ENCODED_SIZE = 64;
+
+	/*
+	 * Minimum encoded sizes of the items of encoded lists, used to reject invalid item counts before allocating anything, e.g. a corrupted count of 2^31 - 1 strings
+	 */
+	private static final int MIN_ENCODED_STRING_SIZE = 4;
+	private static final int MIN_ENCODED_OPTIONAL_STRING_SIZE = 1;
+	private static final int MIN_ENCODED_XML_ATTRIBUTE_SIZE = 4 * MIN_ENCODED_STRING_SIZE;
+	private static final int MIN_ENCODED_ATTRIBUTE_ASSIGNMENT_SIZE = 2 * MIN_ENCODED_STRING_SIZE + 2 * MIN_ENCODED_OPTIONAL_STRING_SIZE + 4 + 4;
+	private static final int MIN_ENCODED_PEP_ACTION_SIZE = MIN_ENCODED_STRING_SIZE + 1 + 4;
+	private static final int MIN_ENCODED_POLICY_SIZE = 1 + 2 * MIN_ENCODED_STRING_SIZE;
+
+	private static final DecisionType[] DECISIONS = DecisionType.values();
+	private static final TopLevelPolicyElementType[] POLICY_TYPES = TopLevelPolicyElementType.values();
+
+	private final AttributeValueFactoryRegistry attributeValueFactories;
+
+	/**
+	 * Creates codec
+	 * 
+	 * @param attributeValueFactories
+	 *            AttributeValue factories used to restore attribute values in PEP actions' attribute assignments
+	 * @throws IllegalArgumentException
+	 *             if {@code attributeValueFactories == null}
+	 */
+	public DecisionResultCodec(final AttributeValueFactoryRegistry attributeValueFactories) throws IllegalArgumentException
+	{
+		if (attributeValueFactories == null)
+		{
+			throw NULL_ATTRIBUTE_VALUE_FACTORIES_ARGUMENT_EXCEPTION;
+		}
+
+		this.attributeValueFactories = attributeValueFactories;
+	}
+
+	static void writeString(final ByteArrayDataOutput out, final String s)
+	{
+		final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static void writeOptionalString(final ByteArrayDataOutput out, final Optional<String> s)
+	{
+		out.writeBoolean(s.isPresent());
+		if (s.isPresent())
+		{
+			writeString(out, s.get());
+		}
+	}
+
+	static String readString(final ByteBuffer in) throws BufferUnderflowException, IllegalArgumentException
+	{
+		final int length = in.getInt();
+		Preconditions.checkArgument(length >= 0 && length <= in.remaining(), "Invalid encoded string length: %s", length);
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static Optional<String> readOptionalString(final ByteBuffer in) throws BufferUnderflowException, IllegalArgumentException
+	{
+		return in.get() == 0 ? Optional.empty() : Optional.of(readString(in));
+	}
+
+	/*
+	 * Reads the number of items of an encoded list, and checks that the remaining bytes can hold that many items of at least minEncodedItemSize bytes each
+	 */
+	private static int readCount(final ByteBuffer in, final int minEncodedItemSize, final String countName) throws BufferUnderflowException, IllegalArgumentException
+	{
+		final int count = in.getInt();
+		Preconditions.checkArgument(count >= 0 && count <= in.remaining() / minEncodedItemSize, "Invalid encoded %s: %s", countName, count);
+		return count;
+	}
+
+	private static void writeStatus(final ByteArrayDataOutput out, final Status status)
+	{
+		out.writeBoolean(status != null);
+		if (status == null)
+		{
+			return;
+		}
+
+		final List<String> codes = new ArrayList<>(1);
+		StatusCode statusCode = status.getStatusCode();
+		while (statusCode != null && codes.size() < StatusHelper.MAX_STATUS_CODE_DEPTH)
+		{
+			codes.add(statusCode.getValue());
+			statusCode = statusCode.getStatusCode();
+		}
+
+		out.writeInt(codes.size());
+		for (final String code : codes)
+		{
+			writeString(out, code);
+		}
+
+		writeOptionalString(out, Optional.ofNullable(status.getStatusMessage()));
+	}
+
+	private static Status readStatus(final ByteBuffer in)
+	{
+		if (in.get() == 0)
+		{
+			return null;
+		}
+
+		final int codeCount = in.getInt();
+		Preconditions.checkArgument(codeCount > 0 && codeCount <= StatusHelper.MAX_STATUS_CODE_DEPTH, "Invalid number of encoded status codes: %s", codeCount);
+		final List<String> codes = new ArrayList<>(codeCount);
+		for (int i = 0; i < codeCount; i++)
+		{
+			codes.add(readString(in));
+		}
+
+		return new StatusHelper(codes, readOptionalString(in), Optional.empty());
+	}
+
+	private static void writeAttributeAssignment(final ByteArrayDataOutput out, final PepActionAttributeAssignment<?> attributeAssignment) throws IllegalArgumentException
+	{
+		writeString(out, attributeAssignment.getAttributeId());
+		writeOptionalString(out, attributeAssignment.getCategory());
+		writeOptionalString(out, attributeAssignment.getIssuer());
+		writeString(out, attributeAssignment.getDatatype().getId());
+
+		final AttributeValue value = attributeAssignment.getValue();
+		if (value instanceof XPathValue)
+		{
+			/*
+			 * Could be encoded but not decoded, since values are restored without XPath compiler
+			 */
+			throw new IllegalArgumentException("Unsupported (xpathExpression) attribute value in PEP action attribute assignment: " + attributeAssignment);
+		}
+
+		final List<Serializable> content = value.getContent();
+		out.writeInt(content.size());
+		for (final Serializable contentItem : content)
+		{
+			if (!(contentItem instanceof String))
+			{
+				throw new IllegalArgumentException("Unsupported (non-text) content of attribute value in PEP action attribute assignment: " + attributeAssignment);
+			}
+
+			writeString(out, (String) contentItem);
+		}
+
+		final Map<QName, String> xmlAttributes = value.getXmlAttributes();
+		if (xmlAttributes == null)
+		{
+			out.writeInt(0);
+			return;
+		}
+
+		out.writeInt(xmlAttributes.size());
+		for (final Entry<QName, String> xmlAttribute : xmlAttributes.entrySet())
+		{
+			final QName name = xmlAttribute.getKey();
+			writeString(out, name.getNamespaceURI());
+			writeString(out, name.getLocalPart());
+			writeString(out, name.getPrefix());
+			writeString(out, xmlAttribute.getValue());
+		}
+	}
+
+	private static <AV extends AttributeValue> PepActionAttributeAssignment<AV> newPepActionAttributeAssignment(final String attributeId, final Optional<String> category,
+			final Optional<String> issuer, final ConstantExpression<AV> constantExp)
+	{
+		return new PepActionAttributeAssignment<>(attributeId, category, issuer, constantExp.getReturnType(), constantExp.getValue().get());
+	}
+
+	private PepActionAttributeAssignment<?> readAttributeAssignment(final ByteBuffer in) throws IllegalArgumentException
+	{
+		final String attributeId = readString(in);
+		final Optional<String> category = readOptionalString(in);
+		final Optional<String> issuer = readOptionalString(in);
+		final String datatypeId = readString(in);
+
+		final int contentSize = readCount(in, MIN_ENCODED_STRING_SIZE, "attribute value content size");
+		final List<Serializable> content = new ArrayList<>(contentSize);
+		for (int i = 0; i < contentSize; i++)
+		{
+			content.add(readString(in));
+		}
+
+		final int xmlAttributeCount = readCount(in, MIN_ENCODED_XML_ATTRIBUTE_SIZE, "number of XML attributes");
+		final Map<QName, String> xmlAttributes = new HashMap<>(xmlAttributeCount);
+		for (int i = 0; i < xmlAttributeCount; i++)
+		{
+			final String namespaceUri = readString(in);
+			final String localPart = readString(in);
+			final String prefix = readString(in);
+			xmlAttributes.put(new QName(namespaceUri, localPart, prefix), readString(in));
+		}
+
+		final ConstantExpression<? extends AttributeValue> constantExp = attributeValueFactories.newExpression(datatypeId, content, xmlAttributes, null);
+		return newPepActionAttributeAssignment(attributeId, category, issuer, constantExp);
+	}
+
+	private static void writePepAction(final ByteArrayDataOutput out, final PepAction pepAction) throws IllegalArgumentException
+	{
+		writeString(out, pepAction.getId());
+		out.writeBoolean(pepAction.isMandatory());
+		final ImmutableList<PepActionAttributeAssignment<?>> attributeAssignments = pepAction.getAttributeAssignments();
+		out.writeInt(attributeAssignments.size());
+		for (final PepActionAttributeAssignment<?> attributeAssignment : attributeAssignments)
+		{
+			writeAttributeAssignment(out, attributeAssignment);
+		}
+	}
+
+	private PepAction readPepAction(final ByteBuffer in) throws IllegalArgumentException
+	{
+		final String actionId = readString(in);
+		final boolean isMandatory = in.get() != 0;
+		final int attributeAssignmentCount = readCount(in, MIN_ENCODED_ATTRIBUTE_ASSIGNMENT_SIZE, "number of PEP action attribute assignments");
+		final ImmutableList.Builder<PepActionAttributeAssignment<?>> attributeAssignments = ImmutableList.builder();
+		for (int i = 0; i < attributeAssignmentCount; i++)
+		{
+			attributeAssignments.add(readAttributeAssignment(in));
+		}
+
+		return new PepAction(actionId, isMandatory, attributeAssignments.build());
+	}
+
+	static void writePolicy(final ByteArrayDataOutput out, final PrimaryPolicyMetadata policy)
+	{
+		out.writeByte(policy.getType().ordinal());
+		writeString(out, policy.getId());
+		writeString(out, policy.getVersion().toString());
+	}
+
+	static PrimaryPolicyMetadata readPolicy(final ByteBuffer in) throws IllegalArgumentException
+	{
+		final int typeOrdinal = in.get();
+		Preconditions.checkArgument(typeOrdinal >= 0 && typeOrdinal < POLICY_TYPES.length, "Invalid encoded policy type: %s", typeOrdinal);
+		final String policyId = readString(in);
+		return new BasePrimaryPolicyMetadata(POLICY_TYPES[typeOrdinal], policyId, new PolicyVersion(readString(in)));
+	}
+
+	private static ImmutableList<PrimaryPolicyMetadata> readApplicablePolicies(final ByteBuffer in) throws IllegalArgumentException
+	{
+		final int applicablePolicyCount = in.getInt();
+		if (applicablePolicyCount < 0)
+		{
+			return null;
+		}
+
+		Preconditions.checkArgument(applicablePolicyCount <= in.remaining() / MIN_ENCODED_POLICY_SIZE, "Invalid encoded number of applicable policies: %s", applicablePolicyCount);
+
+		final ImmutableList.Builder<PrimaryPolicyMetadata> applicablePolicies = ImmutableList.builder();
+		for (int i = 0; i < applicablePolicyCount; i++)
+		{
+			applicablePolicies.add(readPolicy(in));
+		}
+
+		return applicablePolicies.build();
+	}
+
+	/**
+	 * Encodes a decision result
+	 * 
+	 * @param result
+	 *            decision result
+	 * @return binary encoding
+	 * @throws IllegalArgumentException
+	 *             if {@code result} cannot be encoded (see limitations in the class description)
+	 */
+	public byte[] encode(final DecisionResult result) throws IllegalArgumentException
+	{
+		final ByteArrayDataOutput out = ByteStreams.newDataOutput(EXPECTED_ENCODED_SIZE);
+		final DecisionType decision = result.getDecision();
+		out.writeByte(decision.ordinal());
+		/*
+		 * Applicable policies first, so that they can be decoded without decoding the rest (see decodeApplicablePolicies(ByteBuffer))
+		 */
+		final ImmutableList<PrimaryPolicyMetadata> applicablePolicies = result.getApplicablePolicies();
+		if (applicablePolicies == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			out.writeInt(applicablePolicies.size());
+			for (final PrimaryPolicyMetadata policy : applicablePolicies)
+			{
+				writePolicy(out, policy);
+			}
+		}
+
+		if (decision == DecisionType.INDETERMINATE)
+		{
+			out.writeByte(result.getExtendedIndeterminate().ordinal());
+			final Optional<IndeterminateEvaluationException> cause = result.getCauseForIndeterminate();
+			Preconditions.checkArgument(cause.isPresent(), "No cause defined for Indeterminate result");
+			writeString(out, cause.get().getStatusCode());
+			writeOptionalString(out, Optional.ofNullable(cause.get().getMessage()));
+		}
+		else
+		{
+			writeStatus(out, result.getStatus());
+		}
+
+		final ImmutableList<PepAction> pepActions = result.getPepActions();
+		out.writeInt(pepActions.size());
+		for (final PepAction pepAction : pepActions)
+		{
+			writePepAction(out, pepAction);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a decision result from a binary encoding produced by {@link #encode(DecisionResult)}
+	 * 
+	 * @param in
+	 *            buffer containing the encoded result, from its current position. The position is moved to the end of the encoded result.
+	 * @return decision result
+	 * @throws IllegalArgumentException
+	 *             if {@code in} does not contain a valid encoded decision result
+	 */
+	public DecisionResult decode(final ByteBuffer in) throws IllegalArgumentException
+	{
+		try
+		{
+			final int decisionOrdinal = in.get();
+			Preconditions.checkArgument(decisionOrdinal >= 0 && decisionOrdinal < DECISIONS.length, "Invalid encoded decision: %s", decisionOrdinal);
+			final DecisionType decision = DECISIONS[decisionOrdinal];
+			final ImmutableList<PrimaryPolicyMetadata> applicablePolicies = readApplicablePolicies(in);
+			final DecisionType extendedIndeterminate;
+			final IndeterminateEvaluationException cause;
+			final Status status;
+			if (decision == DecisionType.INDETERMINATE)
+			{
+				final int extIndeterminateOrdinal = in.get();
+				Preconditions.checkArgument(extIndeterminateOrdinal >= 0 && extIndeterminateOrdinal < DECISIONS.length, "Invalid encoded extended Indeterminate: %s", extIndeterminateOrdinal);
+				extendedIndeterminate = DECISIONS[extIndeterminateOrdinal];
+				final String statusCode = readString(in);
+				cause = new IndeterminateEvaluationException(readOptionalString(in).orElse(null), statusCode);
+				status = null;
+			}
+			else
+			{
+				extendedIndeterminate = null;
+				cause = null;
+				status = readStatus(in);
+			}
+
+			final int pepActionCount = readCount(in, MIN_ENCODED_PEP_ACTION_SIZE, "number of PEP actions");
+			final ImmutableList.Builder<PepAction> pepActions = ImmutableList.builder();
+			for (int i = 0; i < pepActionCount; i++)
+			{
+				pepActions.add(readPepAction(in));
+			}
+
+			switch (decision)
+			{
+				case PERMIT:
+					return DecisionResults.getPermit(status, pepActions.build(), applicablePolicies);
+				case DENY:
+					return DecisionResults.getDeny(status, pepActions.build(), applicablePolicies);
+				case NOT_APPLICABLE:
+					return DecisionResults.getNotApplicable(status);
+				default:
+					return DecisionResults.newIndeterminate(extendedIndeterminate, cause, applicablePolicies);
+			}
+		}
+		catch (final BufferUnderflowException e)
+		{
+			throw new IllegalArgumentException("Truncated encoded decision result", e);
+		}
+	}
+
+	/**
+	 * Decodes only the applicable policies (see {@link DecisionResult#getApplicablePolicies()}) from a binary encoding produced by {@link #encode(DecisionResult)}, which is much cheaper than decoding
+	 * the whole decision result
+	 * 
+	 * @param in
+	 *            buffer containing the encoded result, from its current position. The position is moved to the end of the encoded applicable policies.
+	 * @return applicable policies
+	 * @throws IllegalArgumentException
+	 *             if {@code in} does not contain a valid encoded decision result
+	 */
+	public static ImmutableList<PrimaryPolicyMetadata> decodeApplicablePolicies(final ByteBuffer in) throws IllegalArgumentException
+	{
+		try
+		{
+			// skip the decision
+			in.get();
+			return readApplicablePolicies(in);
+		}
+		catch (final BufferUnderflowException e)
+		{
+			throw new IllegalArgumentException("Truncated encoded decision result", e);
+		}
+	}
+
+	/**
+	 * Decodes a decision result from a binary encoding produced by {@link #encode(DecisionResult)}
+	 * 
+	 * @param encodedResult
+	 *            encoded result
+	 * @return decision result
+	 * @throws IllegalArgumentException
+	 *             if {@code encodedResult} is not a valid encoded decision result
+	 */
+	public DecisionResult decode(final byte[] encodedResult) throws IllegalArgumentException
+	{
+		return decode(ByteBuffer.wrap(encodedResult));
+	}
+
+}
@@ -0,0 +1,936 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+import org.ow2.authzforce.core.pdp.api.DecisionCache;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Weigher;
+
+/**
+ * Thread-safe in-memory {@link DecisionCache} holding a bounded number of entries, with optional maximum total weight and time-to-live (TTL) of entries.
+ * <p>
+ * Entries are spread over independent segments (lock striping), each segment being guarded by its own lock and evicting its least recently used entries when full. Therefore, concurrent request
+ * threads mostly access different segments and do not contend on a single monitor. The higher the {@link Builder#concurrencyLevel(int)} (number of segments), the lower the contention, but the less
+ * accurate the LRU eviction (done per segment).
+ * <p>
+ * Entries are keyed by {@link DecisionRequest#getFingerprint()}, therefore lookups take constant time regardless of the number of attributes in the request.
+ * <p>
+ * This cache does not need any {@link EvaluationContext}, i.e. {@link #isEvaluationContextRequired()} returns false, unless the attribute-dependency-aware mode is enabled (see
+ * {@link Builder#attributeDependencyAware(int)}).
+ * <p>
+ * This class is not bound to any XML/JAXB configuration type; therefore {@link DecisionCache.Factory} implementations - bound to their own configuration type - may use {@link #newBuilder()} to
+ * create instances.
+ */
+public final class InMemoryDecisionCache implements DecisionCache
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryDecisionCache.class);
+
+	private static final IllegalArgumentException NULL_REQUEST_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision request");
+	private static final IllegalArgumentException NULL_RESULT_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision result");
+
+	/*
+	 * Expiry time of entries that never expire
+	 */
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	/**
+	 * Builder of {@link InMemoryDecisionCache}. Not thread-safe.
+	 */
+	public static final class Builder
+	{
+		private static final long DEFAULT_MAX_SIZE = 10000;
+		private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+		private static final int MAX_SEGMENT_COUNT = 1 << 16;
+		private static final int DEFAULT_BULK_PARALLELISM_THRESHOLD = 256;
+
+		private long maxSize = DEFAULT_MAX_SIZE;
+		private long maxWeight = -1;
+		private Weigher<? super DecisionRequest, ? super DecisionResult> weigher = null;
+		private long ttlNanos = -1;
+		private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+		private Ticker ticker = Ticker.systemTicker();
+		private DecisionCachingRules cachingRules = DecisionCachingRules.DEFAULT;
+		private int maxDependencySetCount = 0;
+		private int bulkParallelismThreshold = DEFAULT_BULK_PARALLELISM_THRESHOLD;
+
+		private Builder()
+		{
+			// use InMemoryDecisionCache#newBuilder()
+		}
+
+		/**
+		 * Sets the maximum number of entries in the cache. Default: 10000.
+		 *
+		 * @param maximumSize
+		 *            maximum number of entries (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumSize <= 0}
+		 */
+		public Builder maximumSize(final long maximumSize) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumSize > 0, "Invalid maximum cache size (must be > 0): %s", maximumSize);
+			this.maxSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum total weight of the entries in the cache, in addition to the maximum size. Entries are evicted - least recently used first - when the total weight exceeds this maximum.
+		 *
+		 * @param maximumWeight
+		 *            maximum total weight (strictly positive)
+		 * @param entryWeigher
+		 *            computes the weight of each cache entry, e.g. an estimate of the memory size of the decision result (number of PEP actions, etc.). Must return non-negative values.
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumWeight <= 0 || entryWeigher == null}
+		 */
+		public Builder maximumWeight(final long maximumWeight, final Weigher<? super DecisionRequest, ? super DecisionResult> entryWeigher) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumWeight > 0, "Invalid maximum cache weight (must be > 0): %s", maximumWeight);
+			Preconditions.checkArgument(entryWeigher != null, "Undefined cache entry weigher");
+			this.maxWeight = maximumWeight;
+			this.weigher = entryWeigher;
+			return this;
+		}
+
+		/**
+		 * Sets the time-to-live of cache entries, i.e. the duration after which an entry expires from its creation or last replacement. Default: no expiry.
+		 *
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null}
+		 */
+		public Builder timeToLive(final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.ttlNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the expected number of threads accessing the cache concurrently, used as hint for the number of segments (rounded up to the next power of two). Default: 64.
+		 *
+		 * @param expectedConcurrencyLevel
+		 *            expected number of concurrent threads (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code expectedConcurrencyLevel <= 0}
+		 */
+		public Builder concurrencyLevel(final int expectedConcurrencyLevel) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(expectedConcurrencyLevel > 0, "Invalid concurrency level (must be > 0): %s", expectedConcurrencyLevel);
+			this.concurrencyLevel = expectedConcurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * Sets per-outcome caching rules, e.g. specific TTL for NotApplicable or Indeterminate results, or exclusion of results with mandatory PEP actions. The TTL set with
+		 * {@link #timeToLive(long, TimeUnit)} is the default for results not matched by any rule. Default: {@link DecisionCachingRules#DEFAULT}.
+		 *
+		 * @param rules
+		 *            caching rules
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code rules == null}
+		 */
+		public Builder cachingRules(final DecisionCachingRules rules) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(rules != null, "Undefined decision caching rules");
+			this.cachingRules = rules;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used for entry expiry. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public Builder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Enables the attribute-dependency-aware mode, in which each decision result is cached with a key made only of the request attributes actually consumed by the PDP while producing this
+		 * result (and the request Content if any AttributeSelector was evaluated), instead of all the request attributes. Therefore, requests that differ only in attributes that are never read by the
+		 * policies (e.g. tracing headers, client IP address) share the same cache entries.
+		 * <p>
+		 * The consumed attributes are recorded by an {@link EvaluationContext.Listener} registered on the evaluation context passed to {@link InMemoryDecisionCache#get(DecisionRequest, EvaluationContext)}
+		 * on cache miss, and retrieved from the same context by {@link InMemoryDecisionCache#put(DecisionRequest, DecisionResult, EvaluationContext)}; so {@link #isEvaluationContextRequired()} returns
+		 * true in this mode. Results put in the cache without evaluation context (e.g. with {@link InMemoryDecisionCache#putAll(Map)}) are keyed on the whole request as usual. Keys of projected
+		 * requests include the set of consumed attributes, therefore never match a whole-request key (whose result may depend on attributes absent from the request).
+		 * <p>
+		 * The cache lookup costs one probe per distinct set of consumed attributes (one per evaluation path through the policies). Once {@code maxDependencySetCount} distinct sets are known,
+		 * results depending on a new set are not cached anymore.
+		 * <p>
+		 * WARNING: this assumes that the decision depends only on the consumed attributes' values; in particular, attribute values from Attribute Providers are assumed to depend only on (consumed)
+		 * request attributes, not on external state that may change during an entry's time-to-live, as for any decision cache.
+		 *
+		 * @param maxDependencySetCount
+		 *            maximum number of distinct sets of consumed attributes (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maxDependencySetCount <= 0}
+		 */
+		public Builder attributeDependencyAware(final int maxDependencySetCount) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maxDependencySetCount > 0, "Invalid max number of attribute dependency sets (must be > 0): %s", maxDependencySetCount);
+			this.maxDependencySetCount = maxDependencySetCount;
+			return this;
+		}
+
+		/**
+		 * Sets the minimum number of requests passed to {@link InMemoryDecisionCache#getAll(List)} or {@link InMemoryDecisionCache#putAll(Map)} - e.g. Multiple Decision Profile requests - from which
+		 * the request fingerprints are computed and the segments are probed/updated in parallel (in the common {@link java.util.concurrent.ForkJoinPool}). Default: 256.
+		 *
+		 * @param minRequestCount
+		 *            minimum number of requests for parallel processing (strictly positive); {@link Integer#MAX_VALUE} to disable parallel processing
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code minRequestCount <= 0}
+		 */
+		public Builder bulkParallelismThreshold(final int minRequestCount) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(minRequestCount > 0, "Invalid bulk parallelism threshold (must be > 0): %s", minRequestCount);
+			this.bulkParallelismThreshold = minRequestCount;
+			return this;
+		}
+
+		/**
+		 * Creates the cache
+		 *
+		 * @return new cache instance
+		 */
+		public InMemoryDecisionCache build()
+		{
+			return new InMemoryDecisionCache(this);
+		}
+	}
+
+	private static final class CacheEntry
+	{
+		private final DecisionResult result;
+		private final long expiryTime;
+		private final long weight;
+
+		private CacheEntry(final DecisionResult result, final long expiryTime, final long weight)
+		{
+			this.result = result;
+			this.expiryTime = expiryTime;
+			this.weight = weight;
+		}
+
+		private boolean isExpired(final long now)
+		{
+			return expiryTime != NO_EXPIRY && now - expiryTime >= 0;
+		}
+	}
+
+	/*
+	 * Segment of the cache, guarded by its own lock. The map is in access order, so that iteration starts from the least recently used entry (eviction candidate).
+	 */
+	private static final class Segment
+	{
+		private final Lock lock = new ReentrantLock();
+		private final LinkedHashMap<Object, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private final long maxEntries;
+		private final long maxWeight;
+		private long totalWeight = 0;
+
+		private Segment(final long maxEntries, final long maxWeight)
+		{
+			this.maxEntries = maxEntries;
+			this.maxWeight = maxWeight;
+		}
+
+		private DecisionResult get(final Object key, final long now)
+		{
+			lock.lock();
+			try
+			{
+				final CacheEntry entry = entries.get(key);
+				if (entry == null)
+				{
+					return null;
+				}
+
+				if (entry.isExpired(now))
+				{
+					entries.remove(key);
+					totalWeight -= entry.weight;
+					return null;
+				}
+
+				return entry.result;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void put(final Object key, final CacheEntry newEntry)
+		{
+			lock.lock();
+			try
+			{
+				final CacheEntry oldEntry = entries.put(key, newEntry);
+				if (oldEntry != null)
+				{
+					totalWeight -= oldEntry.weight;
+				}
+
+				totalWeight += newEntry.weight;
+				evictIfFull();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Looks up keys[positions[from]], ..., keys[positions[to - 1]] at once, i.e. acquiring the lock only once, and sets the corresponding results[i]
+		 */
+		private void getAll(final Object[] keys, final int[] positions, final int from, final int to, final long now, final DecisionResult[] results)
+		{
+			lock.lock();
+			try
+			{
+				for (int i = from; i < to; i++)
+				{
+					final int position = positions[i];
+					final Object key = keys[position];
+					final CacheEntry entry = entries.get(key);
+					if (entry == null)
+					{
+						continue;
+					}
+
+					if (entry.isExpired(now))
+					{
+						entries.remove(key);
+						totalWeight -= entry.weight;
+						continue;
+					}
+
+					results[position] = entry.result;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Puts keys[positions[from]], ..., keys[positions[to - 1]] and corresponding newEntries at once, i.e. acquiring the lock only once
+		 */
+		private void putAll(final Object[] keys, final CacheEntry[] newEntries, final int[] positions, final int from, final int to)
+		{
+			lock.lock();
+			try
+			{
+				for (int i = from; i < to; i++)
+				{
+					final int position = positions[i];
+					final CacheEntry newEntry = newEntries[position];
+					final CacheEntry oldEntry = entries.put(keys[position], newEntry);
+					if (oldEntry != null)
+					{
+						totalWeight -= oldEntry.weight;
+					}
+
+					totalWeight += newEntry.weight;
+				}
+
+				evictIfFull();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Must be called with lock held
+		 */
+		private void evictIfFull()
+		{
+			final Iterator<CacheEntry> lruIterator = entries.values().iterator();
+			while ((entries.size() > maxEntries || maxWeight >= 0 && totalWeight > maxWeight) && lruIterator.hasNext())
+			{
+				totalWeight -= lruIterator.next().weight;
+				lruIterator.remove();
+			}
+		}
+
+		private void removeExpired(final long now)
+		{
+			lock.lock();
+			try
+			{
+				final Iterator<CacheEntry> iterator = entries.values().iterator();
+				while (iterator.hasNext())
+				{
+					final CacheEntry entry = iterator.next();
+					if (entry.isExpired(now))
+					{
+						totalWeight -= entry.weight;
+						iterator.remove();
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void removeDependents(final Set<PrimaryPolicyMetadata> outdatedPolicies)
+		{
+			lock.lock();
+			try
+			{
+				final Iterator<CacheEntry> iterator = entries.values().iterator();
+				while (iterator.hasNext())
+				{
+					final CacheEntry entry = iterator.next();
+					if (PolicyDependencies.dependsOnAny(entry.result.getApplicablePolicies(), outdatedPolicies))
+					{
+						totalWeight -= entry.weight;
+						iterator.remove();
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private int size()
+		{
+			lock.lock();
+			try
+			{
+				return entries.size();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void clear()
+		{
+			lock.lock();
+			try
+			{
+				entries.clear();
+				totalWeight = 0;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Creates a builder of {@link InMemoryDecisionCache}
+	 *
+	 * @return new builder
+	 */
+	public static Builder newBuilder()
+	{
+		return new Builder();
+	}
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final Weigher<? super DecisionRequest, ? super DecisionResult> weigher;
+	private final long ttlNanos;
+	private final DecisionCachingRules cachingRules;
+	private final Ticker ticker;
+
+	/*
+	 * Attribute-dependency-aware mode iff maxDependencySetCount > 0
+	 */
+	private final int maxDependencySetCount;
+	private final List<AttributeDependencySet> dependencySets = new CopyOnWriteArrayList<>();
+
+	private final int bulkParallelismThreshold;
+
+	private InMemoryDecisionCache(final Builder builder)
+	{
+		assert builder != null;
+
+		/*
+		 * Number of segments: power of two >= concurrency level, but no more than the max number of entries, so that each segment may hold at least one entry
+		 */
+		final long maxSegmentCount = Math.min(Builder.MAX_SEGMENT_COUNT, Math.min(builder.concurrencyLevel, builder.maxSize));
+		int segmentCount = 1;
+		while (segmentCount < maxSegmentCount)
+		{
+			segmentCount <<= 1;
+		}
+
+		if (segmentCount > builder.maxSize)
+		{
+			segmentCount >>>= 1;
+		}
+
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		final long maxEntriesPerSegment = (builder.maxSize + segmentCount - 1) / segmentCount;
+		final long maxWeightPerSegment = builder.maxWeight < 0 ? -1 : (builder.maxWeight + segmentCount - 1) / segmentCount;
+		for (int i = 0; i < segmentCount; i++)
+		{
+			this.segments[i] = new Segment(maxEntriesPerSegment, maxWeightPerSegment);
+		}
+
+		this.weigher = builder.weigher;
+		this.ttlNanos = builder.ttlNanos;
+		this.cachingRules = builder.cachingRules;
+		this.ticker = builder.ticker;
+		this.maxDependencySetCount = builder.maxDependencySetCount;
+		this.bulkParallelismThreshold = builder.bulkParallelismThreshold;
+	}
+
+	/*
+	 * Cache key for a given request: the request fingerprint, which is much cheaper to hash and compare than the request itself; or null if the request is not cacheable (no fingerprint)
+	 */
+	private static Object keyOf(final DecisionRequest request)
+	{
+		try
+		{
+			return request.getFingerprint();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			LOGGER.debug("Decision request not cacheable: {}", request, e);
+			return null;
+		}
+	}
+
+	/*
+	 * Cache key for the projection of a given request on a set of dependencies, or null if the projection is not cacheable (no fingerprint)
+	 */
+	private static Object projectedKeyOf(final AttributeDependencySet dependencySet, final DecisionRequest request)
+	{
+		try
+		{
+			return dependencySet.project(request);
+		}
+		catch (final IllegalArgumentException e)
+		{
+			LOGGER.debug("Projection of decision request on {} not cacheable: {}", dependencySet, request, e);
+			return null;
+		}
+	}
+
+	private int segmentIndexFor(final Object key)
+	{
+		/*
+		 * Spread the hash bits (murmur3 finalizer) to make sure that the segment index depends on all bits of the hashCode
+		 */
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & segmentMask;
+	}
+
+	private Segment segmentFor(final Object key)
+	{
+		return segments[segmentIndexFor(key)];
+	}
+
+	/*
+	 * Groups the positions of the non-null keys by segment (counting sort): positions of keys in segment i are positions[segmentStarts[i]], ..., positions[segmentStarts[i + 1] - 1]. Returns
+	 * segmentStarts.
+	 */
+	private int[] groupBySegment(final Object[] keys, final int[] positions)
+	{
+		final int[] segmentIndexes = new int[keys.length];
+		final int[] segmentStarts = new int[segments.length + 1];
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] == null)
+			{
+				segmentIndexes[i] = -1;
+				continue;
+			}
+
+			segmentIndexes[i] = segmentIndexFor(keys[i]);
+			segmentStarts[segmentIndexes[i] + 1]++;
+		}
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			segmentStarts[i + 1] += segmentStarts[i];
+		}
+
+		final int[] nextPositionIndexes = segmentStarts.clone();
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (segmentIndexes[i] >= 0)
+			{
+				positions[nextPositionIndexes[segmentIndexes[i]]++] = i;
+			}
+		}
+
+		return segmentStarts;
+	}
+
+	/*
+	 * Sets results[i] to the cached result for keys[i] if any (and keys[i] != null), acquiring each segment lock only once
+	 */
+	private void getAll(final Object[] keys, final DecisionResult[] results, final long now, final boolean parallel)
+	{
+		final int[] positions = new int[keys.length];
+		final int[] segmentStarts = groupBySegment(keys, positions);
+		final IntStream segmentIndexes = IntStream.range(0, segments.length).filter(i -> segmentStarts[i] < segmentStarts[i + 1]);
+		(parallel ? segmentIndexes.parallel() : segmentIndexes).forEach(i -> segments[i].getAll(keys, positions, segmentStarts[i], segmentStarts[i + 1], now, results));
+	}
+
+	/*
+	 * Registers a new set of attribute dependencies if not known yet and the max number of sets is not reached.
+	 */
+	private boolean registerDependencySet(final AttributeDependencySet dependencySet)
+	{
+		if (dependencySets.contains(dependencySet))
+		{
+			return true;
+		}
+
+		synchronized (dependencySets)
+		{
+			if (dependencySets.contains(dependencySet))
+			{
+				return true;
+			}
+
+			if (dependencySets.size() >= maxDependencySetCount)
+			{
+				LOGGER.debug("Max number of attribute dependency sets ({}) reached: decision results depending on {} are not cached", maxDependencySetCount, dependencySet);
+				return false;
+			}
+
+			dependencySets.add(dependencySet);
+			return true;
+		}
+	}
+
+	@Override
+	public boolean isEvaluationContextRequired()
+	{
+		return maxDependencySetCount > 0;
+	}
+
+	@Override
+	public DecisionResult get(final DecisionRequest request, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		final long now = ticker.read();
+		final Object key = keyOf(request);
+		final DecisionResult result = key == null ? null : segmentFor(key).get(key, now);
+		if (result != null || maxDependencySetCount <= 0)
+		{
+			return result;
+		}
+
+		/*
+		 * The projection of the request may be cacheable even if the request is not, since it only keeps the attributes the policies depend on
+		 */
+		for (final AttributeDependencySet dependencySet : dependencySets)
+		{
+			final Object projectedKey = projectedKeyOf(dependencySet, request);
+			if (projectedKey == null)
+			{
+				continue;
+			}
+
+			final DecisionResult projectedResult = segmentFor(projectedKey).get(projectedKey, now);
+			if (projectedResult != null)
+			{
+				return projectedResult;
+			}
+		}
+
+		if (evalCtx != null)
+		{
+			// cache miss -> record the attributes consumed by the evaluation that follows
+			evalCtx.putListener(ConsumedAttributesRecorder.class, new ConsumedAttributesRecorder());
+		}
+
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The requests are grouped by segment, so that each segment lock is acquired only once per call (per set of consumed attributes in attribute-dependency-aware mode). Beyond a given number of
+	 * requests (see {@link Builder#bulkParallelismThreshold(int)}), request fingerprints are computed and segments probed in parallel. The returned map is immutable.
+	 */
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> Map<DECISION_REQ_T, DecisionResult> getAll(final List<DECISION_REQ_T> requests)
+	{
+		final Object[] requestArray = requests.toArray();
+		final Object[] keys = new Object[requestArray.length];
+		final boolean parallel = requestArray.length >= bulkParallelismThreshold;
+		final IntStream requestIndexes = IntStream.range(0, requestArray.length);
+		(parallel ? requestIndexes.parallel() : requestIndexes).forEach(i -> keys[i] = keyOf((DecisionRequest) requestArray[i]));
+
+		final long now = ticker.read();
+		final DecisionResult[] results = new DecisionResult[requestArray.length];
+		getAll(keys, results, now, parallel);
+		if (maxDependencySetCount > 0)
+		{
+			for (final AttributeDependencySet dependencySet : dependencySets)
+			{
+				boolean hasMiss = false;
+				for (int i = 0; i < keys.length; i++)
+				{
+					if (results[i] == null)
+					{
+						keys[i] = projectedKeyOf(dependencySet, (DecisionRequest) requestArray[i]);
+						hasMiss = true;
+					}
+					else
+					{
+						keys[i] = null;
+					}
+				}
+
+				if (!hasMiss)
+				{
+					break;
+				}
+
+				getAll(keys, results, now, parallel);
+			}
+		}
+
+		return new BulkResultMap<>(requestArray, results);
+	}
+
+	@Override
+	public void put(final DecisionRequest request, final DecisionResult result, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		if (result == null)
+		{
+			throw NULL_RESULT_ARGUMENT_EXCEPTION;
+		}
+
+		final long resultTtlNanos = cachingRules.getTimeToLiveNanos(result, ttlNanos);
+		if (resultTtlNanos == 0)
+		{
+			return;
+		}
+
+		final Object key;
+		final ConsumedAttributesRecorder consumedAttributesRecorder = maxDependencySetCount > 0 && evalCtx != null ? evalCtx.getListener(ConsumedAttributesRecorder.class) : null;
+		if (consumedAttributesRecorder == null)
+		{
+			key = keyOf(request);
+		}
+		else
+		{
+			final AttributeDependencySet dependencySet = consumedAttributesRecorder.getDependencies();
+			if (!registerDependencySet(dependencySet))
+			{
+				return;
+			}
+
+			key = projectedKeyOf(dependencySet, request);
+		}
+
+		if (key == null)
+		{
+			return;
+		}
+
+		final long expiryTime = resultTtlNanos < 0 ? NO_EXPIRY : ticker.read() + resultTtlNanos;
+		final long weight = weigher == null ? 0 : weigher.weigh(request, result);
+		segmentFor(key).put(key, new CacheEntry(result, expiryTime, weight));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The entries are grouped by segment, so that each segment lock is acquired only once per call. Beyond a given number of entries (see {@link Builder#bulkParallelismThreshold(int)}), request
+	 * fingerprints are computed and segments updated in parallel.
+	 */
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> void putAll(final Map<DECISION_REQ_T, DecisionResult> resultsByRequest)
+	{
+		final int entryCount = resultsByRequest.size();
+		final DecisionRequest[] requests = new DecisionRequest[entryCount];
+		final CacheEntry[] newEntries = new CacheEntry[entryCount];
+		final long now = ticker.read();
+		int i = 0;
+		for (final Entry<DECISION_REQ_T, DecisionResult> resultByRequest : resultsByRequest.entrySet())
+		{
+			final DecisionRequest request = resultByRequest.getKey();
+			final DecisionResult result = resultByRequest.getValue();
+			if (request == null)
+			{
+				throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+			}
+
+			if (result == null)
+			{
+				throw NULL_RESULT_ARGUMENT_EXCEPTION;
+			}
+
+			final long resultTtlNanos = cachingRules.getTimeToLiveNanos(result, ttlNanos);
+			if (resultTtlNanos != 0)
+			{
+				requests[i] = request;
+				newEntries[i] = new CacheEntry(result, resultTtlNanos < 0 ? NO_EXPIRY : now + resultTtlNanos, weigher == null ? 0 : weigher.weigh(request, result));
+			}
+
+			i++;
+		}
+
+		final Object[] keys = new Object[entryCount];
+		final boolean parallel = entryCount >= bulkParallelismThreshold;
+		final IntStream entryIndexes = IntStream.range(0, entryCount).filter(j -> requests[j] != null);
+		(parallel ? entryIndexes.parallel() : entryIndexes).forEach(j -> keys[j] = keyOf(requests[j]));
+
+		final int[] positions = new int[entryCount];
+		final int[] segmentStarts = groupBySegment(keys, positions);
+		final IntStream segmentIndexes = IntStream.range(0, segments.length).filter(j -> segmentStarts[j] < segmentStarts[j + 1]);
+		(parallel ? segmentIndexes.parallel() : segmentIndexes).forEach(j -> segments[j].putAll(keys, newEntries, positions, segmentStarts[j], segmentStarts[j + 1]));
+	}
+
+	/**
+	 * Removes all expired entries. Expired entries are removed anyway when looked up, so calling this method is not required for correctness. It may be called periodically to free memory held by
+	 * expired entries that are not requested anymore.
+	 */
+	public void cleanUp()
+	{
+		final long now = ticker.read();
+		for (final Segment segment : segments)
+		{
+			segment.removeExpired(now);
+		}
+	}
+
+	@Override
+	public boolean supportsInvalidation()
+	{
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This scans all the entries, segment by segment, therefore it is meant for occasional policy updates.
+	 */
+	@Override
+	public void invalidate(final Set<PrimaryPolicyMetadata> outdatedPolicies)
+	{
+		Preconditions.checkArgument(outdatedPolicies != null, "Undefined outdated policies");
+		for (final Segment segment : segments)
+		{
+			segment.removeDependents(outdatedPolicies);
+		}
+	}
+
+	/**
+	 * Get the current number of entries in the cache (including expired entries not cleaned up yet)
+	 *
+	 * @return number of entries
+	 */
+	public long size()
+	{
+		long size = 0;
+		for (final Segment segment : segments)
+		{
+			size += segment.size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void invalidateAll()
+	{
+		for (final Segment segment : segments)
+		{
+			segment.clear();
+		}
+
+		dependencySets.clear();
+	}
+
+	@Override
+	public void close()
+	{
+		invalidateAll();
+	}
+
+}
@@ -0,0 +1,1132 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.ow2.authzforce.core.pdp.api.DecisionCache;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionRequestFingerprint;
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.HashCollections;
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Thread-safe {@link DecisionCache} storing entries outside the Java heap, in direct {@link ByteBuffer}s or memory-mapped files, in order to hold large numbers of decisions without increasing the
+ * garbage collector's workload.
+ * <p>
+ * Entries are spread over independent segments (lock striping). Each segment is made of:
+ * <ul>
+ * <li>a data area where records - expiry time, request fingerprint encoding (key, see {@link DecisionRequest#getFingerprint()}) and decision result encoding (value, see {@link DecisionResultCodec})
+ * - are appended one after the other (log-structured);</li>
+ * <li>an open-addressing hash index (linear probing) of fixed-size slots, each holding the 128-bit hash of the key and the offset of the record in the data area.</li>
+ * </ul>
+ * When the data area or the index of a segment is full, the whole segment is cleared (coarse-grained FIFO eviction), which avoids any fragmentation and per-entry bookkeeping. Replaced or expired
+ * records are not reclaimed until then.
+ * <p>
+ * Decision results are decoded - i.e. copied back to the heap - on each cache hit, outside the segment lock. Results that cannot be encoded (see limitations of {@link DecisionResultCodec}) are not
+ * cached. Entries that cannot be decoded are evicted and handled as cache misses.
+ * <p>
+ * Optionally, the cache contents may be saved to a snapshot file when the cache is closed, and loaded back by the next cache instance, in order to avoid a cold cache - and the resulting latency
+ * spike - after a restart (see {@link Builder#snapshotFile(Path, String)}).
+ * <p>
+ * This cache does not need any {@link EvaluationContext}, i.e. {@link #isEvaluationContextRequired()} returns false.
+ */
+public final class OffHeapDecisionCache implements DecisionCache
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapDecisionCache.class);
+
+	private static final IllegalArgumentException NULL_REQUEST_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision request");
+	private static final IllegalArgumentException NULL_RESULT_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision result");
+
+	/*
+	 * Expiry time of entries that never expire
+	 */
+	private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+	/*
+	 * Index slot layout: most significant 64 bits of the key hash (long), least significant 32 bits of the key hash (int), offset of the record in the data area + 1 (int), 0 meaning empty slot
+	 */
+	private static final int SLOT_SIZE = 16;
+	private static final int SLOT_HASH_LSB_OFFSET = 8;
+	private static final int SLOT_RECORD_OFFSET = 12;
+
+	/*
+	 * Record header layout: expiry time (long), key length (int), value length (int)
+	 */
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int RECORD_KEY_LENGTH_OFFSET = 8;
+	private static final int RECORD_VALUE_LENGTH_OFFSET = 12;
+
+	private static final float MAX_LOAD_FACTOR = 0.75f;
+
+	/*
+	 * Snapshot file layout: magic number (int), format version (int), policy set version (int length + UTF-8 bytes), then records: key length (int), expiry time in milliseconds since the epoch or
+	 * -1 if no expiry (long), value length (int), CRC32 of the expiry time, key and value (int), key, value; and finally -1 (int) as end marker.
+	 */
+	private static final int SNAPSHOT_MAGIC_NUMBER = 0x415A4443;
+	private static final int SNAPSHOT_FORMAT_VERSION = 2;
+	private static final int SNAPSHOT_END_MARKER = -1;
+	private static final long SNAPSHOT_NO_EXPIRY = -1;
+
+	/**
+	 * Builder of {@link OffHeapDecisionCache}. Not thread-safe.
+	 */
+	public static final class Builder
+	{
+		private static final long DEFAULT_MAX_SIZE = 10000;
+		private static final long DEFAULT_MAX_MEMORY_SIZE = 16L << 20;
+		private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+		private static final int MAX_SEGMENT_COUNT = 1 << 12;
+
+		private final AttributeValueFactoryRegistry attributeValueFactories;
+		private long maxSize = DEFAULT_MAX_SIZE;
+		private long maxMemorySize = DEFAULT_MAX_MEMORY_SIZE;
+		private long ttlNanos = -1;
+		private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+		private Ticker ticker = Ticker.systemTicker();
+		private DecisionCachingRules cachingRules = DecisionCachingRules.DEFAULT;
+		private Path mappedFileDirectory = null;
+		private Path snapshotFile = null;
+		private String policySetVersion = null;
+
+		private Builder(final AttributeValueFactoryRegistry attributeValueFactories)
+		{
+			// use OffHeapDecisionCache#newBuilder(AttributeValueFactoryRegistry)
+			Preconditions.checkArgument(attributeValueFactories != null, "Undefined attribute value factories");
+			this.attributeValueFactories = attributeValueFactories;
+		}
+
+		/**
+		 * Sets the maximum number of entries in the cache. Default: 10000.
+		 *
+		 * @param maximumSize
+		 *            maximum number of entries (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumSize <= 0}
+		 */
+		public Builder maximumSize(final long maximumSize) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumSize > 0, "Invalid maximum cache size (must be > 0): %s", maximumSize);
+			this.maxSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Sets the size of the off-heap memory allocated for the cache records (excluding the hash index). Default: 16 MiB.
+		 *
+		 * @param maximumBytes
+		 *            memory size in bytes (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code maximumBytes <= 0}
+		 */
+		public Builder maximumMemorySize(final long maximumBytes) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(maximumBytes > 0, "Invalid maximum cache memory size (must be > 0): %s", maximumBytes);
+			this.maxMemorySize = maximumBytes;
+			return this;
+		}
+
+		/**
+		 * Sets the time-to-live of cache entries, i.e. the duration after which an entry expires from its creation or last replacement. Default: no expiry.
+		 *
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null}
+		 */
+		public Builder timeToLive(final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined cache entry TTL unit");
+			this.ttlNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the expected number of threads accessing the cache concurrently, used as hint for the number of segments (rounded up to the next power of two). Default: 16.
+		 *
+		 * @param expectedConcurrencyLevel
+		 *            expected number of concurrent threads (strictly positive)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code expectedConcurrencyLevel <= 0}
+		 */
+		public Builder concurrencyLevel(final int expectedConcurrencyLevel) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(expectedConcurrencyLevel > 0, "Invalid concurrency level (must be > 0): %s", expectedConcurrencyLevel);
+			this.concurrencyLevel = expectedConcurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * Sets per-outcome caching rules, e.g. specific TTL for NotApplicable or Indeterminate results, or exclusion of results with mandatory PEP actions. The TTL set with
+		 * {@link #timeToLive(long, TimeUnit)} is the default for results not matched by any rule. Default: {@link DecisionCachingRules#DEFAULT}.
+		 *
+		 * @param rules
+		 *            caching rules
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code rules == null}
+		 */
+		public Builder cachingRules(final DecisionCachingRules rules) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(rules != null, "Undefined decision caching rules");
+			this.cachingRules = rules;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used for entry expiry. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public Builder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Stores the cache records in memory-mapped temporary files - one per segment - created in a given directory, instead of direct buffers, in order to let the OS page cold records out of
+		 * physical memory. The files are deleted when the cache is closed. Default: direct buffers.
+		 *
+		 * @param directory
+		 *            directory where the files are created
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code directory == null}
+		 */
+		public Builder memoryMappedFiles(final Path directory) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(directory != null, "Undefined directory of memory-mapped files");
+			this.mappedFileDirectory = directory;
+			return this;
+		}
+
+		/**
+		 * Enables warm start of the cache: the cache contents (non-expired entries) are written to {@code file} when the cache is closed, and loaded from {@code file} - if it exists - when the cache
+		 * is created, by mapping the file into memory. The file is replaced atomically on close.
+		 * <p>
+		 * The snapshot is tagged with {@code policySetVersion}, and discarded at load time if this tag does not match the one given to the new cache instance, i.e. if the policies have changed in
+		 * the meantime and the saved decisions may be stale. Entry expiry times are saved as wall-clock times, therefore entries expired while no cache was running are discarded as well.
+		 * Each entry is saved with a checksum, so that corrupted entries are skipped at load time without being decoded.
+		 *
+		 * @param file
+		 *            snapshot file
+		 * @param policySetVersion
+		 *            version of the policies that the cached decisions are based on, e.g. the PDP's root policy version, or any identifier of the policy repository state
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code file == null || policySetVersion == null}
+		 */
+		public Builder snapshotFile(final Path file, final String policySetVersion) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(file != null, "Undefined cache snapshot file");
+			Preconditions.checkArgument(policySetVersion != null, "Undefined policy set version");
+			this.snapshotFile = file;
+			this.policySetVersion = policySetVersion;
+			return this;
+		}
+
+		/**
+		 * Creates the cache
+		 *
+		 * @return new cache instance
+		 * @throws IOException
+		 *             error creating/mapping the files, if {@link #memoryMappedFiles(Path)} is used
+		 * @throws IllegalArgumentException
+		 *             if the memory size per segment exceeds 2 GiB (decrease the memory size or increase the concurrency level)
+		 */
+		public OffHeapDecisionCache build() throws IOException, IllegalArgumentException
+		{
+			return new OffHeapDecisionCache(this);
+		}
+	}
+
+	private static int slotCountFor(final long maxEntries)
+	{
+		final long minSlotCount = (long) Math.ceil(maxEntries / MAX_LOAD_FACTOR) + 1;
+		Preconditions.checkArgument(minSlotCount * SLOT_SIZE <= Integer.MAX_VALUE, "Too many entries per segment (increase the concurrency level): %s", maxEntries);
+		int slotCount = 1;
+		while (slotCount < minSlotCount)
+		{
+			slotCount <<= 1;
+		}
+
+		return slotCount;
+	}
+
+	/*
+	 * Segment of the cache, guarded by its own lock
+	 */
+	private static final class Segment
+	{
+		private final Lock lock = new ReentrantLock();
+		private final FileChannel channel;
+		private final ByteBuffer data;
+		private final ByteBuffer index;
+		private final int slotMask;
+		private final int maxEntries;
+		private int entryCount = 0;
+		private int writeOffset = 0;
+
+		private Segment(final int dataCapacity, final int maxEntries, final Path mappedFileDirectory) throws IOException
+		{
+			if (mappedFileDirectory == null)
+			{
+				this.channel = null;
+				this.data = ByteBuffer.allocateDirect(dataCapacity);
+			}
+			else
+			{
+				final Path file = Files.createTempFile(mappedFileDirectory, "authzforce-decision-cache-", ".dat");
+				this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+				this.data = channel.map(MapMode.READ_WRITE, 0, dataCapacity);
+			}
+
+			final int slotCount = slotCountFor(maxEntries);
+			this.index = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+			this.slotMask = slotCount - 1;
+			this.maxEntries = maxEntries;
+		}
+
+		private static int slotOf(final long hashMsb)
+		{
+			return (int) (hashMsb ^ hashMsb >>> 32);
+		}
+
+		/*
+		 * Must be called with lock held. Returns the index (in bytes) of the slot holding the key, or of the empty slot where it should be inserted.
+		 */
+		private int findSlot(final DecisionRequestFingerprint key)
+		{
+			final long hashMsb = key.getMostSignificantHashBits();
+			final int hashLsb = (int) key.getLeastSignificantHashBits();
+			int slot = slotOf(hashMsb) & slotMask;
+			while (true)
+			{
+				final int slotIndex = slot * SLOT_SIZE;
+				final int recordOffsetPlusOne = index.getInt(slotIndex + SLOT_RECORD_OFFSET);
+				if (recordOffsetPlusOne == 0)
+				{
+					return slotIndex;
+				}
+
+				if (index.getLong(slotIndex) == hashMsb && index.getInt(slotIndex + SLOT_HASH_LSB_OFFSET) == hashLsb)
+				{
+					final int recordOffset = recordOffsetPlusOne - 1;
+					if (key.encodingEquals(data, recordOffset + RECORD_HEADER_SIZE, data.getInt(recordOffset + RECORD_KEY_LENGTH_OFFSET)))
+					{
+						return slotIndex;
+					}
+				}
+
+				// load factor < 1 guarantees there is always an empty slot
+				slot = (slot + 1) & slotMask;
+			}
+		}
+
+		/*
+		 * Returns a copy of the encoded value, or null if not found or expired
+		 */
+		private byte[] get(final DecisionRequestFingerprint key, final long now)
+		{
+			lock.lock();
+			try
+			{
+				final int recordOffsetPlusOne = index.getInt(findSlot(key) + SLOT_RECORD_OFFSET);
+				if (recordOffsetPlusOne == 0)
+				{
+					return null;
+				}
+
+				final int recordOffset = recordOffsetPlusOne - 1;
+				final long expiryTime = data.getLong(recordOffset);
+				if (expiryTime != NO_EXPIRY && now - expiryTime >= 0)
+				{
+					return null;
+				}
+
+				final int keyLength = data.getInt(recordOffset + RECORD_KEY_LENGTH_OFFSET);
+				final byte[] value = new byte[data.getInt(recordOffset + RECORD_VALUE_LENGTH_OFFSET)];
+				data.position(recordOffset + RECORD_HEADER_SIZE + keyLength);
+				data.get(value);
+				return value;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Makes the entry expire if its encoded value is still the given one
+		 */
+		private void expire(final DecisionRequestFingerprint key, final byte[] value, final long now)
+		{
+			lock.lock();
+			try
+			{
+				final int recordOffsetPlusOne = index.getInt(findSlot(key) + SLOT_RECORD_OFFSET);
+				if (recordOffsetPlusOne == 0)
+				{
+					return;
+				}
+
+				final int recordOffset = recordOffsetPlusOne - 1;
+				final int valueLength = data.getInt(recordOffset + RECORD_VALUE_LENGTH_OFFSET);
+				if (valueLength != value.length)
+				{
+					return;
+				}
+
+				final int valueOffset = recordOffset + RECORD_HEADER_SIZE + data.getInt(recordOffset + RECORD_KEY_LENGTH_OFFSET);
+				for (int i = 0; i < valueLength; i++)
+				{
+					if (data.get(valueOffset + i) != value[i])
+					{
+						return;
+					}
+				}
+
+				data.putLong(recordOffset, now);
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private boolean put(final DecisionRequestFingerprint key, final byte[] value, final long expiryTime)
+		{
+			final int recordSize = RECORD_HEADER_SIZE + key.getEncodedSize() + value.length;
+			if (recordSize > data.capacity())
+			{
+				return false;
+			}
+
+			lock.lock();
+			try
+			{
+				int slotIndex = findSlot(key);
+				final boolean isNewEntry = index.getInt(slotIndex + SLOT_RECORD_OFFSET) == 0;
+				if (writeOffset + recordSize > data.capacity() || isNewEntry && entryCount >= maxEntries)
+				{
+					clear();
+					slotIndex = findSlot(key);
+				}
+
+				final int recordOffset = writeOffset;
+				data.position(recordOffset);
+				data.putLong(expiryTime);
+				data.putInt(key.getEncodedSize());
+				data.putInt(value.length);
+				key.writeEncodingTo(data);
+				data.put(value);
+				writeOffset += recordSize;
+
+				if (index.getInt(slotIndex + SLOT_RECORD_OFFSET) == 0)
+				{
+					index.putLong(slotIndex, key.getMostSignificantHashBits());
+					index.putInt(slotIndex + SLOT_HASH_LSB_OFFSET, (int) key.getLeastSignificantHashBits());
+					entryCount++;
+				}
+
+				index.putInt(slotIndex + SLOT_RECORD_OFFSET, recordOffset + 1);
+				return true;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Writes the non-expired entries to a snapshot
+		 */
+		private void writeTo(final DataOutputStream out, final long now, final long nowMillis) throws IOException
+		{
+			lock.lock();
+			try
+			{
+				for (int slotIndex = 0; slotIndex < index.capacity(); slotIndex += SLOT_SIZE)
+				{
+					final int recordOffsetPlusOne = index.getInt(slotIndex + SLOT_RECORD_OFFSET);
+					if (recordOffsetPlusOne == 0)
+					{
+						continue;
+					}
+
+					final int recordOffset = recordOffsetPlusOne - 1;
+					final long expiryTime = data.getLong(recordOffset);
+					final long expiryTimeMillis;
+					if (expiryTime == NO_EXPIRY)
+					{
+						expiryTimeMillis = SNAPSHOT_NO_EXPIRY;
+					}
+					else
+					{
+						final long remainingNanos = expiryTime - now;
+						if (remainingNanos <= 0)
+						{
+							continue;
+						}
+
+						expiryTimeMillis = nowMillis + TimeUnit.NANOSECONDS.toMillis(remainingNanos);
+					}
+
+					final int keyLength = data.getInt(recordOffset + RECORD_KEY_LENGTH_OFFSET);
+					final int valueLength = data.getInt(recordOffset + RECORD_VALUE_LENGTH_OFFSET);
+					final byte[] record = new byte[keyLength + valueLength];
+					data.position(recordOffset + RECORD_HEADER_SIZE);
+					data.get(record);
+
+					out.writeInt(keyLength);
+					out.writeLong(expiryTimeMillis);
+					out.writeInt(valueLength);
+					out.writeInt(snapshotRecordChecksum(expiryTimeMillis, record));
+					out.write(record);
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Must be called with lock held. Inserts an index slot (copied from the old index) in the index, at the first free slot from its hash.
+		 */
+		private void reinsertSlot(final long hashMsb, final int hashLsb, final int recordOffsetPlusOne)
+		{
+			int slot = slotOf(hashMsb) & slotMask;
+			while (index.getInt(slot * SLOT_SIZE + SLOT_RECORD_OFFSET) != 0)
+			{
+				slot = (slot + 1) & slotMask;
+			}
+
+			final int slotIndex = slot * SLOT_SIZE;
+			index.putLong(slotIndex, hashMsb);
+			index.putInt(slotIndex + SLOT_HASH_LSB_OFFSET, hashLsb);
+			index.putInt(slotIndex + SLOT_RECORD_OFFSET, recordOffsetPlusOne);
+			entryCount++;
+		}
+
+		/*
+		 * Removes the entries depending on outdated policies, by rebuilding the index with the other entries (removal from open-addressing index with linear probing). Records in the data area are not
+		 * reclaimed.
+		 */
+		private void removeDependents(final Set<PrimaryPolicyMetadata> outdatedPolicies)
+		{
+			lock.lock();
+			try
+			{
+				final ByteBuffer oldIndex = ByteBuffer.allocate(index.capacity());
+				index.clear();
+				oldIndex.put(index);
+				for (int i = 0; i < index.capacity(); i += Long.BYTES)
+				{
+					index.putLong(i, 0);
+				}
+
+				entryCount = 0;
+				final ByteBuffer encodedValue = data.duplicate();
+				for (int slotIndex = 0; slotIndex < oldIndex.capacity(); slotIndex += SLOT_SIZE)
+				{
+					final int recordOffsetPlusOne = oldIndex.getInt(slotIndex + SLOT_RECORD_OFFSET);
+					if (recordOffsetPlusOne == 0)
+					{
+						continue;
+					}
+
+					final int recordOffset = recordOffsetPlusOne - 1;
+					encodedValue.position(recordOffset + RECORD_HEADER_SIZE + data.getInt(recordOffset + RECORD_KEY_LENGTH_OFFSET));
+					if (!PolicyDependencies.dependsOnAny(DecisionResultCodec.decodeApplicablePolicies(encodedValue), outdatedPolicies))
+					{
+						reinsertSlot(oldIndex.getLong(slotIndex), oldIndex.getInt(slotIndex + SLOT_HASH_LSB_OFFSET), recordOffsetPlusOne);
+					}
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private int size()
+		{
+			lock.lock();
+			try
+			{
+				return entryCount;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/*
+		 * Must be called with lock held
+		 */
+		private void clear()
+		{
+			for (int i = 0; i < index.capacity(); i += Long.BYTES)
+			{
+				index.putLong(i, 0);
+			}
+
+			entryCount = 0;
+			writeOffset = 0;
+		}
+
+		private void invalidateAll()
+		{
+			lock.lock();
+			try
+			{
+				clear();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		private void close() throws IOException
+		{
+			lock.lock();
+			try
+			{
+				clear();
+				if (channel != null)
+				{
+					channel.close();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Creates a builder of {@link OffHeapDecisionCache}
+	 *
+	 * @param attributeValueFactories
+	 *            AttributeValue factories used to decode the attribute values in PEP actions of cached results
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code attributeValueFactories == null}
+	 */
+	public static Builder newBuilder(final AttributeValueFactoryRegistry attributeValueFactories) throws IllegalArgumentException
+	{
+		return new Builder(attributeValueFactories);
+	}
+
+	private final Segment[] segments;
+	private final int segmentMask;
+	private final DecisionResultCodec codec;
+	private final long ttlNanos;
+	private final DecisionCachingRules cachingRules;
+	private final Ticker ticker;
+	private final Path snapshotFile;
+	private final String policySetVersion;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	private OffHeapDecisionCache(final Builder builder) throws IOException, IllegalArgumentException
+	{
+		assert builder != null;
+
+		final long maxSegmentCount = Math.min(Builder.MAX_SEGMENT_COUNT, Math.min(builder.concurrencyLevel, builder.maxSize));
+		int segmentCount = 1;
+		while (segmentCount < maxSegmentCount)
+		{
+			segmentCount <<= 1;
+		}
+
+		if (segmentCount > builder.maxSize)
+		{
+			segmentCount >>>= 1;
+		}
+
+		final long maxEntriesPerSegment = (builder.maxSize + segmentCount - 1) / segmentCount;
+		final long dataCapacityPerSegment = (builder.maxMemorySize + segmentCount - 1) / segmentCount;
+		Preconditions.checkArgument(dataCapacityPerSegment <= Integer.MAX_VALUE && maxEntriesPerSegment <= Integer.MAX_VALUE,
+				"Too much memory or too many entries per cache segment (increase the concurrency level)");
+
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		try
+		{
+			for (int i = 0; i < segmentCount; i++)
+			{
+				this.segments[i] = new Segment((int) dataCapacityPerSegment, (int) maxEntriesPerSegment, builder.mappedFileDirectory);
+			}
+		}
+		catch (final IOException e)
+		{
+			for (final Segment segment : segments)
+			{
+				if (segment != null)
+				{
+					try
+					{
+						segment.close();
+					}
+					catch (final IOException closeException)
+					{
+						e.addSuppressed(closeException);
+					}
+				}
+			}
+
+			throw e;
+		}
+
+		this.codec = new DecisionResultCodec(builder.attributeValueFactories);
+		this.ttlNanos = builder.ttlNanos;
+		this.cachingRules = builder.cachingRules;
+		this.ticker = builder.ticker;
+		this.snapshotFile = builder.snapshotFile;
+		this.policySetVersion = builder.policySetVersion;
+		if (snapshotFile != null && Files.exists(snapshotFile))
+		{
+			try
+			{
+				loadSnapshot();
+			}
+			catch (final IOException | IllegalArgumentException | BufferUnderflowException e)
+			{
+				/*
+				 * The cache is only an optimization, so a corrupted or unreadable snapshot must not prevent the PDP from starting
+				 */
+				LOGGER.warn("Failed to load decision cache snapshot from file '{}': starting with empty cache", snapshotFile, e);
+				invalidateAll();
+			}
+		}
+	}
+
+	/*
+	 * CRC32 of a snapshot record: expiry time, then key and value (concatenated in keyAndValue)
+	 */
+	private static int snapshotRecordChecksum(final long expiryTimeMillis, final byte[] keyAndValue)
+	{
+		final CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(0, expiryTimeMillis).array());
+		crc.update(keyAndValue);
+		return (int) crc.getValue();
+	}
+
+	private void loadSnapshot() throws IOException, IllegalArgumentException, BufferUnderflowException
+	{
+		final ByteBuffer in;
+		try (FileChannel fileChannel = FileChannel.open(snapshotFile, StandardOpenOption.READ))
+		{
+			// the mapping remains valid after the channel is closed
+			in = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+
+		Preconditions.checkArgument(in.getInt() == SNAPSHOT_MAGIC_NUMBER, "Not a decision cache snapshot");
+		final int formatVersion = in.getInt();
+		Preconditions.checkArgument(formatVersion == SNAPSHOT_FORMAT_VERSION, "Unsupported decision cache snapshot format version: %s", formatVersion);
+		final String snapshotPolicySetVersion = DecisionResultCodec.readString(in);
+		if (!snapshotPolicySetVersion.equals(policySetVersion))
+		{
+			LOGGER.info("Decision cache snapshot '{}' discarded: policy set version ({}) does not match the current one ({})", snapshotFile, snapshotPolicySetVersion, policySetVersion);
+			return;
+		}
+
+		final long now = ticker.read();
+		final long nowMillis = System.currentTimeMillis();
+		int loadedEntryCount = 0;
+		int skippedEntryCount = 0;
+		while (true)
+		{
+			final int keyLength = in.getInt();
+			if (keyLength == SNAPSHOT_END_MARKER)
+			{
+				break;
+			}
+
+			Preconditions.checkArgument(keyLength >= 0 && keyLength <= in.remaining(), "Invalid key length in decision cache snapshot: %s", keyLength);
+			final long expiryTimeMillis = in.getLong();
+			final int valueLength = in.getInt();
+			final int checksum = in.getInt();
+			Preconditions.checkArgument(valueLength >= 0 && (long) keyLength + valueLength <= in.remaining(), "Invalid value length in decision cache snapshot: %s", valueLength);
+			final byte[] keyAndValue = new byte[keyLength + valueLength];
+			in.get(keyAndValue);
+			if (snapshotRecordChecksum(expiryTimeMillis, keyAndValue) != checksum)
+			{
+				// corrupted record, detected before decoding anything
+				skippedEntryCount++;
+				continue;
+			}
+
+			final byte[] keyEncoding = Arrays.copyOfRange(keyAndValue, 0, keyLength);
+			final byte[] value = Arrays.copyOfRange(keyAndValue, keyLength, keyAndValue.length);
+
+			final long expiryTime;
+			if (expiryTimeMillis == SNAPSHOT_NO_EXPIRY)
+			{
+				expiryTime = NO_EXPIRY;
+			}
+			else
+			{
+				if (expiryTimeMillis <= nowMillis)
+				{
+					continue;
+				}
+
+				expiryTime = now + TimeUnit.MILLISECONDS.toNanos(expiryTimeMillis - nowMillis);
+			}
+
+			/*
+			 * Check that the value is decodable with the current attribute value factories, else every hit on it would fail
+			 */
+			try
+			{
+				codec.decode(value);
+			}
+			catch (final IllegalArgumentException e)
+			{
+				LOGGER.debug("Decision cache snapshot entry skipped: undecodable value", e);
+				skippedEntryCount++;
+				continue;
+			}
+
+			final DecisionRequestFingerprint key = DecisionRequestFingerprint.fromEncoding(keyEncoding);
+			if (segmentFor(key).put(key, value, expiryTime))
+			{
+				loadedEntryCount++;
+			}
+		}
+
+		if (skippedEntryCount > 0)
+		{
+			LOGGER.warn("Skipped {} undecodable entries of decision cache snapshot '{}' (corrupted, or written with different attribute value factories)", skippedEntryCount, snapshotFile);
+		}
+
+		LOGGER.info("Loaded {} entries into decision cache from snapshot '{}'", loadedEntryCount, snapshotFile);
+	}
+
+	private void saveSnapshot() throws IOException
+	{
+		final Path tmpFile = Files.createTempFile(snapshotFile.toAbsolutePath().getParent(), snapshotFile.getFileName().toString(), ".tmp");
+		try
+		{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile))))
+			{
+				out.writeInt(SNAPSHOT_MAGIC_NUMBER);
+				out.writeInt(SNAPSHOT_FORMAT_VERSION);
+				final byte[] policySetVersionBytes = policySetVersion.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(policySetVersionBytes.length);
+				out.write(policySetVersionBytes);
+				final long now = ticker.read();
+				final long nowMillis = System.currentTimeMillis();
+				for (final Segment segment : segments)
+				{
+					segment.writeTo(out, now, nowMillis);
+				}
+
+				out.writeInt(SNAPSHOT_END_MARKER);
+			}
+
+			Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	private Segment segmentFor(final DecisionRequestFingerprint key)
+	{
+		/*
+		 * Use other hash bits than the index slot (most significant bits)
+		 */
+		return segments[(int) key.getLeastSignificantHashBits() & segmentMask];
+	}
+
+	/*
+	 * Cache key for a given request, or null if the request is not cacheable (no fingerprint)
+	 */
+	private static DecisionRequestFingerprint keyOf(final DecisionRequest request)
+	{
+		try
+		{
+			return request.getFingerprint();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			LOGGER.debug("Decision request not cacheable: {}", request, e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean isEvaluationContextRequired()
+	{
+		return false;
+	}
+
+	@Override
+	public DecisionResult get(final DecisionRequest request, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		final DecisionRequestFingerprint key = keyOf(request);
+		if (key == null)
+		{
+			return null;
+		}
+
+		final Segment segment = segmentFor(key);
+		final long now = ticker.read();
+		final byte[] encodedResult = segment.get(key, now);
+		if (encodedResult == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			return codec.decode(encodedResult);
+		}
+		catch (final IllegalArgumentException e)
+		{
+			/*
+			 * The cache is only an optimization: evict the undecodable entry and handle it as a cache miss
+			 */
+			LOGGER.warn("Failed to decode cached decision result: evicting it from the cache", e);
+			segment.expire(key, encodedResult, now);
+			return null;
+		}
+	}
+
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> Map<DECISION_REQ_T, DecisionResult> getAll(final List<DECISION_REQ_T> requests)
+	{
+		final Map<DECISION_REQ_T, DecisionResult> results = HashCollections.newUpdatableMap(requests.size());
+		for (final DECISION_REQ_T request : requests)
+		{
+			final DecisionResult result = get(request, null);
+			if (result != null)
+			{
+				results.put(request, result);
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public void put(final DecisionRequest request, final DecisionResult result, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		if (result == null)
+		{
+			throw NULL_RESULT_ARGUMENT_EXCEPTION;
+		}
+
+		final long resultTtlNanos = cachingRules.getTimeToLiveNanos(result, ttlNanos);
+		if (resultTtlNanos == 0)
+		{
+			return;
+		}
+
+		final byte[] encodedResult;
+		try
+		{
+			encodedResult = codec.encode(result);
+		}
+		catch (final IllegalArgumentException e)
+		{
+			LOGGER.debug("Decision result not cached (cannot be encoded): {}", result, e);
+			return;
+		}
+
+		final DecisionRequestFingerprint key = keyOf(request);
+		if (key == null)
+		{
+			return;
+		}
+
+		final long expiryTime = resultTtlNanos < 0 ? NO_EXPIRY : ticker.read() + resultTtlNanos;
+		if (!segmentFor(key).put(key, encodedResult, expiryTime))
+		{
+			LOGGER.debug("Decision result not cached (too big for a cache segment): {}", result);
+		}
+	}
+
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> void putAll(final Map<DECISION_REQ_T, DecisionResult> resultsByRequest)
+	{
+		for (final Entry<DECISION_REQ_T, DecisionResult> resultByRequest : resultsByRequest.entrySet())
+		{
+			put(resultByRequest.getKey(), resultByRequest.getValue(), null);
+		}
+	}
+
+	@Override
+	public boolean supportsInvalidation()
+	{
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This scans all the entries, segment by segment, and decodes the applicable policies of each; therefore it is meant for occasional policy updates. The memory used by removed entries is
+	 * reclaimed only when their segment is full and cleared.
+	 */
+	@Override
+	public void invalidate(final Set<PrimaryPolicyMetadata> outdatedPolicies)
+	{
+		Preconditions.checkArgument(outdatedPolicies != null, "Undefined outdated policies");
+		for (final Segment segment : segments)
+		{
+			segment.removeDependents(outdatedPolicies);
+		}
+	}
+
+	/**
+	 * Get the current number of entries in the cache (including expired or replaced entries not evicted yet)
+	 *
+	 * @return number of entries
+	 */
+	public long size()
+	{
+		long size = 0;
+		for (final Segment segment : segments)
+		{
+			size += segment.size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void invalidateAll()
+	{
+		for (final Segment segment : segments)
+		{
+			segment.invalidateAll();
+		}
+	}
+
+	/**
+	 * Closes the cache, after writing its contents to the snapshot file if {@link Builder#snapshotFile(Path, String)} is used. Calling this method again has no effect; in particular, it does not
+	 * overwrite the snapshot file with the (cleared) contents of the closed cache.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (!closed.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		IOException closeException = null;
+		if (snapshotFile != null)
+		{
+			try
+			{
+				saveSnapshot();
+			}
+			catch (final IOException e)
+			{
+				closeException = e;
+			}
+		}
+
+		for (final Segment segment : segments)
+		{
+			try
+			{
+				segment.close();
+			}
+			catch (final IOException e)
+			{
+				if (closeException == null)
+				{
+					closeException = e;
+				}
+				else
+				{
+					closeException.addSuppressed(e);
+				}
+			}
+		}
+
+		if (closeException != null)
+		{
+			throw closeException;
+		}
+	}
+
+}
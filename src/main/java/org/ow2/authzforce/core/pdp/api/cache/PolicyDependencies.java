@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.util.List;
+import java.util.Set;
+
+import org.ow2.authzforce.core.pdp.api.DecisionCache;
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+
+/**
+ * Utilities for selective invalidation of cached decision results (see {@link DecisionCache#invalidate(Set)})
+ */
+final class PolicyDependencies
+{
+	private PolicyDependencies()
+	{
+		// prevent instantiation
+	}
+
+	/**
+	 * Checks whether a decision result may depend on any of the given policies, according to the semantics of {@link DecisionCache#invalidate(Set)}
+	 * 
+	 * @param applicablePolicies
+	 *            applicable policies of the decision result
+	 * @param outdatedPolicies
+	 *            outdated policies
+	 * @return true iff the result must be invalidated
+	 */
+	static boolean dependsOnAny(final List<PrimaryPolicyMetadata> applicablePolicies, final Set<PrimaryPolicyMetadata> outdatedPolicies)
+	{
+		if (applicablePolicies == null || applicablePolicies.isEmpty())
+		{
+			// unknown dependencies
+			return true;
+		}
+
+		for (final PrimaryPolicyMetadata policy : applicablePolicies)
+		{
+			if (outdatedPolicies.contains(policy))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,549 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ow2.authzforce.core.pdp.api.DecisionCache;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionRequestFingerprint;
+import org.ow2.authzforce.core.pdp.api.DecisionResult;
+import org.ow2.authzforce.core.pdp.api.EnvironmentProperties;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.HashCollections;
+import org.ow2.authzforce.core.pdp.api.policy.PrimaryPolicyMetadata;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.xmlns.pdp.ext.AbstractDecisionCache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Two-level {@link DecisionCache}: a small per-thread level-1 (L1) cache in front of a shared level-2 (L2) cache, e.g. {@link InMemoryDecisionCache}. Cache hits in L1 do not access any memory
+ * shared with other threads - except for one read of a volatile version number - therefore avoid the cross-core cache-line traffic (locks, LRU bookkeeping) of the L2 under very high throughput,
+ * especially when each thread serves the same few clients repeatedly.
+ * <p>
+ * Each L1 is a direct-mapped array of entries (each request fingerprint maps to a single slot, overwritten by colliding entries) with a short time-to-live, which bounds how long a thread may keep
+ * serving a result after the L2 entry has been replaced or expired. L1 entries are only filled from L2 hits, i.e. results that the L2 cache chose to cache, and their TTL is capped by the
+ * {@link DecisionCachingRules} given to {@link Builder#cachingRules(DecisionCachingRules)} (which should be the same as the L2 cache's), so that an L1 entry never lives longer than the L2 entry
+ * would. Coherence with invalidations is ensured by version stamps: each L1 entry is stamped with the cache version at the time it was
+ * filled, and the version is incremented by {@link #invalidate(Set)}, {@link #invalidateLevel1()} and {@link #close()}, which makes all the L1 entries of all threads stale at once.
+ * <p>
+ * Plugs into the PDP as any other decision cache extension, by registering a {@link Factory} decorating the L2 cache factory.
+ */
+public final class TwoTierDecisionCache implements DecisionCache
+{
+	private static final IllegalArgumentException NULL_REQUEST_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision request");
+	private static final IllegalArgumentException NULL_RESULT_ARGUMENT_EXCEPTION = new IllegalArgumentException("Undefined decision result");
+
+	private static final int DEFAULT_L1_SIZE = 64;
+	private static final long DEFAULT_L1_TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int MAX_L1_SIZE = 1 << 16;
+
+	/**
+	 * Builder of {@link TwoTierDecisionCache}. Not thread-safe.
+	 */
+	public static final class Builder
+	{
+		private final DecisionCache level2Cache;
+		private int level1Size = DEFAULT_L1_SIZE;
+		private long level1TtlNanos = DEFAULT_L1_TTL_NANOS;
+		private DecisionCachingRules cachingRules = DecisionCachingRules.DEFAULT;
+		private Ticker ticker = Ticker.systemTicker();
+
+		private Builder(final DecisionCache level2Cache)
+		{
+			// use TwoTierDecisionCache#newBuilder(DecisionCache)
+			Preconditions.checkArgument(level2Cache != null, "Undefined level-2 decision cache");
+			this.level2Cache = level2Cache;
+		}
+
+		/**
+		 * Sets the number of entries in each thread's L1 cache (rounded up to the next power of two). Default: 64.
+		 *
+		 * @param size
+		 *            L1 size (strictly positive, max 65536)
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code size <= 0 || size > 65536}
+		 */
+		public Builder level1Size(final int size) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(size > 0 && size <= MAX_L1_SIZE, "Invalid L1 cache size (must be in [1, %s]): %s", MAX_L1_SIZE, size);
+			this.level1Size = size;
+			return this;
+		}
+
+		/**
+		 * Sets the time-to-live of L1 cache entries, i.e. the maximum time during which a thread may return a result from its L1 without checking the L2. Default: 1 second.
+		 *
+		 * @param duration
+		 *            TTL (strictly positive)
+		 * @param unit
+		 *            unit of {@code duration}
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code duration <= 0 || unit == null}
+		 */
+		public Builder level1TimeToLive(final long duration, final TimeUnit unit) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(duration > 0, "Invalid L1 cache entry TTL (must be > 0): %s", duration);
+			Preconditions.checkArgument(unit != null, "Undefined L1 cache entry TTL unit");
+			this.level1TtlNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Sets the caching rules of the L2 cache, applied to L1 entries as well: a result not cached according to the rules is not put in L1, and the L1 TTL of a result is the minimum of the
+		 * {@link #level1TimeToLive(long, TimeUnit)} and the result's TTL according to the rules. Default: {@link DecisionCachingRules#DEFAULT}.
+		 *
+		 * @param rules
+		 *            L2 cache's caching rules
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code rules == null}
+		 */
+		public Builder cachingRules(final DecisionCachingRules rules) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(rules != null, "Undefined decision caching rules");
+			this.cachingRules = rules;
+			return this;
+		}
+
+		/**
+		 * Sets the time source used for L1 entry expiry. Default: {@link Ticker#systemTicker()}. Mostly useful for testing.
+		 *
+		 * @param timeSource
+		 *            time source
+		 * @return this builder
+		 * @throws IllegalArgumentException
+		 *             if {@code timeSource == null}
+		 */
+		public Builder ticker(final Ticker timeSource) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(timeSource != null, "Undefined ticker");
+			this.ticker = timeSource;
+			return this;
+		}
+
+		/**
+		 * Creates the cache
+		 *
+		 * @return new cache instance
+		 */
+		public TwoTierDecisionCache build()
+		{
+			return new TwoTierDecisionCache(this);
+		}
+	}
+
+	/**
+	 * {@link DecisionCache.Factory} decorating another (L2) decision cache factory with per-thread L1 caches. This factory is bound to the same configuration (JAXB) type as the L2 cache factory,
+	 * therefore it must be registered instead of - not in addition to - the L2 cache factory.
+	 *
+	 * @param <CONF_T>
+	 *            type of L2 cache configuration
+	 */
+	public static final class Factory<CONF_T extends AbstractDecisionCache> extends DecisionCache.Factory<CONF_T>
+	{
+		private final DecisionCache.Factory<CONF_T> level2CacheFactory;
+		private final int level1Size;
+		private final long level1TtlNanos;
+		private final DecisionCachingRules cachingRules;
+
+		/**
+		 * Creates factory
+		 *
+		 * @param level2CacheFactory
+		 *            factory of L2 cache
+		 * @param level1Size
+		 *            see {@link Builder#level1Size(int)}
+		 * @param level1TimeToLive
+		 *            see {@link Builder#level1TimeToLive(long, TimeUnit)}
+		 * @param level1TimeToLiveUnit
+		 *            unit of {@code level1TimeToLive}
+		 * @param cachingRules
+		 *            see {@link Builder#cachingRules(DecisionCachingRules)}
+		 * @throws IllegalArgumentException
+		 *             if {@code level2CacheFactory == null || cachingRules == null}, or invalid L1 size or TTL
+		 */
+		public Factory(final DecisionCache.Factory<CONF_T> level2CacheFactory, final int level1Size, final long level1TimeToLive, final TimeUnit level1TimeToLiveUnit,
+				final DecisionCachingRules cachingRules) throws IllegalArgumentException
+		{
+			Preconditions.checkArgument(level2CacheFactory != null, "Undefined level-2 decision cache factory");
+			Preconditions.checkArgument(cachingRules != null, "Undefined decision caching rules");
+			Preconditions.checkArgument(level1Size > 0 && level1Size <= MAX_L1_SIZE, "Invalid L1 cache size (must be in [1, %s]): %s", MAX_L1_SIZE, level1Size);
+			Preconditions.checkArgument(level1TimeToLive > 0, "Invalid L1 cache entry TTL (must be > 0): %s", level1TimeToLive);
+			Preconditions.checkArgument(level1TimeToLiveUnit != null, "Undefined L1 cache entry TTL unit");
+			this.level2CacheFactory = level2CacheFactory;
+			this.level1Size = level1Size;
+			this.level1TtlNanos = level1TimeToLiveUnit.toNanos(level1TimeToLive);
+			this.cachingRules = cachingRules;
+		}
+
+		/**
+		 * Creates factory with {@link DecisionCachingRules#DEFAULT} caching rules
+		 *
+		 * @param level2CacheFactory
+		 *            factory of L2 cache
+		 * @param level1Size
+		 *            see {@link Builder#level1Size(int)}
+		 * @param level1TimeToLive
+		 *            see {@link Builder#level1TimeToLive(long, TimeUnit)}
+		 * @param level1TimeToLiveUnit
+		 *            unit of {@code level1TimeToLive}
+		 * @throws IllegalArgumentException
+		 *             if {@code level2CacheFactory == null}, or invalid L1 size or TTL
+		 */
+		public Factory(final DecisionCache.Factory<CONF_T> level2CacheFactory, final int level1Size, final long level1TimeToLive, final TimeUnit level1TimeToLiveUnit)
+				throws IllegalArgumentException
+		{
+			this(level2CacheFactory, level1Size, level1TimeToLive, level1TimeToLiveUnit, DecisionCachingRules.DEFAULT);
+		}
+
+		@Override
+		public Class<CONF_T> getJaxbClass()
+		{
+			return level2CacheFactory.getJaxbClass();
+		}
+
+		@Override
+		public DecisionCache getInstance(final CONF_T conf, final AttributeValueFactoryRegistry attributeValueFactories, final EnvironmentProperties envProps)
+		{
+			return newBuilder(level2CacheFactory.getInstance(conf, attributeValueFactories, envProps)).level1Size(level1Size).level1TimeToLive(level1TtlNanos, TimeUnit.NANOSECONDS)
+					.cachingRules(cachingRules).build();
+		}
+	}
+
+	/*
+	 * L1 cache, direct-mapped. Accessed by a single thread.
+	 */
+	private static final class Level1Cache
+	{
+		private final DecisionRequestFingerprint[] keys;
+		private final DecisionResult[] results;
+		private final long[] expiryTimes;
+		private final long[] versions;
+		private final int mask;
+
+		private Level1Cache(final int size)
+		{
+			int tableSize = 1;
+			while (tableSize < size)
+			{
+				tableSize <<= 1;
+			}
+
+			this.keys = new DecisionRequestFingerprint[tableSize];
+			this.results = new DecisionResult[tableSize];
+			this.expiryTimes = new long[tableSize];
+			this.versions = new long[tableSize];
+			this.mask = tableSize - 1;
+		}
+
+		private int slotOf(final DecisionRequestFingerprint key)
+		{
+			final int h = key.hashCode();
+			return (h ^ h >>> 16) & mask;
+		}
+
+		private DecisionResult get(final DecisionRequestFingerprint key, final long version, final long now)
+		{
+			final int slot = slotOf(key);
+			if (versions[slot] != version || now - expiryTimes[slot] >= 0 || !key.equals(keys[slot]))
+			{
+				return null;
+			}
+
+			return results[slot];
+		}
+
+		private void put(final DecisionRequestFingerprint key, final DecisionResult result, final long version, final long expiryTime)
+		{
+			final int slot = slotOf(key);
+			keys[slot] = key;
+			results[slot] = result;
+			expiryTimes[slot] = expiryTime;
+			versions[slot] = version;
+		}
+	}
+
+	/**
+	 * Creates a builder of {@link TwoTierDecisionCache}
+	 *
+	 * @param level2Cache
+	 *            shared L2 cache
+	 * @return new builder
+	 * @throws IllegalArgumentException
+	 *             if {@code level2Cache == null}
+	 */
+	public static Builder newBuilder(final DecisionCache level2Cache) throws IllegalArgumentException
+	{
+		return new Builder(level2Cache);
+	}
+
+	private final DecisionCache level2Cache;
+	private final ThreadLocal<Level1Cache> level1Caches;
+	private final long level1TtlNanos;
+	private final DecisionCachingRules cachingRules;
+	private final Ticker ticker;
+
+	/*
+	 * L1 caches are not registered anywhere but in the thread-local variable, so that they are garbage-collected with their threads. On close, the version increment makes all of them stale, and
+	 * each thread removes its own on its next access.
+	 */
+	private volatile boolean closed = false;
+
+	/*
+	 * Version stamp, starting at 1 so that never-filled L1 slots (version 0) are always stale
+	 */
+	private final AtomicLong version = new AtomicLong(1);
+
+	private TwoTierDecisionCache(final Builder builder)
+	{
+		assert builder != null;
+		this.level2Cache = builder.level2Cache;
+		final int level1Size = builder.level1Size;
+		this.level1Caches = ThreadLocal.withInitial(() -> new Level1Cache(level1Size));
+		this.level1TtlNanos = builder.level1TtlNanos;
+		this.cachingRules = builder.cachingRules;
+		this.ticker = builder.ticker;
+	}
+
+	/*
+	 * Get the current thread's L1 cache, or null if this cache is closed (the thread's L1 is then removed)
+	 */
+	private Level1Cache level1Cache()
+	{
+		if (closed)
+		{
+			level1Caches.remove();
+			return null;
+		}
+
+		return level1Caches.get();
+	}
+
+	/*
+	 * L1 cache key for a given request, or null if the request is not cacheable (no fingerprint). Such requests are passed to the L2 cache as is.
+	 */
+	private static DecisionRequestFingerprint keyOf(final DecisionRequest request)
+	{
+		try
+		{
+			return request.getFingerprint();
+		}
+		catch (final IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
+	/*
+	 * Puts a result got from the L2 cache in L1, if allowed by the caching rules
+	 */
+	private void putLevel1(final Level1Cache level1Cache, final DecisionRequestFingerprint key, final DecisionResult result, final long version, final long now)
+	{
+		final long ruleTtlNanos = cachingRules.getTimeToLiveNanos(result, level1TtlNanos);
+		if (ruleTtlNanos == 0)
+		{
+			return;
+		}
+
+		level1Cache.put(key, result, version, now + (ruleTtlNanos < 0 ? level1TtlNanos : Math.min(ruleTtlNanos, level1TtlNanos)));
+	}
+
+	@Override
+	public boolean isEvaluationContextRequired()
+	{
+		return level2Cache.isEvaluationContextRequired();
+	}
+
+	@Override
+	public DecisionResult get(final DecisionRequest request, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		final Level1Cache level1Cache = level1Cache();
+		if (level1Cache == null)
+		{
+			return level2Cache.get(request, evalCtx);
+		}
+
+		final DecisionRequestFingerprint key = keyOf(request);
+		if (key == null)
+		{
+			return level2Cache.get(request, evalCtx);
+		}
+
+		final long currentVersion = version.get();
+		final long now = ticker.read();
+		final DecisionResult level1Result = level1Cache.get(key, currentVersion, now);
+		if (level1Result != null)
+		{
+			return level1Result;
+		}
+
+		final DecisionResult level2Result = level2Cache.get(request, evalCtx);
+		if (level2Result != null)
+		{
+			putLevel1(level1Cache, key, level2Result, currentVersion, now);
+		}
+
+		return level2Result;
+	}
+
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> Map<DECISION_REQ_T, DecisionResult> getAll(final List<DECISION_REQ_T> requests)
+	{
+		final Level1Cache level1Cache = level1Cache();
+		if (level1Cache == null)
+		{
+			return level2Cache.getAll(requests);
+		}
+
+		final long currentVersion = version.get();
+		final long now = ticker.read();
+		final Map<DECISION_REQ_T, DecisionResult> results = HashCollections.newUpdatableMap(requests.size());
+		final List<DECISION_REQ_T> level1Misses = new ArrayList<>(requests.size());
+		for (final DECISION_REQ_T request : requests)
+		{
+			final DecisionRequestFingerprint key = keyOf(request);
+			final DecisionResult level1Result = key == null ? null : level1Cache.get(key, currentVersion, now);
+			if (level1Result == null)
+			{
+				level1Misses.add(request);
+			}
+			else
+			{
+				results.put(request, level1Result);
+			}
+		}
+
+		if (level1Misses.isEmpty())
+		{
+			return results;
+		}
+
+		final Map<DECISION_REQ_T, DecisionResult> level2Results = level2Cache.getAll(level1Misses);
+		for (final Entry<DECISION_REQ_T, DecisionResult> level2Result : level2Results.entrySet())
+		{
+			final DecisionRequestFingerprint key = keyOf(level2Result.getKey());
+			if (key != null)
+			{
+				putLevel1(level1Cache, key, level2Result.getValue(), currentVersion, now);
+			}
+
+			results.put(level2Result.getKey(), level2Result.getValue());
+		}
+
+		return results;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The result is put in the L2 cache only: L1 caches are filled from L2 hits, so that only results actually cached by the L2 cache are served from L1.
+	 */
+	@Override
+	public void put(final DecisionRequest request, final DecisionResult result, final EvaluationContext evalCtx)
+	{
+		if (request == null)
+		{
+			throw NULL_REQUEST_ARGUMENT_EXCEPTION;
+		}
+
+		if (result == null)
+		{
+			throw NULL_RESULT_ARGUMENT_EXCEPTION;
+		}
+
+		level2Cache.put(request, result, evalCtx);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The results are put in the L2 cache only, as in {@link #put(DecisionRequest, DecisionResult, EvaluationContext)}.
+	 */
+	@Override
+	public <DECISION_REQ_T extends DecisionRequest> void putAll(final Map<DECISION_REQ_T, DecisionResult> resultsByRequest)
+	{
+		level2Cache.putAll(resultsByRequest);
+	}
+
+	/**
+	 * Invalidates all the L1 entries of all threads, e.g. after modifying the L2 cache directly (out of this cache's control)
+	 */
+	public void invalidateLevel1()
+	{
+		version.incrementAndGet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Selective invalidation is supported iff the L2 cache supports it.
+	 */
+	@Override
+	public boolean supportsInvalidation()
+	{
+		return level2Cache.supportsInvalidation();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The L1 caches being too small to be worth scanning, all the L1 entries are invalidated, and {@code outdatedPolicies} are passed to the L2 cache.
+	 */
+	@Override
+	public void invalidate(final Set<PrimaryPolicyMetadata> outdatedPolicies) throws UnsupportedOperationException
+	{
+		level2Cache.invalidate(outdatedPolicies);
+		/*
+		 * Increment the version after invalidating the L2, so that L1 entries filled from the L2 in the meantime are stale as well
+		 */
+		invalidateLevel1();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The L1 caches of all threads are made stale at once, and each thread removes its own (thread-local) L1 on its next access to this cache, if any; else the L1 is garbage-collected with the
+	 * thread or this cache.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		invalidateLevel1();
+		level1Caches.remove();
+		level2Cache.close();
+	}
+
+}
@@ -22,8 +22,12 @@ import java.util.Optional;
 import org.ow2.authzforce.core.pdp.api.AttributeFqn;
 import org.ow2.authzforce.core.pdp.api.AttributeFqns;
 import org.ow2.authzforce.core.pdp.api.AttributeProvider;
+import org.ow2.authzforce.core.pdp.api.ContextSlots;
 import org.ow2.authzforce.core.pdp.api.EvaluationContext;
 import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.SlotIndexedEvaluationContext;
+import org.ow2.authzforce.core.pdp.api.monitoring.AttributeMetricsRegistry;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
 import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
 import org.ow2.authzforce.core.pdp.api.value.Bag;
 import org.ow2.authzforce.core.pdp.api.value.BagDatatype;
@@ -51,6 +55,11 @@ public final class GenericAttributeProviderBasedAttributeDesignatorExpression<AV
 	private final boolean mustBePresent;
 	private final transient Bag.Validator mustBePresentEnforcer;
 	private final transient AttributeProvider attrProvider;
+	// null if metrics disabled
+	private final transient AttributeMetricsRegistry metricsRegistry;
+	// null if slots not used
+	private final transient ContextSlots contextSlots;
+	private final transient int attributeSlot;
 	private final transient IndeterminateEvaluationException missingAttributeForUnknownReasonException;
 	private final transient IndeterminateEvaluationException missingAttributeBecauseNullContextException;
 
@@ -81,6 +90,49 @@ public final class GenericAttributeProviderBasedAttributeDesignatorExpression<AV
 	 *             if {@code attrDesignator.getCategory() == null || attrDesignator.getAttributeId() == null}
 	 */
 	public GenericAttributeProviderBasedAttributeDesignatorExpression(final AttributeDesignatorType attrDesignator, final BagDatatype<AV> resultDatatype, final AttributeProvider attrProvider)
+	{
+		this(attrDesignator, resultDatatype, attrProvider, null);
+	}
+
+	/**
+	 * Return an instance of an AttributeDesignator based on an AttributeDesignatorType, recording the latency and outcome of each evaluation in a metrics registry
+	 *
+	 * @param attrDesignator
+	 *            the AttributeDesignatorType we want to convert
+	 * @param resultDatatype
+	 *            expected datatype of the result of evaluating this AttributeDesignator ( {@code AV is the expected type of every element in the bag})
+	 * @param attrProvider
+	 *            Attribute Provider responsible for finding the attribute designated by this in a given evaluation context at runtime
+	 * @param metricsRegistry
+	 *            registry of attribute retrieval metrics; null to disable metrics
+	 * @throws IllegalArgumentException
+	 *             if {@code attrDesignator.getCategory() == null || attrDesignator.getAttributeId() == null}
+	 */
+	public GenericAttributeProviderBasedAttributeDesignatorExpression(final AttributeDesignatorType attrDesignator, final BagDatatype<AV> resultDatatype, final AttributeProvider attrProvider,
+			final AttributeMetricsRegistry metricsRegistry)
+	{
+		this(attrDesignator, resultDatatype, attrProvider, metricsRegistry, null);
+	}
+
+	/**
+	 * Return an instance of an AttributeDesignator based on an AttributeDesignatorType, registering the attribute in a slot registry: when evaluated in a {@link SlotIndexedEvaluationContext} using
+	 * the same registry, the attribute value already in context is looked up by slot, and the Attribute Provider is called only if it is not there yet.
+	 *
+	 * @param attrDesignator
+	 *            the AttributeDesignatorType we want to convert
+	 * @param resultDatatype
+	 *            expected datatype of the result of evaluating this AttributeDesignator ( {@code AV is the expected type of every element in the bag})
+	 * @param attrProvider
+	 *            Attribute Provider responsible for finding the attribute designated by this in a given evaluation context at runtime
+	 * @param metricsRegistry
+	 *            registry of attribute retrieval metrics; null to disable metrics
+	 * @param contextSlots
+	 *            registry of evaluation context slots; null if not used
+	 * @throws IllegalArgumentException
+	 *             if {@code attrDesignator.getCategory() == null || attrDesignator.getAttributeId() == null}
+	 */
+	public GenericAttributeProviderBasedAttributeDesignatorExpression(final AttributeDesignatorType attrDesignator, final BagDatatype<AV> resultDatatype, final AttributeProvider attrProvider,
+			final AttributeMetricsRegistry metricsRegistry, final ContextSlots contextSlots)
 	{
 		if (attrProvider == null)
 		{
@@ -88,7 +140,10 @@ public final class GenericAttributeProviderBasedAttributeDesignatorExpression<AV
 		}
 
 		this.attrProvider = attrProvider;
+		this.metricsRegistry = metricsRegistry;
 		this.attrGUID = AttributeFqns.newInstance(attrDesignator);
+		this.contextSlots = contextSlots;
+		this.attributeSlot = contextSlots == null ? -1 : contextSlots.registerAttribute(attrGUID);
 		this.returnType = resultDatatype;
 
 		// error messages/exceptions
@@ -113,6 +168,54 @@ public final class GenericAttributeProviderBasedAttributeDesignatorExpression<AV
 		return this.mustBePresent;
 	}
 
+	/*
+	 * Looks up the attribute value already in context by slot if possible, else calls the Attribute Provider
+	 */
+	private AttributeBag<AV> get(final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		if (attributeSlot >= 0 && context instanceof SlotIndexedEvaluationContext && ((SlotIndexedEvaluationContext) context).getSlots() == contextSlots)
+		{
+			/*
+			 * Listeners are not notified on a miss, since the provider below looks up the context again
+			 */
+			final AttributeBag<AV> bag = ((SlotIndexedEvaluationContext) context).getNamedAttributeValue(attributeSlot, attrGUID, this.returnType.getElementType());
+			if (bag != null)
+			{
+				return bag;
+			}
+		}
+
+		return attrProvider.get(attrGUID, this.returnType.getElementType(), context);
+	}
+
+	/*
+	 * Same as get(context), recording the call in the metrics registry, whether the value is found by slot or by the Attribute Provider (which looks up the context first as well), so that call
+	 * counts do not depend on the use of slots. The source recorded is the one of the returned bag, empty or not. The source of an error is unknown at this level, i.e. errors are only recorded per
+	 * attribute; wrap the Attribute Providers with MeteredAttributeProvider to record them per source.
+	 */
+	private AttributeBag<AV> getAndRecord(final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final long startTime = System.nanoTime();
+		final AttributeBag<AV> bag;
+		try
+		{
+			bag = get(context);
+		}
+		catch (final UnsupportedOperationException e)
+		{
+			// attribute not supported: not recorded (see AttributeMetricsRegistry)
+			throw e;
+		}
+		catch (final IndeterminateEvaluationException | RuntimeException e)
+		{
+			metricsRegistry.recordCall(attrGUID, null, System.nanoTime() - startTime, AttributeMetricsRegistry.Outcome.ERROR);
+			throw e;
+		}
+
+		metricsRegistry.recordCall(attrGUID, bag == null ? null : bag.getSource().orElse(null), System.nanoTime() - startTime, AttributeMetricsRegistry.Outcome.of(bag));
+		return bag;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 *
@@ -126,7 +229,7 @@ public final class GenericAttributeProviderBasedAttributeDesignatorExpression<AV
 			throw missingAttributeBecauseNullContextException;
 		}
 
-		final Bag<AV> bag = attrProvider.get(attrGUID, this.returnType.getElementType(), context);
+		final AttributeBag<AV> bag = metricsRegistry == null ? get(context) : getAndRecord(context);
 		if (bag == null)
 		{
 			throw this.missingAttributeForUnknownReasonException;
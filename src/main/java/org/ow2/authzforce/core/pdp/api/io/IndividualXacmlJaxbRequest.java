@@ -29,6 +29,7 @@ import oasis.names.tc.xacml._3_0.core.schema.wd_17.Attributes;
 
 import org.ow2.authzforce.core.pdp.api.AttributeFqn;
 import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionRequestFingerprint;
 import org.ow2.authzforce.core.pdp.api.ImmutableDecisionRequest;
 import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
 
@@ -79,6 +80,12 @@ public final class IndividualXacmlJaxbRequest implements DecisionRequest
 		return baseRequest.isApplicablePolicyIdListReturned();
 	}
 
+	@Override
+	public DecisionRequestFingerprint getFingerprint()
+	{
+		return baseRequest.getFingerprint();
+	}
+
 	/**
 	 * Attributes elements to be included in corresponding result.
 	 * 
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.AttributeSource;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+
+/**
+ * Registry of metrics about attribute retrieval, i.e. calls to {@link org.ow2.authzforce.core.pdp.api.AttributeProvider#get(AttributeFqn, org.ow2.authzforce.core.pdp.api.value.Datatype,
+ * org.ow2.authzforce.core.pdp.api.EvaluationContext)}, fed by {@link MeteredAttributeProvider} and {@link org.ow2.authzforce.core.pdp.api.expression.GenericAttributeProviderBasedAttributeDesignatorExpression}.
+ * <p>
+ * This is the extension point for exposing these metrics with any monitoring library (Dropwizard Metrics, Micrometer, JMX...), without making it a dependency of the PDP. {@link InMemoryAttributeMetricsRegistry}
+ * is a standalone implementation.
+ * <p>
+ * Calls failing with {@link UnsupportedOperationException} (attribute not supported by the provider, another one should be tried) are not recorded; other exceptions are recorded as
+ * {@link Outcome#ERROR}, and results are classified with {@link Outcome#of(AttributeBag)}. AttributeDesignators record every evaluation, whether the value is found in the
+ * context or returned by an Attribute Provider.
+ * <p>
+ * Implementations must be thread-safe, and {@link #recordCall(AttributeFqn, AttributeSource, long, Outcome)} should be fast and not allocate memory since it is called on the request path.
+ */
+public interface AttributeMetricsRegistry
+{
+	/**
+	 * Outcome of attribute retrieval
+	 */
+	enum Outcome
+	{
+		/**
+		 * Non-empty bag returned
+		 */
+		NON_EMPTY_BAG,
+
+		/**
+		 * Empty bag (or null) returned
+		 */
+		EMPTY_BAG,
+
+		/**
+		 * Error (Indeterminate or runtime exception)
+		 */
+		ERROR;
+
+		/**
+		 * Get the outcome of a retrieval that returned a given result
+		 *
+		 * @param result
+		 *            result of the retrieval
+		 * @return {@link #EMPTY_BAG} if {@code result} is null or empty, else {@link #NON_EMPTY_BAG}
+		 */
+		public static Outcome of(final AttributeBag<?> result)
+		{
+			return result == null || result.isEmpty() ? EMPTY_BAG : NON_EMPTY_BAG;
+		}
+	}
+
+	/**
+	 * Records an attribute retrieval
+	 *
+	 * @param attribute
+	 *            attribute retrieved
+	 * @param source
+	 *            source of the attribute (e.g. the {@link org.ow2.authzforce.core.pdp.api.value.AttributeBag#getSource()} of the result, empty or not), null if unknown (e.g. errors recorded by
+	 *            AttributeDesignators, which only know the attribute)
+	 * @param latencyNanos
+	 *            time spent retrieving the attribute, in nanoseconds
+	 * @param outcome
+	 *            outcome
+	 */
+	void recordCall(AttributeFqn attribute, AttributeSource source, long latencyNanos, Outcome outcome);
+}
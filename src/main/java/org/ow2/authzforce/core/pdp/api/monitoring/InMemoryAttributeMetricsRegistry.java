@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.AttributeSource;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * {@link AttributeMetricsRegistry} keeping the metrics in memory, per attribute and per attribute source: call count, empty-bag count, error count and {@link LatencyHistogram}. Metrics are read with
+ * {@link #getStatsByAttribute()} and {@link #getStatsBySource()}, e.g. to be exported periodically to a monitoring system.
+ * <p>
+ * Thread-safe. Recording does not allocate memory, except the first time a given attribute or source is recorded.
+ */
+public final class InMemoryAttributeMetricsRegistry implements AttributeMetricsRegistry
+{
+	/**
+	 * Attribute retrieval statistics
+	 */
+	public static final class Stats
+	{
+		private final AtomicLong callCount = new AtomicLong(0);
+		private final AtomicLong emptyBagCount = new AtomicLong(0);
+		private final AtomicLong errorCount = new AtomicLong(0);
+		private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+		private Stats()
+		{
+			// created by InMemoryAttributeMetricsRegistry only
+		}
+
+		private void record(final long latencyNanos, final Outcome outcome)
+		{
+			callCount.incrementAndGet();
+			if (outcome == Outcome.EMPTY_BAG)
+			{
+				emptyBagCount.incrementAndGet();
+			}
+			else if (outcome == Outcome.ERROR)
+			{
+				errorCount.incrementAndGet();
+			}
+
+			latencyHistogram.record(latencyNanos);
+		}
+
+		/**
+		 * Get the number of calls
+		 *
+		 * @return call count
+		 */
+		public long getCallCount()
+		{
+			return callCount.get();
+		}
+
+		/**
+		 * Get the number of calls returning an empty bag
+		 *
+		 * @return empty-bag count
+		 */
+		public long getEmptyBagCount()
+		{
+			return emptyBagCount.get();
+		}
+
+		/**
+		 * Get the number of calls failing with an error
+		 *
+		 * @return error count
+		 */
+		public long getErrorCount()
+		{
+			return errorCount.get();
+		}
+
+		/**
+		 * Get the latency histogram of all calls (including errors)
+		 *
+		 * @return latency histogram
+		 */
+		public LatencyHistogram getLatencyHistogram()
+		{
+			return latencyHistogram;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Stats[calls=" + getCallCount() + ", emptyBags=" + getEmptyBagCount() + ", errors=" + getErrorCount() + ", latency=" + latencyHistogram + "]";
+		}
+	}
+
+	/**
+	 * Key of the stats of attributes with unknown source (typically errors from providers that do not set the source of errors)
+	 */
+	public static final String UNKNOWN_SOURCE_KEY = "";
+
+	private final ConcurrentMap<AttributeFqn, Stats> statsByAttribute = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Stats> statsBySource = new ConcurrentHashMap<>();
+
+	private static <K> Stats getStats(final ConcurrentMap<K, Stats> statsByKey, final K key)
+	{
+		// get() first to avoid locking in computeIfAbsent() in the most common case
+		final Stats stats = statsByKey.get(key);
+		return stats == null ? statsByKey.computeIfAbsent(key, k -> new Stats()) : stats;
+	}
+
+	@Override
+	public void recordCall(final AttributeFqn attribute, final AttributeSource source, final long latencyNanos, final Outcome outcome)
+	{
+		getStats(statsByAttribute, attribute).record(latencyNanos, outcome);
+		getStats(statsBySource, source == null ? UNKNOWN_SOURCE_KEY : source.toString()).record(latencyNanos, outcome);
+	}
+
+	/**
+	 * Get the statistics per attribute
+	 *
+	 * @return statistics per attribute (snapshot of the attributes recorded so far, the statistics themselves are live)
+	 */
+	public Map<AttributeFqn, Stats> getStatsByAttribute()
+	{
+		return ImmutableMap.copyOf(statsByAttribute);
+	}
+
+	/**
+	 * Get the statistics per attribute source
+	 *
+	 * @return statistics per attribute source identifier ({@link AttributeSource#toString()}), {@link #UNKNOWN_SOURCE_KEY} for unknown sources (snapshot of the sources recorded so far, the statistics
+	 *         themselves are live)
+	 */
+	public Map<String, Stats> getStatsBySource()
+	{
+		return ImmutableMap.copyOf(statsBySource);
+	}
+
+	/**
+	 * Removes all statistics
+	 */
+	public void clear()
+	{
+		statsByAttribute.clear();
+		statsBySource.clear();
+	}
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Thread-safe histogram of latencies (in nanoseconds), with log-linear buckets in the manner of HdrHistogram: values are counted in buckets whose width is proportional to the value, with a relative
+ * precision of 1/32 (about 3%), over the whole range of positive {@code long}s. Recording a value is lock-free and does not allocate memory: it only increments a counter in a pre-allocated array.
+ */
+public final class LatencyHistogram
+{
+	/*
+	 * Each power-of-two range of values is divided in 2^SUB_BUCKET_BITS buckets of equal width
+	 */
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong(0);
+	private final AtomicLong totalValue = new AtomicLong(0);
+	private final AtomicLong maxValue = new AtomicLong(0);
+
+	private static int bucketIndex(final long value)
+	{
+		if (value < SUB_BUCKET_COUNT)
+		{
+			return (int) value;
+		}
+
+		final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+	}
+
+	/*
+	 * Highest value counted in the bucket
+	 */
+	private static long highestEquivalentValue(final int bucketIndex)
+	{
+		if (bucketIndex < SUB_BUCKET_COUNT)
+		{
+			return bucketIndex;
+		}
+
+		final int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+		final long lowestValue = (long) (SUB_BUCKET_COUNT + bucketIndex % SUB_BUCKET_COUNT) << shift;
+		return lowestValue + (1L << shift) - 1;
+	}
+
+	/**
+	 * Records a latency
+	 *
+	 * @param latencyNanos
+	 *            latency in nanoseconds (negative values are recorded as 0)
+	 */
+	public void record(final long latencyNanos)
+	{
+		final long value = Math.max(latencyNanos, 0);
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.incrementAndGet();
+		totalValue.addAndGet(value);
+		long currentMax = maxValue.get();
+		while (value > currentMax && !maxValue.compareAndSet(currentMax, value))
+		{
+			currentMax = maxValue.get();
+		}
+	}
+
+	/**
+	 * Get the number of recorded latencies
+	 *
+	 * @return count
+	 */
+	public long getTotalCount()
+	{
+		return totalCount.get();
+	}
+
+	/**
+	 * Get the maximum recorded latency
+	 *
+	 * @param unit
+	 *            unit of the result
+	 * @return maximum latency, 0 if none recorded
+	 */
+	public long getMax(final TimeUnit unit)
+	{
+		return unit.convert(maxValue.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the mean recorded latency
+	 *
+	 * @param unit
+	 *            unit of the result
+	 * @return mean latency, 0 if none recorded
+	 */
+	public double getMean(final TimeUnit unit)
+	{
+		final long count = totalCount.get();
+		return count == 0 ? 0 : (double) totalValue.get() / count / unit.toNanos(1);
+	}
+
+	/**
+	 * Get the latency at a given percentile, i.e. the (approximate) latency below or equal to which {@code percentile}% of recorded latencies are. If latencies are recorded concurrently, the result
+	 * is based on a consistent-enough view of the histogram for monitoring purposes, but not an atomic snapshot.
+	 *
+	 * @param percentile
+	 *            percentile in [0, 100]
+	 * @param unit
+	 *            unit of the result
+	 * @return latency at {@code percentile}, 0 if none recorded
+	 * @throws IllegalArgumentException
+	 *             if {@code percentile} is not in [0, 100]
+	 */
+	public long getValueAtPercentile(final double percentile, final TimeUnit unit) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile (must be in [0, 100]): %s", percentile);
+		final long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		final long targetCount = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long cumulativeCount = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			cumulativeCount += snapshot[i];
+			if (cumulativeCount >= targetCount)
+			{
+				return unit.convert(Math.min(highestEquivalentValue(i), maxValue.get()), TimeUnit.NANOSECONDS);
+			}
+		}
+
+		return unit.convert(maxValue.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LatencyHistogram[count=" + getTotalCount() + ", mean=" + getMean(TimeUnit.MICROSECONDS) + "us, p50=" + getValueAtPercentile(50, TimeUnit.MICROSECONDS) + "us, p99="
+				+ getValueAtPercentile(99, TimeUnit.MICROSECONDS) + "us, max=" + getMax(TimeUnit.MICROSECONDS) + "us]";
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.AttributeProvider;
+import org.ow2.authzforce.core.pdp.api.AttributeSource;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link AttributeProvider} decorator recording the latency and outcome of each call to the decorated provider in an {@link AttributeMetricsRegistry}. The attribute source recorded is the one of the
+ * returned bag (empty or not) if defined, else the source of the decorated provider given at creation.
+ * <p>
+ * {@link UnsupportedOperationException}s (attribute not supported by the provider) are not recorded.
+ */
+public final class MeteredAttributeProvider implements AttributeProvider
+{
+	private final AttributeProvider provider;
+	private final AttributeSource providerSource;
+	private final AttributeMetricsRegistry metricsRegistry;
+
+	private MeteredAttributeProvider(final AttributeProvider provider, final AttributeSource providerSource, final AttributeMetricsRegistry metricsRegistry)
+	{
+		this.provider = provider;
+		this.providerSource = providerSource;
+		this.metricsRegistry = metricsRegistry;
+	}
+
+	/**
+	 * Decorates a provider with metrics recording
+	 *
+	 * @param provider
+	 *            decorated provider
+	 * @param providerSource
+	 *            source of the attributes from {@code provider}, recorded when unknown from the result (error, or bag without source), e.g. {@link org.ow2.authzforce.core.pdp.api.AttributeSources#newCustomSource(String)};
+	 *            null if unknown
+	 * @param metricsRegistry
+	 *            metrics registry
+	 * @return decorated provider
+	 * @throws IllegalArgumentException
+	 *             if {@code provider == null || metricsRegistry == null}
+	 */
+	public static MeteredAttributeProvider wrap(final AttributeProvider provider, final AttributeSource providerSource, final AttributeMetricsRegistry metricsRegistry)
+			throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(provider != null, "Undefined Attribute Provider");
+		Preconditions.checkArgument(metricsRegistry != null, "Undefined metrics registry");
+		return new MeteredAttributeProvider(provider, providerSource, metricsRegistry);
+	}
+
+	@Override
+	public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		final long startTime = System.nanoTime();
+		final AttributeBag<AV> result;
+		try
+		{
+			result = provider.get(attributeFQN, datatype, context);
+		}
+		catch (final UnsupportedOperationException e)
+		{
+			throw e;
+		}
+		catch (final IndeterminateEvaluationException | RuntimeException e)
+		{
+			metricsRegistry.recordCall(attributeFQN, providerSource, System.nanoTime() - startTime, AttributeMetricsRegistry.Outcome.ERROR);
+			throw e;
+		}
+
+		final AttributeMetricsRegistry.Outcome outcome = AttributeMetricsRegistry.Outcome.of(result);
+		metricsRegistry.recordCall(attributeFQN, result == null ? providerSource : result.getSource().orElse(providerSource), System.nanoTime() - startTime, outcome);
+
+		return result;
+	}
+
+}
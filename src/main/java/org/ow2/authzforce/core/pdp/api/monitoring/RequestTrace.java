@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Trace of a sampled decision request recorded by {@link SamplingTracer}: the sequence of named attribute and AttributeSelector accesses on the request's evaluation context, with timings.
+ * <p>
+ * Immutable.
+ */
+public final class RequestTrace
+{
+	/**
+	 * Type of traced event
+	 */
+	public enum EventType
+	{
+		/**
+		 * Named attribute value put in the context for the first time (see {@link org.ow2.authzforce.core.pdp.api.EvaluationContext.Listener#namedAttributeValueProduced})
+		 */
+		NAMED_ATTRIBUTE_PRODUCED,
+
+		/**
+		 * Named attribute value requested from the context (see {@link org.ow2.authzforce.core.pdp.api.EvaluationContext.Listener#namedAttributeValueConsumed})
+		 */
+		NAMED_ATTRIBUTE_CONSUMED,
+
+		/**
+		 * AttributeSelector result put in the context for the first time (see {@link org.ow2.authzforce.core.pdp.api.EvaluationContext.Listener#attributeSelectorResultProduced})
+		 */
+		ATTRIBUTE_SELECTOR_PRODUCED,
+
+		/**
+		 * AttributeSelector result requested from the context (see {@link org.ow2.authzforce.core.pdp.api.EvaluationContext.Listener#attributeSelectorResultConsumed})
+		 */
+		ATTRIBUTE_SELECTOR_CONSUMED;
+	}
+
+	/**
+	 * Traced event
+	 */
+	public static final class Event
+	{
+		private final long offsetNanos;
+		private final EventType type;
+		private final Object target;
+		private final int bagSize;
+
+		Event(final long offsetNanos, final EventType type, final Object target, final int bagSize)
+		{
+			this.offsetNanos = offsetNanos;
+			this.type = type;
+			this.target = target;
+			this.bagSize = bagSize;
+		}
+
+		/**
+		 * Get the time of the event since the start of the trace
+		 * 
+		 * @return time offset in nanoseconds
+		 */
+		public long getOffsetNanos()
+		{
+			return offsetNanos;
+		}
+
+		/**
+		 * Get the event type
+		 * 
+		 * @return type
+		 */
+		public EventType getType()
+		{
+			return type;
+		}
+
+		/**
+		 * Get the accessed attribute or AttributeSelector
+		 * 
+		 * @return {@link org.ow2.authzforce.core.pdp.api.AttributeFqn} for named attributes, {@link org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression} for AttributeSelectors
+		 */
+		public Object getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * Get the number of values of the attribute/AttributeSelector result
+		 * 
+		 * @return bag size, or -1 if the value was undefined in the context (consumed before produced)
+		 */
+		public int getBagSize()
+		{
+			return bagSize;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "+" + offsetNanos + "ns " + type + " " + target + " (" + (bagSize < 0 ? "undefined" : bagSize + " value(s)") + ")";
+		}
+	}
+
+	private final long id;
+	private final long startTimeMillis;
+	private final long durationNanos;
+	private final ImmutableList<Event> events;
+	private final int droppedEventCount;
+
+	RequestTrace(final long id, final long startTimeMillis, final long durationNanos, final List<Event> events, final int droppedEventCount)
+	{
+		this.id = id;
+		this.startTimeMillis = startTimeMillis;
+		this.durationNanos = durationNanos;
+		this.events = ImmutableList.copyOf(events);
+		this.droppedEventCount = droppedEventCount;
+	}
+
+	/**
+	 * Get the trace identifier, unique and increasing within a {@link SamplingTracer}
+	 * 
+	 * @return trace ID
+	 */
+	public long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * Get the start time of the trace
+	 * 
+	 * @return start time (milliseconds since the epoch)
+	 */
+	public long getStartTimeMillis()
+	{
+		return startTimeMillis;
+	}
+
+	/**
+	 * Get the time between the start and the end of the trace
+	 * 
+	 * @return duration in nanoseconds
+	 */
+	public long getDurationNanos()
+	{
+		return durationNanos;
+	}
+
+	/**
+	 * Get the traced events, in order of occurrence
+	 * 
+	 * @return events
+	 */
+	public List<Event> getEvents()
+	{
+		return events;
+	}
+
+	/**
+	 * Get the number of events not recorded because the maximum number of events per trace was reached
+	 * 
+	 * @return number of dropped events
+	 */
+	public int getDroppedEventCount()
+	{
+		return droppedEventCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RequestTrace[id=" + id + ", startTime=" + startTimeMillis + ", duration=" + durationNanos + "ns, events=" + events + ", droppedEvents=" + droppedEventCount + "]";
+	}
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.monitoring;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.EvaluationContext;
+import org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Bag;
+import org.ow2.authzforce.core.pdp.api.value.XPathValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Tracer of named attribute and AttributeSelector accesses during request evaluation, enabled on a sample of requests only, so that tracing does not cost every request. For each request, the
+ * evaluation context creator (typically the PDP engine) calls {@link #startTrace(EvaluationContext)}, which selects the request randomly with probability 1/N (N being the sampling interval) and
+ * returns null if not selected - so that unsampled requests only pay a random number generation and a branch; else it attaches a {@link Recorder} to the context as
+ * {@link EvaluationContext.Listener}, which records the events until {@link Recorder#endTrace()} is called.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * final SamplingTracer.Recorder traceRecorder = tracer.startTrace(context);
+ * try
+ * {
+ * 	// evaluate the request in context
+ * }
+ * finally
+ * {
+ * 	if (traceRecorder != null)
+ * 	{
+ * 		traceRecorder.endTrace();
+ * 	}
+ * }
+ * </pre>
+ * <p>
+ * Completed traces are passed to the exporter if any, and kept in a lock-free ring buffer of the most recent traces, that can be read at any time with {@link #getRecentTraces()}.
+ * <p>
+ * Thread-safe.
+ */
+public final class SamplingTracer
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(SamplingTracer.class);
+
+	private static final int DEFAULT_MAX_EVENTS_PER_TRACE = 1024;
+
+	/**
+	 * {@link EvaluationContext} listener recording the events of one sampled request. Not thread-safe, like the evaluation context.
+	 */
+	public final class Recorder implements EvaluationContext.Listener
+	{
+		private final long startTimeMillis = System.currentTimeMillis();
+		private final long startNanos = System.nanoTime();
+		private final List<RequestTrace.Event> events = new ArrayList<>();
+		private int droppedEventCount = 0;
+		// null until the trace is ended
+		private RequestTrace trace = null;
+
+		private Recorder()
+		{
+			// created by SamplingTracer#startTrace() only
+		}
+
+		private void record(final RequestTrace.EventType type, final Object target, final int bagSize)
+		{
+			if (trace != null)
+			{
+				return;
+			}
+
+			if (events.size() >= maxEventsPerTrace)
+			{
+				droppedEventCount++;
+				return;
+			}
+
+			events.add(new RequestTrace.Event(System.nanoTime() - startNanos, type, target, bagSize));
+		}
+
+		@Override
+		public <AV extends AttributeValue> void namedAttributeValueProduced(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+		{
+			record(RequestTrace.EventType.NAMED_ATTRIBUTE_PRODUCED, attributeFQN, value == null ? -1 : value.size());
+		}
+
+		@Override
+		public <AV extends AttributeValue> void namedAttributeValueConsumed(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+		{
+			record(RequestTrace.EventType.NAMED_ATTRIBUTE_CONSUMED, attributeFQN, value == null ? -1 : value.size());
+		}
+
+		@Override
+		public <AV extends AttributeValue> void attributeSelectorResultProduced(final AttributeSelectorExpression<AV> attributeSelector,
+				final Optional<AttributeBag<XPathValue>> contextSelectorBag, final Bag<AV> result)
+		{
+			record(RequestTrace.EventType.ATTRIBUTE_SELECTOR_PRODUCED, attributeSelector, result == null ? -1 : result.size());
+		}
+
+		@Override
+		public <AV extends AttributeValue> void attributeSelectorResultConsumed(final AttributeSelectorExpression<AV> attributeSelector, final Bag<AV> result)
+		{
+			record(RequestTrace.EventType.ATTRIBUTE_SELECTOR_CONSUMED, attributeSelector, result == null ? -1 : result.size());
+		}
+
+		/**
+		 * Ends the trace: no more events are recorded, and the trace is published (ring buffer of recent traces, and exporter if any). Subsequent calls have no effect and return the same trace.
+		 * 
+		 * @return the trace
+		 */
+		public RequestTrace endTrace()
+		{
+			if (trace == null)
+			{
+				trace = publish(this);
+			}
+
+			return trace;
+		}
+	}
+
+	private final int samplingInterval;
+	private final int maxEventsPerTrace;
+	private final Consumer<RequestTrace> exporter;
+	private final AtomicReferenceArray<RequestTrace> recentTraces;
+	private final AtomicLong nextTraceId = new AtomicLong(0);
+
+	private SamplingTracer(final int samplingInterval, final int recentTraceCapacity, final int maxEventsPerTrace, final Consumer<RequestTrace> exporter)
+	{
+		this.samplingInterval = samplingInterval;
+		this.maxEventsPerTrace = maxEventsPerTrace;
+		this.exporter = exporter;
+		this.recentTraces = new AtomicReferenceArray<>(recentTraceCapacity);
+	}
+
+	/**
+	 * Creates a tracer
+	 * 
+	 * @param samplingInterval
+	 *            N such that 1 request in N (on average) is traced (strictly positive), 1 to trace all requests
+	 * @param recentTraceCapacity
+	 *            capacity of the ring buffer of recent traces (strictly positive)
+	 * @param exporter
+	 *            consumer of each completed trace, called in the thread ending the trace, e.g. to log it; null if none
+	 * @return new tracer
+	 * @throws IllegalArgumentException
+	 *             if {@code samplingInterval <= 0 || recentTraceCapacity <= 0}
+	 */
+	public static SamplingTracer newInstance(final int samplingInterval, final int recentTraceCapacity, final Consumer<RequestTrace> exporter) throws IllegalArgumentException
+	{
+		Preconditions.checkArgument(samplingInterval > 0, "Invalid sampling interval (must be > 0): %s", samplingInterval);
+		Preconditions.checkArgument(recentTraceCapacity > 0, "Invalid capacity of recent traces (must be > 0): %s", recentTraceCapacity);
+		return new SamplingTracer(samplingInterval, recentTraceCapacity, DEFAULT_MAX_EVENTS_PER_TRACE, exporter);
+	}
+
+	/**
+	 * Starts tracing a request if sampled
+	 * 
+	 * @param context
+	 *            evaluation context of the request
+	 * @return trace recorder attached to {@code context} as listener if the request is sampled, else null
+	 */
+	public Recorder startTrace(final EvaluationContext context)
+	{
+		if (samplingInterval > 1 && ThreadLocalRandom.current().nextInt(samplingInterval) != 0)
+		{
+			return null;
+		}
+
+		final Recorder recorder = new Recorder();
+		context.putListener(Recorder.class, recorder);
+		return recorder;
+	}
+
+	private RequestTrace publish(final Recorder recorder)
+	{
+		final long traceId = nextTraceId.getAndIncrement();
+		final RequestTrace trace = new RequestTrace(traceId, recorder.startTimeMillis, System.nanoTime() - recorder.startNanos, recorder.events, recorder.droppedEventCount);
+		recentTraces.set((int) (traceId % recentTraces.length()), trace);
+		if (exporter != null)
+		{
+			try
+			{
+				exporter.accept(trace);
+			}
+			catch (final RuntimeException e)
+			{
+				LOGGER.warn("Failed to export request trace #{}", traceId, e);
+			}
+		}
+
+		return trace;
+	}
+
+	/**
+	 * Get the most recent traces held in the ring buffer
+	 * 
+	 * @return recent traces, in order of {@link RequestTrace#getId()}
+	 */
+	public List<RequestTrace> getRecentTraces()
+	{
+		final List<RequestTrace> traces = new ArrayList<>(recentTraces.length());
+		for (int i = 0; i < recentTraces.length(); i++)
+		{
+			final RequestTrace trace = recentTraces.get(i);
+			if (trace != null)
+			{
+				traces.add(trace);
+			}
+		}
+
+		traces.sort(Comparator.comparingLong(RequestTrace::getId));
+		return traces;
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.Test;
+import org.ow2.authzforce.core.pdp.api.cache.InMemoryDecisionCache;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValueFactoryRegistry;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.Datatype;
+import org.ow2.authzforce.core.pdp.api.value.StandardAttributeValueFactories;
+import org.ow2.authzforce.core.pdp.api.value.StandardDatatypes;
+import org.ow2.authzforce.core.pdp.api.value.StringValue;
+
+import oasis.names.tc.xacml._3_0.core.schema.wd_17.AttributeDesignatorType;
+
+/**
+ * Tests of {@link AttributeProviderGraph}
+ */
+public class AttributeProviderGraphTest
+{
+	private static final String CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+	private static final AttributeDesignatorType SUBJECT_ID_DESIGNATOR = new AttributeDesignatorType(CATEGORY, "urn:oasis:names:tc:xacml:1.0:subject:subject-id", StandardDatatypes.STRING.getId(),
+			null, false);
+	private static final AttributeDesignatorType ROLE_DESIGNATOR = new AttributeDesignatorType(CATEGORY, "role", StandardDatatypes.STRING.getId(), null, false);
+	private static final AttributeFqn SUBJECT_ID = AttributeFqns.newInstance(SUBJECT_ID_DESIGNATOR);
+	private static final AttributeFqn ROLE = AttributeFqns.newInstance(ROLE_DESIGNATOR);
+
+	/*
+	 * Provides the role of the subject, depending on the subject-id
+	 */
+	private static final class RoleProviderFactory implements CloseableNamedAttributeProvider.DependencyAwareFactory
+	{
+		@Override
+		public Set<AttributeDesignatorType> getDependencies()
+		{
+			return Collections.singleton(SUBJECT_ID_DESIGNATOR);
+		}
+
+		@Override
+		public CloseableNamedAttributeProvider getInstance(final AttributeValueFactoryRegistry attributeValueFactories, final AttributeProvider dependencyAttributeProvider)
+		{
+			return new BaseNamedAttributeProvider("role-provider")
+			{
+				@Override
+				public Set<AttributeDesignatorType> getProvidedAttributes()
+				{
+					return Collections.singleton(ROLE_DESIGNATOR);
+				}
+
+				@Override
+				public <AV extends AttributeValue> AttributeBag<AV> get(final AttributeFqn attributeFQN, final Datatype<AV> datatype, final EvaluationContext context)
+						throws IndeterminateEvaluationException
+				{
+					final AttributeBag<StringValue> subjectId = dependencyAttributeProvider.get(SUBJECT_ID, StandardDatatypes.STRING, context);
+					final String role = subjectId.isEmpty() ? "guest" : "user";
+					return Bags.singletonAttributeBag(datatype, datatype.cast(new StringValue(role)));
+				}
+
+				@Override
+				public void close() throws IOException
+				{
+					// nothing to close
+				}
+			};
+		}
+	}
+
+	private static DecisionRequest request(final String subjectId)
+	{
+		return ImmutableDecisionRequest.getInstance(Collections.singletonMap(SUBJECT_ID, Bags.singletonAttributeBag(StandardDatatypes.STRING, new StringValue(subjectId))), null, false);
+	}
+
+	/*
+	 * Evaluation of a policy that only reads the role
+	 */
+	private static void evaluate(final AttributeProviderGraph graph, final EvaluationContext context) throws IndeterminateEvaluationException
+	{
+		if (context.getNamedAttributeValue(ROLE, StandardDatatypes.STRING) == null)
+		{
+			final AttributeBag<StringValue> role = graph.get(ROLE, StandardDatatypes.STRING, context);
+			context.putNamedAttributeValueIfAbsent(ROLE, role);
+		}
+	}
+
+	@Test
+	public void dependenciesAreConsumedFromCallerContext() throws IndeterminateEvaluationException, IOException
+	{
+		final AttributeValueFactoryRegistry attributeValueFactories = StandardAttributeValueFactories.getRegistry(false, Optional.empty());
+		try (AttributeProviderGraph graph = AttributeProviderGraph.newInstance(Collections.singletonList(new RoleProviderFactory()), attributeValueFactories, Runnable::run);
+				InMemoryDecisionCache cache = InMemoryDecisionCache.newBuilder().maximumSize(100).attributeDependencyAware(4).build())
+		{
+			final DecisionRequest aliceRequest = request("alice");
+			final EvaluationContext aliceContext = ArrayEvaluationContext.newInstance(new ContextSlots(), aliceRequest.getNamedAttributes(), null, false);
+			assertNull(cache.get(aliceRequest, aliceContext));
+			evaluate(graph, aliceContext);
+			assertEquals("user", aliceContext.getNamedAttributeValue(ROLE, StandardDatatypes.STRING).getSingleElement().getUnderlyingValue());
+			cache.put(aliceRequest, DecisionResults.SIMPLE_PERMIT, aliceContext);
+
+			// the cached result depends on the subject-id read by the role provider, therefore must not be served for another subject
+			final DecisionRequest bobRequest = request("bob");
+			final EvaluationContext bobContext = ArrayEvaluationContext.newInstance(new ContextSlots(), bobRequest.getNamedAttributes(), null, false);
+			assertNull(cache.get(bobRequest, bobContext));
+			assertSame(DecisionResults.SIMPLE_PERMIT, cache.get(request("alice"), null));
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ow2.authzforce.core.pdp.api.expression.AttributeSelectorExpression;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.AttributeValue;
+import org.ow2.authzforce.core.pdp.api.value.Bag;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.StandardDatatypes;
+import org.ow2.authzforce.core.pdp.api.value.StringValue;
+import org.ow2.authzforce.core.pdp.api.value.XPathValue;
+
+/**
+ * Tests that reused evaluation contexts ({@link ArrayEvaluationContext#reset(Map, Map, boolean)}, {@link EvaluationContextPool}) do not leak any state from a request to the next one
+ */
+public class EvaluationContextPoolTest
+{
+	private static final String CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+	private static final AttributeFqn SLOTTED_ATTRIBUTE = AttributeFqns.newInstance(CATEGORY, Optional.empty(), "slotted-attribute");
+	private static final AttributeFqn OTHER_ATTRIBUTE = AttributeFqns.newInstance(CATEGORY, Optional.empty(), "other-attribute");
+	private static final AttributeFqn PROVIDED_ATTRIBUTE = AttributeFqns.newInstance(CATEGORY, Optional.empty(), "provided-attribute");
+	private static final String SLOTTED_VARIABLE = "slotted-variable";
+	private static final String OTHER_VARIABLE = "other-variable";
+	private static final String PROPERTY = "property";
+	private static final ContextKey<String> TYPED_PROPERTY = ContextKey.newInstance("typed-property", String.class);
+
+	private static final AttributeBag<StringValue> BAG = Bags.singletonAttributeBag(StandardDatatypes.STRING, new StringValue("value"));
+
+	private static final class TestListener implements EvaluationContext.Listener
+	{
+
+		@Override
+		public <AV extends AttributeValue> void namedAttributeValueProduced(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+		{
+			// not used
+		}
+
+		@Override
+		public <AV extends AttributeValue> void namedAttributeValueConsumed(final AttributeFqn attributeFQN, final AttributeBag<AV> value)
+		{
+			// not used
+		}
+
+		@Override
+		public <AV extends AttributeValue> void attributeSelectorResultProduced(final AttributeSelectorExpression<AV> attributeSelector,
+				final Optional<AttributeBag<XPathValue>> contextSelectorBag, final Bag<AV> result)
+		{
+			// not used
+		}
+
+		@Override
+		public <AV extends AttributeValue> void attributeSelectorResultConsumed(final AttributeSelectorExpression<AV> attributeSelector, final Bag<AV> result)
+		{
+			// not used
+		}
+	}
+
+	/*
+	 * AttributeSelector only used as key of results in context (identity)
+	 */
+	@SuppressWarnings("unchecked")
+	private static final AttributeSelectorExpression<StringValue> ATTRIBUTE_SELECTOR = (AttributeSelectorExpression<StringValue>) Proxy.newProxyInstance(
+			EvaluationContextPoolTest.class.getClassLoader(), new Class<?>[] { AttributeSelectorExpression.class }, (proxy, method, args) -> {
+				switch (method.getName())
+				{
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return "AttributeSelector[test]";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+
+	private ContextSlots slots;
+
+	@Before
+	public void setUp()
+	{
+		slots = new ContextSlots();
+		slots.registerAttribute(SLOTTED_ATTRIBUTE);
+		slots.registerVariable(SLOTTED_VARIABLE);
+	}
+
+	private static Map<AttributeFqn, AttributeBag<?>> requestAttributes()
+	{
+		return Collections.singletonMap(OTHER_ATTRIBUTE, BAG);
+	}
+
+	/*
+	 * Fills the context with all kinds of request state
+	 */
+	private static void populate(final ArrayEvaluationContext context) throws IndeterminateEvaluationException
+	{
+		assertTrue(context.putNamedAttributeValueIfAbsent(SLOTTED_ATTRIBUTE, BAG));
+		assertTrue(context.putNamedAttributeValueIfAbsent(PROVIDED_ATTRIBUTE, BAG));
+		assertTrue(context.putVariableIfAbsent(SLOTTED_VARIABLE, new StringValue("slotted")));
+		assertTrue(context.putVariableIfAbsent(OTHER_VARIABLE, new StringValue("other")));
+		assertTrue(context.putAttributeSelectorResultIfAbsent(ATTRIBUTE_SELECTOR, BAG));
+		context.putOther(PROPERTY, "property value");
+		context.putOther(TYPED_PROPERTY, "typed property value");
+		context.putListener(TestListener.class, new TestListener());
+	}
+
+	private static void assertNoState(final ArrayEvaluationContext context) throws IndeterminateEvaluationException
+	{
+		assertNull(context.getNamedAttributeValue(SLOTTED_ATTRIBUTE, StandardDatatypes.STRING));
+		assertNull(context.getNamedAttributeValue(OTHER_ATTRIBUTE, StandardDatatypes.STRING));
+		assertNull(context.getNamedAttributeValue(PROVIDED_ATTRIBUTE, StandardDatatypes.STRING));
+		assertFalse(context.getNamedAttributes().hasNext());
+		assertNull(context.getVariableValue(SLOTTED_VARIABLE, StandardDatatypes.STRING));
+		assertNull(context.getVariableValue(OTHER_VARIABLE, StandardDatatypes.STRING));
+		assertNull(context.getAttributeSelectorResult(ATTRIBUTE_SELECTOR));
+		assertNull(context.getOther(PROPERTY));
+		assertFalse(context.containsKey(PROPERTY));
+		assertNull(context.getOther(TYPED_PROPERTY));
+		assertNull(context.getListener(TestListener.class));
+		assertFalse(context.isApplicablePolicyIdListRequested());
+	}
+
+	@Test
+	public void resetLeavesNoStateOfPreviousRequest() throws IndeterminateEvaluationException
+	{
+		final ArrayEvaluationContext context = ArrayEvaluationContext.newInstance(slots, requestAttributes(), null, true);
+		populate(context);
+		context.reset(null, null, false);
+		assertNoState(context);
+	}
+
+	@Test
+	public void resetAfterSlotRegistrationLeavesNoStateOfPreviousRequest() throws IndeterminateEvaluationException
+	{
+		final ArrayEvaluationContext context = ArrayEvaluationContext.newInstance(slots, requestAttributes(), null, true);
+		// slot registered after the creation of the context (value stored in the maps)
+		slots.registerAttribute(PROVIDED_ATTRIBUTE);
+		populate(context);
+		context.reset(null, null, false);
+		assertNoState(context);
+	}
+
+	@Test
+	public void releaseToThreadLocalPoolLeavesNoState() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newThreadLocalPool(slots);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, true);
+		populate(context);
+		pool.release(context);
+		// released contexts are cleared immediately
+		assertNoState(context);
+
+		final ArrayEvaluationContext reusedContext = pool.acquire(null, null, false);
+		assertSame(context, reusedContext);
+		assertNoState(reusedContext);
+		pool.release(reusedContext);
+	}
+
+	@Test
+	public void nestedAcquisitionFromThreadLocalPoolGetsNewContext() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newThreadLocalPool(slots);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, false);
+		final ArrayEvaluationContext nestedContext = pool.acquire(null, null, false);
+		assertNotSame(context, nestedContext);
+		pool.release(nestedContext);
+		pool.release(context);
+
+		assertSame(context, pool.acquire(null, null, false));
+	}
+
+	@Test
+	public void releaseToBoundedPoolLeavesNoState() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newBoundedPool(slots, 1);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, true);
+		populate(context);
+		pool.release(context);
+		assertNoState(context);
+
+		final ArrayEvaluationContext reusedContext = pool.acquire(null, null, false);
+		assertSame(context, reusedContext);
+		assertNoState(reusedContext);
+		pool.release(reusedContext);
+	}
+
+	@Test
+	public void releaseTwiceToBoundedPoolIsIgnored() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newBoundedPool(slots, 2);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, true);
+		populate(context);
+		pool.release(context);
+		pool.release(context);
+		assertNoState(context);
+
+		final ArrayEvaluationContext firstContext = pool.acquire(null, null, false);
+		final ArrayEvaluationContext secondContext = pool.acquire(null, null, false);
+		assertSame(context, firstContext);
+		assertNotSame(firstContext, secondContext);
+		pool.release(secondContext);
+		pool.release(firstContext);
+	}
+
+	@Test
+	public void releaseTwiceToThreadLocalPoolIsIgnored() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newThreadLocalPool(slots);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, true);
+		pool.release(context);
+		pool.release(context);
+
+		final ArrayEvaluationContext firstContext = pool.acquire(null, null, false);
+		final ArrayEvaluationContext secondContext = pool.acquire(null, null, false);
+		assertSame(context, firstContext);
+		assertNotSame(firstContext, secondContext);
+		pool.release(secondContext);
+		pool.release(firstContext);
+	}
+
+	@Test
+	public void acquiredContextOnlyHasNewRequestAttributes() throws IndeterminateEvaluationException
+	{
+		final EvaluationContextPool pool = EvaluationContextPool.newThreadLocalPool(slots);
+		final ArrayEvaluationContext context = pool.acquire(requestAttributes(), null, true);
+		populate(context);
+		pool.release(context);
+
+		final ArrayEvaluationContext reusedContext = pool.acquire(Collections.singletonMap(SLOTTED_ATTRIBUTE, BAG), null, false);
+		assertSame(BAG, reusedContext.getNamedAttributeValue(SLOTTED_ATTRIBUTE, StandardDatatypes.STRING));
+		assertNull(reusedContext.getNamedAttributeValue(OTHER_ATTRIBUTE, StandardDatatypes.STRING));
+		assertNull(reusedContext.getNamedAttributeValue(PROVIDED_ATTRIBUTE, StandardDatatypes.STRING));
+		assertNull(reusedContext.getAttributeSelectorResult(ATTRIBUTE_SELECTOR));
+		assertNull(reusedContext.getOther(TYPED_PROPERTY));
+		assertNull(reusedContext.getListener(TestListener.class));
+		pool.release(reusedContext);
+	}
+
+}
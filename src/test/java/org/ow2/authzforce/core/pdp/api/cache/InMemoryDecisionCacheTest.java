@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012-2019 THALES.
+ *
+ * This file is part of AuthzForce CE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ow2.authzforce.core.pdp.api.cache;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.ow2.authzforce.core.pdp.api.ArrayEvaluationContext;
+import org.ow2.authzforce.core.pdp.api.AttributeFqn;
+import org.ow2.authzforce.core.pdp.api.AttributeFqns;
+import org.ow2.authzforce.core.pdp.api.ContextSlots;
+import org.ow2.authzforce.core.pdp.api.DecisionRequest;
+import org.ow2.authzforce.core.pdp.api.DecisionResults;
+import org.ow2.authzforce.core.pdp.api.ImmutableDecisionRequest;
+import org.ow2.authzforce.core.pdp.api.IndeterminateEvaluationException;
+import org.ow2.authzforce.core.pdp.api.value.AttributeBag;
+import org.ow2.authzforce.core.pdp.api.value.Bags;
+import org.ow2.authzforce.core.pdp.api.value.StandardDatatypes;
+import org.ow2.authzforce.core.pdp.api.value.StringValue;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests of the attribute-dependency-aware mode of {@link InMemoryDecisionCache}
+ */
+public class InMemoryDecisionCacheTest
+{
+	private static final String CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+	private static final AttributeFqn ATTRIBUTE_A = AttributeFqns.newInstance(CATEGORY, Optional.empty(), "a");
+	private static final AttributeFqn ATTRIBUTE_B = AttributeFqns.newInstance(CATEGORY, Optional.empty(), "b");
+
+	private static AttributeBag<StringValue> bag(final String value)
+	{
+		return Bags.singletonAttributeBag(StandardDatatypes.STRING, new StringValue(value));
+	}
+
+	private static DecisionRequest request(final Map<AttributeFqn, AttributeBag<?>> namedAttributes)
+	{
+		return ImmutableDecisionRequest.getInstance(namedAttributes, null, false);
+	}
+
+	private static InMemoryDecisionCache newCache()
+	{
+		return InMemoryDecisionCache.newBuilder().maximumSize(100).attributeDependencyAware(4).build();
+	}
+
+	/*
+	 * Caches the result of a request evaluation consuming only attribute A, which registers the dependency set {A}
+	 */
+	private static void putDependingOnAttributeA(final InMemoryDecisionCache cache, final DecisionRequest request) throws IndeterminateEvaluationException
+	{
+		final ArrayEvaluationContext evalCtx = ArrayEvaluationContext.newInstance(new ContextSlots(), request.getNamedAttributes(), null, false);
+		assertNull(cache.get(request, evalCtx));
+		evalCtx.getNamedAttributeValue(ATTRIBUTE_A, StandardDatatypes.STRING);
+		cache.put(request, DecisionResults.SIMPLE_PERMIT, evalCtx);
+	}
+
+	@Test
+	public void projectedRequestDoesNotMatchWholeRequestEntry() throws IndeterminateEvaluationException
+	{
+		final InMemoryDecisionCache cache = newCache();
+		/*
+		 * Result of {a=1} cached on the whole request, although the evaluation also used attribute b (absent)
+		 */
+		final DecisionRequest requestWithoutB = request(Collections.singletonMap(ATTRIBUTE_A, bag("1")));
+		cache.putAll(Collections.singletonMap(requestWithoutB, DecisionResults.SIMPLE_DENY));
+		// register dependency set {a}
+		putDependingOnAttributeA(cache, request(Collections.singletonMap(ATTRIBUTE_A, bag("2"))));
+
+		final DecisionRequest requestWithB = request(ImmutableMap.of(ATTRIBUTE_A, bag("1"), ATTRIBUTE_B, bag("2")));
+		final ArrayEvaluationContext evalCtx = ArrayEvaluationContext.newInstance(new ContextSlots(), requestWithB.getNamedAttributes(), null, false);
+		assertNull(cache.get(requestWithB, evalCtx));
+		assertNull(cache.getAll(Collections.singletonList(requestWithB)).get(requestWithB));
+		// still a hit on the whole request
+		assertSame(DecisionResults.SIMPLE_DENY, cache.get(requestWithoutB, null));
+		cache.close();
+	}
+
+	@Test
+	public void projectedRequestMatchesProjectedEntry() throws IndeterminateEvaluationException
+	{
+		final InMemoryDecisionCache cache = newCache();
+		putDependingOnAttributeA(cache, request(Collections.singletonMap(ATTRIBUTE_A, bag("1"))));
+
+		final DecisionRequest requestWithB = request(ImmutableMap.of(ATTRIBUTE_A, bag("1"), ATTRIBUTE_B, bag("2")));
+		assertSame(DecisionResults.SIMPLE_PERMIT, cache.get(requestWithB, null));
+		assertSame(DecisionResults.SIMPLE_PERMIT, cache.getAll(Collections.singletonList(requestWithB)).get(requestWithB));
+		cache.close();
+	}
+
+}